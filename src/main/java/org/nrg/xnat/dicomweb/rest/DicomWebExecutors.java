@@ -0,0 +1,206 @@
+package org.nrg.xnat.dicomweb.rest;
+
+import org.nrg.xnat.dicomweb.utils.DicomWebUtils;
+import org.nrg.xnat.dicomweb.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plugin pools for long-running DICOMweb requests, keeping bulk traffic away from interactive viewing.
+ *
+ * Requests fall into three classes. Interactive requests (frames, rendered images, thumbnails, single
+ * instances and their metadata) are served on the container thread and never wait here. Bulk requests
+ * (study and series retrieval, study metadata) and metadata requests (series metadata, searches) are
+ * handed over as a {@link DeferredResult}, releasing the container thread, and run on separate bounded
+ * pools so neither class can starve the other; the bulk pool also runs below normal priority.
+ *
+ * Bulk downloads also write their body on the bulk pool, straight to the servlet response, so a burst of
+ * multi-gigabyte downloads holds plugin threads rather than container threads.
+ *
+ * Each user, or each client address for guests, may have at most {@code dicomweb.async.bulkPerUser} bulk
+ * requests admitted, counted until the response has been written. Callers answer revalidations with 304
+ * before admission, so only work that builds a body takes a slot. Requests over that limit, requests
+ * finding their pool's queue full and work outliving {@code dicomweb.async.timeoutMillis} are answered
+ * at once with 503 and a Retry-After header; a download is only timed out while it waits in the queue,
+ * since writing a large study may legitimately take longer. A pool size of 0 runs that class on the
+ * calling thread.
+ */
+@Component
+public class DicomWebExecutors implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(DicomWebExecutors.class);
+
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private final ThreadPoolExecutor bulkPool;
+    private final ThreadPoolExecutor metadataPool;
+    private final UserConcurrencyLimit bulkLimit;
+    private final long timeoutMillis;
+    private final long retryAfterSeconds;
+
+    public DicomWebExecutors() {
+        this(DicomWebUtils.getIntProperty("dicomweb.async.bulkThreads", 8),
+                DicomWebUtils.getIntProperty("dicomweb.async.metadataThreads", 8),
+                DicomWebUtils.getIntProperty("dicomweb.async.queueSize", 256),
+                DicomWebUtils.getIntProperty("dicomweb.async.bulkPerUser", 2),
+                DicomWebUtils.getLongProperty("dicomweb.async.timeoutMillis", 300000L),
+                DicomWebUtils.getLongProperty("dicomweb.async.retryAfterSeconds", 10L));
+    }
+
+    DicomWebExecutors(int bulkThreads, int metadataThreads, int queueSize, int bulkPerUser,
+                      long timeoutMillis, long retryAfterSeconds) {
+        this.bulkPool = createPool("dicomweb-async-bulk", Thread.NORM_PRIORITY - 1, bulkThreads, queueSize);
+        this.metadataPool = createPool("dicomweb-async-metadata", Thread.NORM_PRIORITY, metadataThreads, queueSize);
+        this.bulkLimit = new UserConcurrencyLimit(bulkPerUser);
+        this.timeoutMillis = timeoutMillis;
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+    }
+
+    /**
+     * Executors that run all work on the calling thread, without per-user limits
+     */
+    static DicomWebExecutors direct() {
+        return new DicomWebExecutors(0, 0, 0, 0, 0, 1);
+    }
+
+    /**
+     * A result already answered on the calling thread, such as a 304
+     */
+    public static <T> DeferredResult<ResponseEntity<T>> completed(ResponseEntity<T> response) {
+        DeferredResult<ResponseEntity<T>> result = new DeferredResult<>();
+        result.setResult(response);
+        return result;
+    }
+
+    /**
+     * Run a bulk request whose response Spring MVC writes, such as study metadata, on the bulk pool
+     *
+     * @param userKey login of the requesting user, or the client address of a guest; requests without
+     *                one share an allowance
+     */
+    public <T> DeferredResult<ResponseEntity<T>> bulk(String userKey, String description,
+                                                      Callable<ResponseEntity<T>> work) {
+        return bulk(userKey, description, work, false);
+    }
+
+    /**
+     * Run a bulk download on the bulk pool. The work writes the body to the servlet response itself and
+     * returns null, or returns a response without a body for Spring MVC to send. A failure while writing
+     * is passed to the container as an error, so a partly sent body is aborted rather than ended cleanly.
+     */
+    public <T> DeferredResult<ResponseEntity<T>> bulkDownload(String userKey, String description,
+                                                              Callable<ResponseEntity<T>> work) {
+        return bulk(userKey, description, work, true);
+    }
+
+    private <T> DeferredResult<ResponseEntity<T>> bulk(String userKey, String description,
+                                                       Callable<ResponseEntity<T>> work, boolean download) {
+        if (!bulkLimit.tryAcquire(userKey)) {
+            logger.warn("Rejecting {} for {}: {} bulk requests already in progress", description, userKey,
+                    bulkLimit.active(userKey));
+            return completed(unavailable());
+        }
+
+        DeferredResult<ResponseEntity<T>> result = submit(bulkPool, "bulk", description, work, download);
+        if (bulkPool != null) {
+            // Held until the response is written, since multipart bodies stream after the dispatch
+            result.onCompletion(() -> bulkLimit.release(userKey));
+        } else {
+            bulkLimit.release(userKey);
+        }
+        return result;
+    }
+
+    /**
+     * Run a metadata build or search on the metadata pool
+     */
+    public <T> DeferredResult<ResponseEntity<T>> metadata(String description, Callable<ResponseEntity<T>> work) {
+        return submit(metadataPool, "metadata", description, work, false);
+    }
+
+    @Override
+    public void destroy() {
+        if (bulkPool != null) {
+            bulkPool.shutdownNow();
+        }
+        if (metadataPool != null) {
+            metadataPool.shutdownNow();
+        }
+    }
+
+    private <T> DeferredResult<ResponseEntity<T>> submit(ThreadPoolExecutor pool, String poolName,
+                                                         String description, Callable<ResponseEntity<T>> work,
+                                                         boolean download) {
+        // A download's async request never times out in the container; only its wait for a thread does
+        DeferredResult<ResponseEntity<T>> result = download
+                ? new DeferredResult<>(0L)
+                : new DeferredResult<>(timeoutMillis > 0 ? timeoutMillis : null, unavailable());
+        long queuedAt = System.nanoTime();
+        Runnable task = () -> {
+            if (download && timeoutMillis > 0
+                    && System.nanoTime() - queuedAt > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+                logger.warn("Timed out {} after waiting {} ms for the {} pool", description, timeoutMillis, poolName);
+                result.setResult(unavailable());
+                return;
+            }
+            try {
+                result.setResult(work.call());
+            } catch (Exception e) {
+                logger.error("Error processing " + description, e);
+                if (download) {
+                    result.setErrorResult(e);
+                } else {
+                    result.setResult(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+                }
+            }
+        };
+
+        if (pool == null) {
+            task.run();
+            return result;
+        }
+        try {
+            Future<?> future = pool.submit(task);
+            if (!download) {
+                result.onTimeout(() -> {
+                    logger.warn("Timed out processing {} after {} ms", description, timeoutMillis);
+                    future.cancel(true);
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            logger.warn("Rejecting {}: {} pool is full", description, poolName);
+            result.setResult(unavailable());
+        }
+        return result;
+    }
+
+    private <T> ResponseEntity<T> unavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(RETRY_AFTER, String.valueOf(retryAfterSeconds))
+                .build();
+    }
+
+    private static ThreadPoolExecutor createPool(String name, int priority, int threads, int queueSize) {
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                new NamedThreadFactory(name, priority),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -5,29 +5,42 @@ import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
 import org.nrg.framework.annotations.XapiRestController;
 import org.nrg.xapi.rest.AbstractXapiRestController;
 import org.nrg.xapi.rest.XapiRequestMapping;
 import org.nrg.xdat.security.services.RoleHolder;
 import org.nrg.xdat.security.services.UserManagementServiceI;
 import org.nrg.xft.security.UserI;
+import org.nrg.xnat.dicomweb.service.ConditionalHeaders;
+import org.nrg.xnat.dicomweb.service.IncludeFields;
+import org.nrg.xnat.dicomweb.service.ResourceValidator;
+import org.nrg.xnat.dicomweb.service.SearchResult;
 import org.nrg.xnat.dicomweb.service.XnatDicomService;
 import org.nrg.xnat.dicomweb.utils.DicomWebUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.http.HttpServletRequest;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
  * QIDO-RS (Query based on ID for DICOM Objects over RESTful Services)
  * Implements DICOMweb search endpoints
+ *
+ * Searches run on the metadata pool of the plugin's {@link DicomWebExecutors}.
  */
 @XapiRestController
 @Api("DICOMweb QIDO-RS API")
@@ -35,19 +48,34 @@ public class QidoRsApi extends AbstractXapiRestController {
 
     private static final Logger logger = LoggerFactory.getLogger(QidoRsApi.class);
 
+    /**
+     * Warning sent when a limit truncated the matches (PS3.18 8.3.4.4)
+     */
+    private static final String MORE_RESULTS_WARNING = "299 - \"There are additional results that can be requested\"";
+
     private final XnatDicomService dicomService;
+    private final DicomWebExecutors executors;
 
     @Autowired
     public QidoRsApi(final XnatDicomService dicomService,
+                     final DicomWebExecutors executors,
                      final UserManagementServiceI userManagementService,
                      final RoleHolder roleHolder) {
         super(userManagementService, roleHolder);
         this.dicomService = dicomService;
+        this.executors = executors;
     }
 
     /**
      * Search for studies in a project
      * GET /dicomweb/projects/{projectId}/studies
+     * Matching keys: PatientID, PatientName, StudyDate (date or range), AccessionNumber,
+     * StudyInstanceUID and ModalitiesInStudy (comma-separated lists).
+     * Results are ordered by StudyDate, newest first, and paged with limit and offset; a Warning
+     * header signals that further matches can be requested. NumberOfStudyRelatedSeries is returned
+     * when the study list query counted it; otherwise it and NumberOfStudyRelatedInstances are only
+     * returned when requested with includefield.
+     * Responses carry an ETag that follows the project's sessions; a matching If-None-Match gets 304.
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies",
@@ -57,31 +85,45 @@ public class QidoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Search for studies in a project (QIDO-RS)", response = String.class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Studies found"),
+            @ApiResponse(code = 304, message = "Studies not modified"),
+            @ApiResponse(code = 400, message = "Invalid matching key"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Project not found"),
-            @ApiResponse(code = 500, message = "Internal error")
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Server busy, retry later")
     })
-    public ResponseEntity<String> searchStudies(@PathVariable String projectId) {
+    public DeferredResult<ResponseEntity<String>> searchStudies(@PathVariable String projectId,
+                                                                @RequestParam Map<String, String> queryParameters,
+                                                                HttpServletRequest request) {
+        UserI user = getSessionUser();
+        ConditionalHeaders conditions = ConditionalHeaders.of(request);
+        return executors.metadata("study search",
+                () -> studySearchResponse(user, projectId, queryParameters, conditions));
+    }
+
+    private ResponseEntity<String> studySearchResponse(UserI user,
+                                                       String projectId,
+                                                       Map<String, String> queryParameters,
+                                                       ConditionalHeaders conditions) {
         try {
-            UserI user = getSessionUser();
-            List<Attributes> studies = dicomService.searchStudies(user, projectId, null);
+            Attributes queryAttributes = DicomWebUtils.parseQueryParameters(queryParameters);
+            int offset = DicomWebUtils.parseCountParameter(queryParameters, "offset");
+            int limit = DicomWebUtils.parseCountParameter(queryParameters, "limit");
+            IncludeFields includeFields = IncludeFields.parse(
+                    DicomWebUtils.getQueryParameter(queryParameters, "includefield"));
 
-            // Convert to JSON array
-            String json = "[" + studies.stream()
-                    .map(attrs -> {
-                        try {
-                            return DicomWebUtils.toJson(attrs);
-                        } catch (Exception e) {
-                            logger.error("Error converting study to JSON", e);
-                            return "{}";
-                        }
-                    })
-                    .collect(Collectors.joining(",")) + "]";
+            ResourceValidator validator = dicomService.getProjectValidator(user, projectId);
+            if (conditions.isNotModified(validator)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(validator.toHeaders()).build();
+            }
 
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(DicomWebUtils.getDicomJsonContentType()))
-                    .body(json);
+            SearchResult result = dicomService.searchStudies(user, projectId, queryAttributes, offset, limit,
+                    includeFields);
+            return searchResultResponse(result, "study", null, validator);
 
+        } catch (IllegalArgumentException e) {
+            logger.debug("Rejecting study search in project {}: {}", projectId, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         } catch (Exception e) {
             logger.error("Error searching studies in project: " + projectId, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
@@ -91,6 +133,7 @@ public class QidoRsApi extends AbstractXapiRestController {
     /**
      * Search for series in a study
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series
+     * Responses carry an ETag that follows the study's scans; a matching If-None-Match gets 304.
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series",
@@ -100,15 +143,40 @@ public class QidoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Search for series in a study (QIDO-RS)", response = String.class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Series found"),
+            @ApiResponse(code = 304, message = "Series not modified"),
+            @ApiResponse(code = 400, message = "Invalid matching key"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Study not found"),
-            @ApiResponse(code = 500, message = "Internal error")
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Server busy, retry later")
     })
-    public ResponseEntity<String> searchSeries(@PathVariable String projectId,
-                                               @PathVariable String studyUID) {
+    public DeferredResult<ResponseEntity<String>> searchSeries(@PathVariable String projectId,
+                                                               @PathVariable String studyUID,
+                                                               @RequestParam Map<String, String> queryParameters,
+                                                               HttpServletRequest request) {
+        UserI user = getSessionUser();
+        ConditionalHeaders conditions = ConditionalHeaders.of(request);
+        return executors.metadata("series search",
+                () -> seriesSearchResponse(user, projectId, studyUID, queryParameters, conditions));
+    }
+
+    private ResponseEntity<String> seriesSearchResponse(UserI user,
+                                                        String projectId,
+                                                        String studyUID,
+                                                        Map<String, String> queryParameters,
+                                                        ConditionalHeaders conditions) {
         try {
-            UserI user = getSessionUser();
-            List<Attributes> series = dicomService.searchSeries(user, projectId, studyUID, null);
+            Attributes queryAttributes = DicomWebUtils.parseQueryParameters(queryParameters);
+            IncludeFields includeFields = IncludeFields.parse(
+                    DicomWebUtils.getQueryParameter(queryParameters, "includefield"));
+
+            ResourceValidator validator = dicomService.getStudyValidator(user, projectId, studyUID);
+            if (conditions.isNotModified(validator)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(validator.toHeaders()).build();
+            }
+
+            List<Attributes> series = dicomService.searchSeries(user, projectId, studyUID, queryAttributes,
+                    includeFields);
 
             String json = "[" + series.stream()
                     .map(attrs -> {
@@ -122,9 +190,13 @@ public class QidoRsApi extends AbstractXapiRestController {
                     .collect(Collectors.joining(",")) + "]";
 
             return ResponseEntity.ok()
+                    .headers(validator != null ? validator.toHeaders() : new HttpHeaders())
                     .contentType(MediaType.parseMediaType(DicomWebUtils.getDicomJsonContentType()))
                     .body(json);
 
+        } catch (IllegalArgumentException e) {
+            logger.debug("Rejecting series search in study {}: {}", studyUID, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         } catch (Exception e) {
             logger.error("Error searching series in study: " + studyUID, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
@@ -134,6 +206,9 @@ public class QidoRsApi extends AbstractXapiRestController {
     /**
      * Search for instances in a series
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances
+     * Returns the default instance attributes plus matching keys and includefield attributes;
+     * includefield=all returns the complete header without pixel data. Responses carry an ETag that
+     * follows the series' resources; a matching If-None-Match gets 304 without reading any file.
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances",
@@ -143,16 +218,42 @@ public class QidoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Search for instances in a series (QIDO-RS)", response = String.class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Instances found"),
+            @ApiResponse(code = 304, message = "Instances not modified"),
+            @ApiResponse(code = 400, message = "Invalid matching key"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Series not found"),
-            @ApiResponse(code = 500, message = "Internal error")
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Server busy, retry later")
     })
-    public ResponseEntity<String> searchInstances(@PathVariable String projectId,
-                                                  @PathVariable String studyUID,
-                                                  @PathVariable String seriesUID) {
+    public DeferredResult<ResponseEntity<String>> searchInstances(@PathVariable String projectId,
+                                                                  @PathVariable String studyUID,
+                                                                  @PathVariable String seriesUID,
+                                                                  @RequestParam Map<String, String> queryParameters,
+                                                                  HttpServletRequest request) {
+        UserI user = getSessionUser();
+        ConditionalHeaders conditions = ConditionalHeaders.of(request);
+        return executors.metadata("instance search",
+                () -> instanceSearchResponse(user, projectId, studyUID, seriesUID, queryParameters, conditions));
+    }
+
+    private ResponseEntity<String> instanceSearchResponse(UserI user,
+                                                          String projectId,
+                                                          String studyUID,
+                                                          String seriesUID,
+                                                          Map<String, String> queryParameters,
+                                                          ConditionalHeaders conditions) {
         try {
-            UserI user = getSessionUser();
-            List<Attributes> instances = dicomService.searchInstances(user, projectId, studyUID, seriesUID, null);
+            Attributes queryAttributes = DicomWebUtils.parseQueryParameters(queryParameters);
+            IncludeFields includeFields = IncludeFields.parse(
+                    DicomWebUtils.getQueryParameter(queryParameters, "includefield"));
+
+            ResourceValidator validator = dicomService.getSeriesValidator(user, projectId, studyUID, seriesUID);
+            if (conditions.isNotModified(validator)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(validator.toHeaders()).build();
+            }
+
+            List<Attributes> instances = dicomService.searchInstances(user, projectId, studyUID, seriesUID,
+                    queryAttributes, includeFields);
 
             String json = "[" + instances.stream()
                     .map(attrs -> {
@@ -166,12 +267,156 @@ public class QidoRsApi extends AbstractXapiRestController {
                     .collect(Collectors.joining(",")) + "]";
 
             return ResponseEntity.ok()
+                    .headers(validator != null ? validator.toHeaders() : new HttpHeaders())
                     .contentType(MediaType.parseMediaType(DicomWebUtils.getDicomJsonContentType()))
                     .body(json);
 
+        } catch (IllegalArgumentException e) {
+            logger.debug("Rejecting instance search in series {}: {}", seriesUID, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         } catch (Exception e) {
             logger.error("Error searching instances in series: " + seriesUID, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
+
+    /**
+     * Search for studies in every project the user can read
+     * GET /dicomweb/studies
+     * Takes the same parameters as the project study search. Studies shared into several projects
+     * are returned once, and each match carries a RetrieveURL under its project.
+     */
+    @XapiRequestMapping(
+            value = "/dicomweb/studies",
+            method = RequestMethod.GET,
+            produces = "application/dicom+json"
+    )
+    @ApiOperation(value = "Search for studies in all accessible projects (QIDO-RS)", response = String.class)
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Studies found"),
+            @ApiResponse(code = 400, message = "Invalid matching key"),
+            @ApiResponse(code = 401, message = "Must be authenticated"),
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Server busy, retry later")
+    })
+    public DeferredResult<ResponseEntity<String>> searchAllStudies(@RequestParam Map<String, String> queryParameters,
+                                                                   HttpServletRequest request) {
+        return searchAll("study", queryParameters, request, dicomService::searchAllStudies);
+    }
+
+    /**
+     * Search for series in every project the user can read
+     * GET /dicomweb/series
+     * Study-level keys (and an exact Modality) first narrow the candidate studies.
+     */
+    @XapiRequestMapping(
+            value = "/dicomweb/series",
+            method = RequestMethod.GET,
+            produces = "application/dicom+json"
+    )
+    @ApiOperation(value = "Search for series in all accessible projects (QIDO-RS)", response = String.class)
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Series found"),
+            @ApiResponse(code = 400, message = "Invalid matching key"),
+            @ApiResponse(code = 401, message = "Must be authenticated"),
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Server busy, retry later")
+    })
+    public DeferredResult<ResponseEntity<String>> searchAllSeries(@RequestParam Map<String, String> queryParameters,
+                                                                  HttpServletRequest request) {
+        return searchAll("series", queryParameters, request, dicomService::searchAllSeries);
+    }
+
+    /**
+     * Search for instances in every project the user can read
+     * GET /dicomweb/instances
+     * Instance headers are parsed, so queries should be narrowed with study or series keys and a limit.
+     */
+    @XapiRequestMapping(
+            value = "/dicomweb/instances",
+            method = RequestMethod.GET,
+            produces = "application/dicom+json"
+    )
+    @ApiOperation(value = "Search for instances in all accessible projects (QIDO-RS)", response = String.class)
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Instances found"),
+            @ApiResponse(code = 400, message = "Invalid matching key"),
+            @ApiResponse(code = 401, message = "Must be authenticated"),
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Server busy, retry later")
+    })
+    public DeferredResult<ResponseEntity<String>> searchAllInstances(@RequestParam Map<String, String> queryParameters,
+                                                                     HttpServletRequest request) {
+        return searchAll("instance", queryParameters, request, dicomService::searchAllInstances);
+    }
+
+    /**
+     * A search across all accessible projects
+     */
+    private interface RootSearch {
+        SearchResult search(UserI user, Attributes queryAttributes, int offset, int limit,
+                            IncludeFields includeFields);
+    }
+
+    private DeferredResult<ResponseEntity<String>> searchAll(String level, Map<String, String> queryParameters,
+                                                             HttpServletRequest request, RootSearch search) {
+        UserI user = getSessionUser();
+        // RetrieveURLs come back relative to the DICOMweb root, which is the parent of this resource
+        String requestUrl = request.getRequestURL().toString();
+        String retrieveBase = requestUrl.substring(0, requestUrl.lastIndexOf('/') + 1);
+        return executors.metadata(level + " search",
+                () -> rootSearchResponse(user, level, queryParameters, retrieveBase, search));
+    }
+
+    private ResponseEntity<String> rootSearchResponse(UserI user, String level, Map<String, String> queryParameters,
+                                                      String retrieveBase, RootSearch search) {
+        try {
+            Attributes queryAttributes = DicomWebUtils.parseQueryParameters(queryParameters);
+            int offset = DicomWebUtils.parseCountParameter(queryParameters, "offset");
+            int limit = DicomWebUtils.parseCountParameter(queryParameters, "limit");
+            IncludeFields includeFields = IncludeFields.parse(
+                    DicomWebUtils.getQueryParameter(queryParameters, "includefield"));
+            SearchResult result = search.search(user, queryAttributes, offset, limit, includeFields);
+            return searchResultResponse(result, level, retrieveBase, null);
+
+        } catch (IllegalArgumentException e) {
+            logger.debug("Rejecting {} search: {}", level, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        } catch (Exception e) {
+            logger.error("Error searching " + level + " across projects", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Serialize one page of matches, with a Warning header when more can be requested
+     *
+     * @param retrieveBase base for relative RetrieveURLs, or null if matches carry none
+     * @param validator    validators of the response, or null if it has none
+     */
+    private ResponseEntity<String> searchResultResponse(SearchResult result, String level, String retrieveBase,
+                                                        ResourceValidator validator) {
+        String json = "[" + result.getMatches().stream()
+                .map(attrs -> {
+                    try {
+                        if (retrieveBase != null && attrs.containsValue(Tag.RetrieveURL)) {
+                            attrs.setString(Tag.RetrieveURL, VR.UR, retrieveBase + attrs.getString(Tag.RetrieveURL));
+                        }
+                        return DicomWebUtils.toJson(attrs);
+                    } catch (Exception e) {
+                        logger.error("Error converting " + level + " to JSON", e);
+                        return "{}";
+                    }
+                })
+                .collect(Collectors.joining(",")) + "]";
+
+        HttpHeaders headers = validator != null ? validator.toHeaders() : new HttpHeaders();
+        if (result.hasMoreMatches()) {
+            headers.add(HttpHeaders.WARNING, MORE_RESULTS_WARNING);
+        }
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(MediaType.parseMediaType(DicomWebUtils.getDicomJsonContentType()))
+                .body(json);
+    }
 }
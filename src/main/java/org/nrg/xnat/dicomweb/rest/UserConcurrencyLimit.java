@@ -0,0 +1,58 @@
+package org.nrg.xnat.dicomweb.rest;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps how many requests of one kind each user may have admitted at once.
+ *
+ * Requests without a user share a single allowance. A limit of 0 or less admits everything.
+ */
+class UserConcurrencyLimit {
+
+    private static final String ANONYMOUS = "";
+
+    private final int maxPerUser;
+    private final ConcurrentHashMap<String, Integer> active = new ConcurrentHashMap<>();
+
+    UserConcurrencyLimit(int maxPerUser) {
+        this.maxPerUser = maxPerUser;
+    }
+
+    /**
+     * Admit a request for the user if it is below the limit; admitted requests must be released
+     */
+    boolean tryAcquire(String userKey) {
+        if (maxPerUser <= 0) {
+            return true;
+        }
+        boolean[] acquired = new boolean[1];
+        active.compute(keyOf(userKey), (key, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= maxPerUser) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    void release(String userKey) {
+        if (maxPerUser <= 0) {
+            return;
+        }
+        active.computeIfPresent(keyOf(userKey), (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Requests currently admitted for the user
+     */
+    int active(String userKey) {
+        Integer count = active.get(keyOf(userKey));
+        return count != null ? count : 0;
+    }
+
+    private static String keyOf(String userKey) {
+        return userKey != null ? userKey : ANONYMOUS;
+    }
+}
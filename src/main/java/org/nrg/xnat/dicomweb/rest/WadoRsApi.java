@@ -11,8 +11,15 @@ import org.nrg.xapi.rest.XapiRequestMapping;
 import org.nrg.xdat.security.services.RoleHolder;
 import org.nrg.xdat.security.services.UserManagementServiceI;
 import org.nrg.xft.security.UserI;
+import org.nrg.xnat.dicomweb.service.ConditionalHeaders;
+import org.nrg.xnat.dicomweb.service.InstanceFile;
+import org.nrg.xnat.dicomweb.service.InstanceFrames;
+import org.nrg.xnat.dicomweb.service.RenderParams;
+import org.nrg.xnat.dicomweb.service.ResourceValidator;
 import org.nrg.xnat.dicomweb.service.XnatDicomService;
+import org.nrg.xnat.dicomweb.utils.ByteRange;
 import org.nrg.xnat.dicomweb.utils.DicomWebUtils;
+import org.nrg.xnat.dicomweb.utils.MultipartRelated;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,11 +30,18 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.servlet.http.HttpServletRequest;
-import java.io.ByteArrayInputStream;
+import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -35,6 +49,11 @@ import java.util.stream.Collectors;
 /**
  * WADO-RS (Web Access to DICOM Objects over RESTful Services)
  * Implements DICOMweb retrieve endpoints
+ *
+ * Study and series downloads and study metadata are bulk requests, limited per user on the bulk pool of
+ * the plugin's {@link DicomWebExecutors}; downloads also write their body there. Series metadata runs on
+ * its metadata pool. Instances, frames, rendered images and thumbnails are interactive and served on the
+ * request thread.
  */
 @XapiRestController
 @Api("DICOMweb WADO-RS API")
@@ -42,19 +61,35 @@ public class WadoRsApi extends AbstractXapiRestController {
 
     private static final Logger logger = LoggerFactory.getLogger(WadoRsApi.class);
 
+    /**
+     * Instance files never change for their SOPInstanceUID; responses need authentication, so only
+     * private caches may keep them
+     */
+    private static final String IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+
     private final XnatDicomService dicomService;
+    private final DicomWebExecutors executors;
 
     @Autowired
     public WadoRsApi(final XnatDicomService dicomService,
+                     final DicomWebExecutors executors,
                      final UserManagementServiceI userManagementService,
                      final RoleHolder roleHolder) {
         super(userManagementService, roleHolder);
         this.dicomService = dicomService;
+        this.executors = executors;
     }
 
     /**
      * Retrieve a single DICOM instance
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}
+     *
+     * Instance bytes are fixed for a SOPInstanceUID, so responses carry a strong ETag and may be
+     * cached privately without revalidation. A single byte range is served as 206, honouring If-Range,
+     * so interrupted downloads can resume. A transfer-syntax in the Accept header is served from the
+     * transcode cache, transcoding on first request.
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}",
@@ -64,28 +99,62 @@ public class WadoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Retrieve a DICOM instance (WADO-RS)", response = byte[].class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Instance retrieved"),
+            @ApiResponse(code = 206, message = "Byte range of the instance retrieved"),
+            @ApiResponse(code = 304, message = "Instance not modified"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Instance not found"),
+            @ApiResponse(code = 406, message = "Transfer syntax not supported"),
+            @ApiResponse(code = 416, message = "Range not satisfiable"),
             @ApiResponse(code = 500, message = "Internal error")
     })
     public ResponseEntity<InputStreamResource> retrieveInstance(@PathVariable String projectId,
                                                                 @PathVariable String studyUID,
                                                                 @PathVariable String seriesUID,
-                                                                @PathVariable String instanceUID) {
+                                                                @PathVariable String instanceUID,
+                                                                HttpServletRequest request) {
         try {
             UserI user = getSessionUser();
-            InputStream stream = dicomService.retrieveInstance(user, projectId, studyUID, seriesUID, instanceUID);
+            InstanceFile instance = dicomService.locateInstance(user, projectId, studyUID, seriesUID, instanceUID);
 
-            if (stream == null) {
+            if (instance == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType("application/dicom"));
+            // The validator of a transcoded copy follows the source, so conditionals are answered first
+            String transferSyntax = requestedTransferSyntax(request);
+            ResourceValidator validator = variantValidator(instance, transferSyntax);
+            if (validator.isNotModified(request)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .headers(instanceHeaders(validator, transferSyntax))
+                        .build();
+            }
 
-            return ResponseEntity.ok()
+            if (transferSyntax != null) {
+                instance = dicomService.transcodeInstance(instance, transferSyntax);
+                if (instance == null) {
+                    return ResponseEntity.status(HttpStatus.NOT_ACCEPTABLE).build();
+                }
+            }
+
+            HttpHeaders headers = instanceHeaders(instance.getValidator(), transferSyntax);
+            ByteRange range = request != null && instance.getValidator().isRangeCurrent(request)
+                    ? ByteRange.parse(request.getHeader(HttpHeaders.RANGE), instance.getLength())
+                    : null;
+            if (range == null) {
+                headers.setContentLength(instance.getLength());
+                return ResponseEntity.ok()
+                        .headers(headers)
+                        .body(new InputStreamResource(new FileInputStream(instance.getFile())));
+            }
+
+            headers.set(HttpHeaders.CONTENT_RANGE, range.toContentRange());
+            if (!range.isSatisfiable()) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).headers(headers).build();
+            }
+            headers.setContentLength(range.getCount());
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
                     .headers(headers)
-                    .body(new InputStreamResource(stream));
+                    .body(new InputStreamResource(range.open(instance.getFile())));
 
         } catch (Exception e) {
             logger.error("Error retrieving instance: " + instanceUID, e);
@@ -93,9 +162,96 @@ public class WadoRsApi extends AbstractXapiRestController {
         }
     }
 
+    /**
+     * Check a single DICOM instance
+     * HEAD /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}
+     * Returns the size and validators of the instance from file metadata, without reading the file.
+     * With a transfer-syntax in Accept nothing is transcoded: the size is sent only when a transcoded
+     * copy is already stored.
+     */
+    @XapiRequestMapping(
+            value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}",
+            method = RequestMethod.HEAD,
+            produces = "application/dicom"
+    )
+    @ApiOperation(value = "Check a DICOM instance (WADO-RS)")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Instance exists"),
+            @ApiResponse(code = 304, message = "Instance not modified"),
+            @ApiResponse(code = 401, message = "Must be authenticated"),
+            @ApiResponse(code = 404, message = "Instance not found"),
+            @ApiResponse(code = 500, message = "Internal error")
+    })
+    public ResponseEntity<Void> headInstance(@PathVariable String projectId,
+                                             @PathVariable String studyUID,
+                                             @PathVariable String seriesUID,
+                                             @PathVariable String instanceUID,
+                                             HttpServletRequest request) {
+        try {
+            UserI user = getSessionUser();
+            InstanceFile instance = dicomService.locateInstance(user, projectId, studyUID, seriesUID, instanceUID);
+
+            if (instance == null) {
+                return ResponseEntity.notFound().build();
+            }
+
+            String transferSyntax = requestedTransferSyntax(request);
+            ResourceValidator validator = variantValidator(instance, transferSyntax);
+            HttpHeaders headers = instanceHeaders(validator, transferSyntax);
+            if (validator.isNotModified(request)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+            }
+
+            if (transferSyntax != null) {
+                // HEAD never transcodes; the length is known only when a copy is already stored
+                instance = dicomService.findTranscodedInstance(instance, transferSyntax);
+                if (instance == null) {
+                    return ResponseEntity.ok().headers(headers).build();
+                }
+            }
+            headers.setContentLength(instance.getLength());
+            return ResponseEntity.ok().headers(headers).build();
+
+        } catch (Exception e) {
+            logger.error("Error checking instance: " + instanceUID, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Content type, validators and caching headers shared by instance responses
+     */
+    private static HttpHeaders instanceHeaders(ResourceValidator validator, String transferSyntax) {
+        HttpHeaders headers = validator.toHeaders();
+        headers.setContentType(MediaType.parseMediaType(dicomContentType(transferSyntax)));
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        headers.setCacheControl(IMMUTABLE_CACHE_CONTROL);
+        return headers;
+    }
+
+    /**
+     * Validator of the instance in the transfer syntax, known without transcoding
+     */
+    private static ResourceValidator variantValidator(InstanceFile instance, String transferSyntax) {
+        return transferSyntax != null ? instance.getValidator().withVariant(transferSyntax) : instance.getValidator();
+    }
+
+    /**
+     * The transfer syntax named by the Accept header, or null to send instances as stored
+     */
+    private static String requestedTransferSyntax(HttpServletRequest request) {
+        return request != null ? DicomWebUtils.getRequestedTransferSyntax(request.getHeader(HttpHeaders.ACCEPT)) : null;
+    }
+
+    private static String dicomContentType(String transferSyntax) {
+        return transferSyntax != null ? "application/dicom; transfer-syntax=" + transferSyntax : "application/dicom";
+    }
+
     /**
      * Retrieve metadata for a single instance
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/metadata
+     * Answers a matching If-None-Match or If-Modified-Since with 304 before reading the instance
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/metadata",
@@ -105,6 +261,7 @@ public class WadoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Retrieve instance metadata (WADO-RS)", response = String.class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Metadata retrieved"),
+            @ApiResponse(code = 304, message = "Metadata not modified"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Instance not found"),
             @ApiResponse(code = 500, message = "Internal error")
@@ -112,9 +269,15 @@ public class WadoRsApi extends AbstractXapiRestController {
     public ResponseEntity<String> retrieveInstanceMetadata(@PathVariable String projectId,
                                                            @PathVariable String studyUID,
                                                            @PathVariable String seriesUID,
-                                                           @PathVariable String instanceUID) {
+                                                           @PathVariable String instanceUID,
+                                                           HttpServletRequest request) {
         try {
             UserI user = getSessionUser();
+            ResourceValidator validator = dicomService.getSeriesValidator(user, projectId, studyUID, seriesUID);
+            if (validator != null && validator.isNotModified(request)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(validator.toHeaders()).build();
+            }
+
             Attributes attrs = dicomService.retrieveMetadata(user, projectId, studyUID, seriesUID, instanceUID);
 
             if (attrs == null) {
@@ -124,6 +287,7 @@ public class WadoRsApi extends AbstractXapiRestController {
             String json = "[" + DicomWebUtils.toJson(attrs) + "]";
 
             return ResponseEntity.ok()
+                    .headers(validator != null ? validator.toHeaders() : new HttpHeaders())
                     .contentType(MediaType.parseMediaType(DicomWebUtils.getDicomJsonContentType()))
                     .body(json);
 
@@ -136,6 +300,7 @@ public class WadoRsApi extends AbstractXapiRestController {
     /**
      * Retrieve all instances in a series as multipart
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}
+     * Carries the series' weak ETag; a matching If-None-Match gets 304 without opening any file
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}",
@@ -145,31 +310,40 @@ public class WadoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Retrieve all instances in a series (WADO-RS)", response = byte[].class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Series retrieved"),
+            @ApiResponse(code = 304, message = "Series not modified"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Series not found"),
-            @ApiResponse(code = 500, message = "Internal error")
+            @ApiResponse(code = 406, message = "Transfer syntax not supported"),
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Too many bulk requests, retry later")
     })
-    public ResponseEntity<InputStreamResource> retrieveSeries(@PathVariable String projectId,
-                                                              @PathVariable String studyUID,
-                                                              @PathVariable String seriesUID) {
+    public DeferredResult<ResponseEntity<InputStreamResource>> retrieveSeries(@PathVariable String projectId,
+                                                                              @PathVariable String studyUID,
+                                                                              @PathVariable String seriesUID,
+                                                                              HttpServletRequest request,
+                                                                              HttpServletResponse response) {
+        UserI user = getSessionUser();
+        String transferSyntax = requestedTransferSyntax(request);
+        return admitBulk(user, request, "series retrieval", true,
+                () -> variant(dicomService.getSeriesValidator(user, projectId, studyUID, seriesUID), transferSyntax),
+                validator -> writeBody(
+                        seriesResponse(user, projectId, studyUID, seriesUID, transferSyntax, validator), response));
+    }
+
+    private ResponseEntity<InputStreamResource> seriesResponse(UserI user,
+                                                               String projectId,
+                                                               String studyUID,
+                                                               String seriesUID,
+                                                               String transferSyntax,
+                                                               ResourceValidator validator) {
         try {
-            UserI user = getSessionUser();
-            List<InputStream> streams = dicomService.retrieveSeries(user, projectId, studyUID, seriesUID);
+            List<InstanceFile> instances = dicomService.locateSeriesInstances(user, projectId, studyUID, seriesUID);
 
-            if (streams == null || streams.isEmpty()) {
+            if (instances == null || instances.isEmpty()) {
                 return ResponseEntity.notFound().build();
             }
 
-            // Create multipart response
-            String boundary = UUID.randomUUID().toString();
-            ByteArrayOutputStream multipart = createMultipartResponse(streams, boundary);
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(DicomWebUtils.getMultipartContentType(boundary)));
-
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(new InputStreamResource(new ByteArrayInputStream(multipart.toByteArray())));
+            return multipartResponse(instances, validator, transferSyntax);
 
         } catch (Exception e) {
             logger.error("Error retrieving series: " + seriesUID, e);
@@ -181,7 +355,8 @@ public class WadoRsApi extends AbstractXapiRestController {
      * Retrieve study metadata
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/metadata
      *
-     * Returns metadata for all instances in the study (per DICOM PS3.18 spec)
+     * Returns metadata for all instances in the study (per DICOM PS3.18 spec). A matching
+     * If-None-Match or If-Modified-Since is answered with 304 before any instance is read.
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/metadata",
@@ -191,18 +366,30 @@ public class WadoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Retrieve study metadata (WADO-RS)", response = String.class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Study metadata retrieved"),
+            @ApiResponse(code = 304, message = "Study metadata not modified"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Study not found"),
-            @ApiResponse(code = 500, message = "Internal error")
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Too many bulk requests, retry later")
     })
-    public ResponseEntity<String> retrieveStudyMetadata(@PathVariable String projectId,
-                                                         @PathVariable String studyUID) {
+    public DeferredResult<ResponseEntity<String>> retrieveStudyMetadata(@PathVariable String projectId,
+                                                                        @PathVariable String studyUID,
+                                                                        HttpServletRequest request) {
+        UserI user = getSessionUser();
+        return admitBulk(user, request, "study metadata", false,
+                () -> dicomService.getStudyValidator(user, projectId, studyUID),
+                validator -> studyMetadataResponse(user, projectId, studyUID, validator));
+    }
+
+    private ResponseEntity<String> studyMetadataResponse(UserI user,
+                                                         String projectId,
+                                                         String studyUID,
+                                                         ResourceValidator validator) {
         logger.info("=== retrieveStudyMetadata called ===");
         logger.info("Project ID: {}", projectId);
         logger.info("Study UID: {}", studyUID);
 
         try {
-            UserI user = getSessionUser();
             logger.info("Processing study metadata request");
 
             // Return metadata for all instances in the study
@@ -228,6 +415,7 @@ public class WadoRsApi extends AbstractXapiRestController {
 
             logger.info("Returning JSON response with {} characters", json.length());
             return ResponseEntity.ok()
+                    .headers(validator != null ? validator.toHeaders() : new HttpHeaders())
                     .contentType(MediaType.parseMediaType(DicomWebUtils.getDicomJsonContentType()))
                     .body(json);
 
@@ -240,6 +428,7 @@ public class WadoRsApi extends AbstractXapiRestController {
     /**
      * Retrieve all instances in a study as multipart
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}
+     * Carries the study's weak ETag; a matching If-None-Match gets 304 without opening any file
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}",
@@ -249,41 +438,47 @@ public class WadoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Retrieve all instances in a study (WADO-RS)", response = byte[].class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Study retrieved"),
+            @ApiResponse(code = 304, message = "Study not modified"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Study not found"),
-            @ApiResponse(code = 500, message = "Internal error")
+            @ApiResponse(code = 406, message = "Transfer syntax not supported"),
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Too many bulk requests, retry later")
     })
-    public ResponseEntity<InputStreamResource> retrieveStudy(@PathVariable String projectId,
-                                                             @PathVariable String studyUID) {
+    public DeferredResult<ResponseEntity<InputStreamResource>> retrieveStudy(@PathVariable String projectId,
+                                                                             @PathVariable String studyUID,
+                                                                             HttpServletRequest request,
+                                                                             HttpServletResponse response) {
+        UserI user = getSessionUser();
+        String transferSyntax = requestedTransferSyntax(request);
+        return admitBulk(user, request, "study retrieval", true,
+                () -> variant(dicomService.getStudyValidator(user, projectId, studyUID), transferSyntax),
+                validator -> writeBody(studyResponse(user, projectId, studyUID, transferSyntax, validator), response));
+    }
+
+    private ResponseEntity<InputStreamResource> studyResponse(UserI user,
+                                                              String projectId,
+                                                              String studyUID,
+                                                              String transferSyntax,
+                                                              ResourceValidator validator) {
         logger.info("=== retrieveStudy called ===");
         logger.info("Project ID: {}", projectId);
         logger.info("Study UID: {}", studyUID);
 
         try {
-            UserI user = getSessionUser();
             logger.info("Processing study retrieval request");
 
             // Return DICOM instances as multipart
-            List<InputStream> streams = dicomService.retrieveStudy(user, projectId, studyUID);
+            List<InstanceFile> instances = dicomService.locateStudyInstances(user, projectId, studyUID);
 
-            logger.info("Retrieved {} streams", streams != null ? streams.size() : 0);
+            logger.info("Located {} instances", instances != null ? instances.size() : 0);
 
-            if (streams == null || streams.isEmpty()) {
-                logger.warn("No streams found for study {}", studyUID);
+            if (instances == null || instances.isEmpty()) {
+                logger.warn("No instances found for study {}", studyUID);
                 return ResponseEntity.notFound().build();
             }
 
-            // Create multipart response
-            String boundary = UUID.randomUUID().toString();
-            ByteArrayOutputStream multipart = createMultipartResponse(streams, boundary);
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(DicomWebUtils.getMultipartContentType(boundary)));
-
-            logger.info("Returning multipart response with {} bytes", multipart.size());
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(new InputStreamResource(new ByteArrayInputStream(multipart.toByteArray())));
+            return multipartResponse(instances, validator, transferSyntax);
 
         } catch (Exception e) {
             logger.error("Error retrieving study: " + studyUID, e);
@@ -294,6 +489,7 @@ public class WadoRsApi extends AbstractXapiRestController {
     /**
      * Retrieve rendered instance (JPEG thumbnail)
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/rendered
+     * Optional query parameters: viewport=vw,vh[,sx,sy,sw,sh], quality=1-100, window=center,width
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/rendered",
@@ -303,6 +499,7 @@ public class WadoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Retrieve rendered instance as JPEG (WADO-RS)", response = byte[].class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Rendered image retrieved"),
+            @ApiResponse(code = 400, message = "Invalid rendering parameters"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Instance not found"),
             @ApiResponse(code = 500, message = "Internal error")
@@ -310,10 +507,22 @@ public class WadoRsApi extends AbstractXapiRestController {
     public ResponseEntity<byte[]> retrieveInstanceRendered(@PathVariable String projectId,
                                                            @PathVariable String studyUID,
                                                            @PathVariable String seriesUID,
-                                                           @PathVariable String instanceUID) {
+                                                           @PathVariable String instanceUID,
+                                                           @RequestParam(value = "viewport", required = false) String viewport,
+                                                           @RequestParam(value = "quality", required = false) String quality,
+                                                           @RequestParam(value = "window", required = false) String window) {
+        RenderParams renderParams;
+        try {
+            renderParams = RenderParams.parse(viewport, quality, window);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Rejecting rendered request for {}: {}", instanceUID, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+
         try {
             UserI user = getSessionUser();
-            byte[] renderedImage = dicomService.retrieveRenderedInstance(user, projectId, studyUID, seriesUID, instanceUID);
+            byte[] renderedImage = dicomService.retrieveRenderedInstance(user, projectId, studyUID, seriesUID,
+                    instanceUID, renderParams);
 
             if (renderedImage == null) {
                 return ResponseEntity.notFound().build();
@@ -332,9 +541,66 @@ public class WadoRsApi extends AbstractXapiRestController {
         }
     }
 
+    /**
+     * Retrieve a thumbnail of a study (middle slice of its largest series)
+     * GET /dicomweb/projects/{projectId}/studies/{studyUID}/thumbnail
+     */
+    @XapiRequestMapping(
+            value = "/dicomweb/projects/{projectId}/studies/{studyUID}/thumbnail",
+            method = RequestMethod.GET,
+            produces = "image/jpeg"
+    )
+    @ApiOperation(value = "Retrieve study thumbnail as JPEG", response = byte[].class)
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Thumbnail retrieved"),
+            @ApiResponse(code = 401, message = "Must be authenticated"),
+            @ApiResponse(code = 404, message = "Study not found"),
+            @ApiResponse(code = 500, message = "Internal error")
+    })
+    public ResponseEntity<byte[]> retrieveStudyThumbnail(@PathVariable String projectId,
+                                                         @PathVariable String studyUID) {
+        try {
+            UserI user = getSessionUser();
+            return thumbnailResponse(dicomService.retrieveStudyThumbnail(user, projectId, studyUID));
+        } catch (Exception e) {
+            logger.error("Error retrieving study thumbnail: " + studyUID, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Retrieve a thumbnail of a series (middle slice by InstanceNumber)
+     * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/thumbnail
+     */
+    @XapiRequestMapping(
+            value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/thumbnail",
+            method = RequestMethod.GET,
+            produces = "image/jpeg"
+    )
+    @ApiOperation(value = "Retrieve series thumbnail as JPEG", response = byte[].class)
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Thumbnail retrieved"),
+            @ApiResponse(code = 401, message = "Must be authenticated"),
+            @ApiResponse(code = 404, message = "Series not found"),
+            @ApiResponse(code = 500, message = "Internal error")
+    })
+    public ResponseEntity<byte[]> retrieveSeriesThumbnail(@PathVariable String projectId,
+                                                          @PathVariable String studyUID,
+                                                          @PathVariable String seriesUID) {
+        try {
+            UserI user = getSessionUser();
+            return thumbnailResponse(dicomService.retrieveSeriesThumbnail(user, projectId, studyUID, seriesUID));
+        } catch (Exception e) {
+            logger.error("Error retrieving series thumbnail: " + seriesUID, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     /**
      * Retrieve specific frame(s) from an instance
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/frames/{frameList}
+     * Multiple frames are written to the servlet response on the request thread one part at a time, in
+     * request order, as each is decoded
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/frames/{frameList}",
@@ -348,45 +614,131 @@ public class WadoRsApi extends AbstractXapiRestController {
             @ApiResponse(code = 404, message = "Instance or frame not found"),
             @ApiResponse(code = 500, message = "Internal error")
     })
-    public ResponseEntity<InputStreamResource> retrieveFrames(@PathVariable String projectId,
-                                                              @PathVariable String studyUID,
-                                                              @PathVariable String seriesUID,
-                                                              @PathVariable String instanceUID,
-                                                              @PathVariable String frameList,
-                                                              HttpServletRequest request) {
+    public ResponseEntity<byte[]> retrieveFrames(@PathVariable String projectId,
+                                                 @PathVariable String studyUID,
+                                                 @PathVariable String seriesUID,
+                                                 @PathVariable String instanceUID,
+                                                 @PathVariable String frameList,
+                                                 HttpServletRequest request,
+                                                 HttpServletResponse response) {
         try {
             UserI user = getSessionUser();
-            List<byte[]> frames = dicomService.retrieveFrames(user, projectId, studyUID, seriesUID, instanceUID, frameList);
+            InstanceFrames frames = dicomService.locateFrames(user, projectId, studyUID, seriesUID, instanceUID, frameList);
 
-            if (frames == null || frames.isEmpty()) {
+            if (frames == null || frames.getFrameCount() == 0) {
                 return ResponseEntity.notFound().build();
             }
 
             // Single frame - return as application/octet-stream
-            if (frames.size() == 1) {
+            if (frames.getFrameCount() == 1) {
+                List<byte[]> frame = new ArrayList<>(1);
+                frames.writeTo(frame::add);
+                if (frame.isEmpty()) {
+                    return ResponseEntity.notFound().build();
+                }
+
                 HttpHeaders headers = new HttpHeaders();
                 headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+                headers.setContentLength(frame.get(0).length);
+
+                return ResponseEntity.ok()
+                        .headers(headers)
+                        .body(frame.get(0));
+            }
+
+            // Multiple frames - stream as multipart/related, each part as soon as its frame is ready
+            String boundary = UUID.randomUUID().toString();
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType("multipart/related; type=\"application/octet-stream\"; boundary=" + boundary);
+            OutputStream out = response.getOutputStream();
+            try {
+                frames.writeTo(frame -> {
+                    writeFramePart(out, boundary, MediaType.APPLICATION_OCTET_STREAM_VALUE, frame);
+                    out.flush();
+                });
+                out.write(("--" + boundary + "--\r\n").getBytes());
+                out.flush();
+            } catch (IOException e) {
+                // Parts already sent cannot be taken back; the missing close delimiter shows the truncation
+                logger.debug("Frame response for instance {} ended early: {}", instanceUID, e.getMessage());
+            }
+            // The body has been written, which Spring MVC takes as a complete response
+            return null;
+
+        } catch (Exception e) {
+            logger.error("Error retrieving frames from instance: " + instanceUID, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Retrieve specific frame(s) from an instance rendered as JPEG
+     * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/frames/{frameList}/rendered
+     * Accepts the same viewport, quality and window parameters as the instance /rendered resource
+     */
+    @XapiRequestMapping(
+            value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}/frames/{frameList}/rendered",
+            method = RequestMethod.GET,
+            produces = {"image/jpeg", "multipart/related"}
+    )
+    @ApiOperation(value = "Retrieve rendered frame(s) from instance as JPEG (WADO-RS)", response = byte[].class)
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Rendered frame(s) retrieved"),
+            @ApiResponse(code = 400, message = "Invalid rendering parameters"),
+            @ApiResponse(code = 401, message = "Must be authenticated"),
+            @ApiResponse(code = 404, message = "Instance or frame not found"),
+            @ApiResponse(code = 500, message = "Internal error")
+    })
+    public ResponseEntity<byte[]> retrieveRenderedFrames(@PathVariable String projectId,
+                                                         @PathVariable String studyUID,
+                                                         @PathVariable String seriesUID,
+                                                         @PathVariable String instanceUID,
+                                                         @PathVariable String frameList,
+                                                         @RequestParam(value = "viewport", required = false) String viewport,
+                                                         @RequestParam(value = "quality", required = false) String quality,
+                                                         @RequestParam(value = "window", required = false) String window) {
+        RenderParams renderParams;
+        try {
+            renderParams = RenderParams.parse(viewport, quality, window);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Rejecting rendered frames request for {}: {}", instanceUID, e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+
+        try {
+            UserI user = getSessionUser();
+            List<byte[]> frames = dicomService.retrieveRenderedFrames(user, projectId, studyUID, seriesUID,
+                    instanceUID, frameList, renderParams);
+
+            if (frames == null || frames.isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+
+            // Single frame - return the JPEG directly
+            if (frames.size() == 1) {
+                HttpHeaders headers = new HttpHeaders();
+                headers.setContentType(MediaType.IMAGE_JPEG);
 
-                ByteArrayInputStream stream = new ByteArrayInputStream(frames.get(0));
                 return ResponseEntity.ok()
                         .headers(headers)
-                        .body(new InputStreamResource(stream));
+                        .body(frames.get(0));
             }
 
             // Multiple frames - return as multipart/related
             String boundary = UUID.randomUUID().toString();
-            ByteArrayOutputStream multipart = createMultipartFrameResponse(frames, boundary);
+            ByteArrayOutputStream multipart = createMultipartFrameResponse(frames, boundary,
+                    MediaType.IMAGE_JPEG_VALUE);
 
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.parseMediaType(
-                    "multipart/related; type=\"application/octet-stream\"; boundary=" + boundary));
+                    "multipart/related; type=\"image/jpeg\"; boundary=" + boundary));
 
             return ResponseEntity.ok()
                     .headers(headers)
-                    .body(new InputStreamResource(new ByteArrayInputStream(multipart.toByteArray())));
+                    .body(multipart.toByteArray());
 
         } catch (Exception e) {
-            logger.error("Error retrieving frames from instance: " + instanceUID, e);
+            logger.error("Error retrieving rendered frames from instance: " + instanceUID, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
@@ -394,6 +746,7 @@ public class WadoRsApi extends AbstractXapiRestController {
     /**
      * Retrieve metadata for all instances in a series
      * GET /dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/metadata
+     * Answers a matching If-None-Match or If-Modified-Since with 304 before any instance is read
      */
     @XapiRequestMapping(
             value = "/dicomweb/projects/{projectId}/studies/{studyUID}/series/{seriesUID}/metadata",
@@ -403,15 +756,33 @@ public class WadoRsApi extends AbstractXapiRestController {
     @ApiOperation(value = "Retrieve metadata for all instances in a series (WADO-RS)", response = String.class)
     @ApiResponses({
             @ApiResponse(code = 200, message = "Metadata retrieved"),
+            @ApiResponse(code = 304, message = "Metadata not modified"),
             @ApiResponse(code = 401, message = "Must be authenticated"),
             @ApiResponse(code = 404, message = "Series not found"),
-            @ApiResponse(code = 500, message = "Internal error")
+            @ApiResponse(code = 500, message = "Internal error"),
+            @ApiResponse(code = 503, message = "Server busy, retry later")
     })
-    public ResponseEntity<String> retrieveSeriesMetadata(@PathVariable String projectId,
-                                                         @PathVariable String studyUID,
-                                                         @PathVariable String seriesUID) {
+    public DeferredResult<ResponseEntity<String>> retrieveSeriesMetadata(@PathVariable String projectId,
+                                                                         @PathVariable String studyUID,
+                                                                         @PathVariable String seriesUID,
+                                                                         HttpServletRequest request) {
+        UserI user = getSessionUser();
+        ConditionalHeaders conditions = ConditionalHeaders.of(request);
+        return executors.metadata("series metadata",
+                () -> seriesMetadataResponse(user, projectId, studyUID, seriesUID, conditions));
+    }
+
+    private ResponseEntity<String> seriesMetadataResponse(UserI user,
+                                                          String projectId,
+                                                          String studyUID,
+                                                          String seriesUID,
+                                                          ConditionalHeaders conditions) {
         try {
-            UserI user = getSessionUser();
+            ResourceValidator validator = dicomService.getSeriesValidator(user, projectId, studyUID, seriesUID);
+            if (conditions.isNotModified(validator)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(validator.toHeaders()).build();
+            }
+
             List<Attributes> instances = dicomService.searchInstances(user, projectId, studyUID, seriesUID, null);
 
             if (instances == null || instances.isEmpty()) {
@@ -430,6 +801,7 @@ public class WadoRsApi extends AbstractXapiRestController {
                     .collect(Collectors.joining(",")) + "]";
 
             return ResponseEntity.ok()
+                    .headers(validator != null ? validator.toHeaders() : new HttpHeaders())
                     .contentType(MediaType.parseMediaType(DicomWebUtils.getDicomJsonContentType()))
                     .body(json);
 
@@ -440,47 +812,185 @@ public class WadoRsApi extends AbstractXapiRestController {
     }
 
     /**
-     * Create a multipart/related response with DICOM instances
+     * Finds the validators of a bulk response
      */
-    private ByteArrayOutputStream createMultipartResponse(List<InputStream> streams, String boundary) throws Exception {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private interface ValidatorLookup {
+        ResourceValidator find() throws Exception;
+    }
+
+    /**
+     * Builds a bulk response once admitted, given its validators
+     */
+    private interface BulkResponse<T> {
+        ResponseEntity<T> build(ResourceValidator validator) throws IOException;
+    }
+
+    /**
+     * Hand a bulk request to the bulk pool. Revalidations are answered here on the container thread,
+     * so a 304 never takes one of the user's bulk slots and only work that builds a body is admitted.
+     *
+     * @param download whether the response writes its own body on the bulk pool
+     */
+    private <T> DeferredResult<ResponseEntity<T>> admitBulk(UserI user, HttpServletRequest request,
+                                                            String description, boolean download,
+                                                            ValidatorLookup lookup, BulkResponse<T> response) {
+        String limitKey = limitKey(user, request);
+        ConditionalHeaders conditions = ConditionalHeaders.of(request);
+        if (conditions.isEmpty()) {
+            return download
+                    ? executors.bulkDownload(limitKey, description, () -> response.build(lookup.find()))
+                    : executors.bulk(limitKey, description, () -> response.build(lookup.find()));
+        }
+
+        ResourceValidator validator;
+        try {
+            validator = lookup.find();
+        } catch (Exception e) {
+            logger.error("Error validating " + description, e);
+            return DicomWebExecutors.completed(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).<T>build());
+        }
+        if (conditions.isNotModified(validator)) {
+            return DicomWebExecutors.completed(ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .headers(validator.toHeaders()).<T>build());
+        }
+        return download
+                ? executors.bulkDownload(limitKey, description, () -> response.build(validator))
+                : executors.bulk(limitKey, description, () -> response.build(validator));
+    }
+
+    /**
+     * Write a bulk download's body to the client on the calling bulk pool thread, rather than leaving it
+     * to the message converters on a container thread after the async dispatch
+     *
+     * @return null once the body has been written, which Spring MVC takes as a complete response; a
+     *         response without a body is returned for Spring MVC to send
+     */
+    private static ResponseEntity<InputStreamResource> writeBody(ResponseEntity<InputStreamResource> entity,
+                                                                 HttpServletResponse response) throws IOException {
+        if (entity.getBody() == null) {
+            return entity;
+        }
+        response.setStatus(entity.getStatusCodeValue());
+        entity.getHeaders().forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+        try (InputStream body = entity.getBody().getInputStream()) {
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[BODY_BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        }
+        return null;
+    }
+
+    private static ResourceValidator variant(ResourceValidator validator, String transferSyntax) {
+        return validator != null && transferSyntax != null ? validator.withVariant(transferSyntax) : validator;
+    }
+
+    /**
+     * Key of the bulk allowance: the user's login, or the client address for guests, so anonymous
+     * clients do not share one allowance
+     */
+    private static String limitKey(UserI user, HttpServletRequest request) {
+        if (user != null && !user.isGuest()) {
+            return user.getLogin();
+        }
+        return "address:" + (request != null ? request.getRemoteAddr() : "");
+    }
+
+    /**
+     * Wrap a thumbnail in a JPEG response, or 404 if none could be rendered
+     */
+    private ResponseEntity<byte[]> thumbnailResponse(byte[] thumbnail) {
+        if (thumbnail == null) {
+            return ResponseEntity.notFound().build();
+        }
 
-        for (InputStream stream : streams) {
-            output.write(("--" + boundary + "\r\n").getBytes());
-            output.write("Content-Type: application/dicom\r\n".getBytes());
-            output.write("\r\n".getBytes());
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.IMAGE_JPEG);
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = stream.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(thumbnail);
+    }
+
+    /**
+     * Stream instance files as multipart/related with the exact Content-Length, opening each file
+     * only when its part is sent. Instances requested in another transfer syntax are transcoded, or
+     * taken from the transcode cache, one part at a time and sent without a Content-Length.
+     */
+    private ResponseEntity<InputStreamResource> multipartResponse(List<InstanceFile> instances,
+                                                                  ResourceValidator validator,
+                                                                  String transferSyntax) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        if (transferSyntax != null) {
+            // The first instance shows whether the syntax can be produced before the response starts
+            if (dicomService.transcodeInstance(instances.get(0), transferSyntax) == null) {
+                return ResponseEntity.status(HttpStatus.NOT_ACCEPTABLE).build();
             }
+            List<MultipartRelated.PartSource> parts = instances.stream()
+                    .map(instance -> (MultipartRelated.PartSource) () -> openTranscoded(instance, transferSyntax))
+                    .collect(Collectors.toList());
 
-            output.write("\r\n".getBytes());
-            stream.close();
+            HttpHeaders headers = validator != null ? validator.toHeaders() : new HttpHeaders();
+            headers.setContentType(MediaType.parseMediaType(
+                    DicomWebUtils.getMultipartContentType(boundary, transferSyntax)));
+            headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+
+            logger.info("Streaming {} instances in transfer syntax {}", parts.size(), transferSyntax);
+            return ResponseEntity.ok()
+                    .headers(headers)
+                    .body(new InputStreamResource(
+                            MultipartRelated.stream(boundary, dicomContentType(transferSyntax), parts)));
         }
 
-        output.write(("--" + boundary + "--\r\n").getBytes());
+        List<File> files = instances.stream().map(InstanceFile::getFile).collect(Collectors.toList());
+        MultipartRelated body = new MultipartRelated(boundary, "application/dicom", files);
 
-        return output;
+        HttpHeaders headers = validator != null ? validator.toHeaders() : new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(DicomWebUtils.getMultipartContentType(boundary)));
+        headers.setContentLength(body.getContentLength());
+
+        logger.info("Streaming {} instances as {} bytes", files.size(), body.getContentLength());
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(new InputStreamResource(body.open()));
+    }
+
+    private InputStream openTranscoded(InstanceFile instance, String transferSyntax) throws IOException {
+        InstanceFile transcoded = dicomService.transcodeInstance(instance, transferSyntax);
+        if (transcoded == null) {
+            throw new IOException("Unable to transcode " + instance.getFile().getName() + " to " + transferSyntax);
+        }
+        return new FileInputStream(transcoded.getFile());
     }
 
     /**
      * Create a multipart/related response with frame data
      */
-    private ByteArrayOutputStream createMultipartFrameResponse(List<byte[]> frames, String boundary) throws Exception {
+    private ByteArrayOutputStream createMultipartFrameResponse(List<byte[]> frames, String boundary,
+                                                               String contentType) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
 
         for (byte[] frameData : frames) {
-            output.write(("--" + boundary + "\r\n").getBytes());
-            output.write("Content-Type: application/octet-stream\r\n".getBytes());
-            output.write("\r\n".getBytes());
-            output.write(frameData);
-            output.write("\r\n".getBytes());
+            writeFramePart(output, boundary, contentType, frameData);
         }
 
         output.write(("--" + boundary + "--\r\n").getBytes());
 
         return output;
     }
+
+    /**
+     * Write one part of a multipart/related frame response
+     */
+    private static void writeFramePart(OutputStream output, String boundary, String contentType,
+                                       byte[] frameData) throws IOException {
+        output.write(("--" + boundary + "\r\n").getBytes());
+        output.write(("Content-Type: " + contentType + "\r\n").getBytes());
+        output.write("\r\n".getBytes());
+        output.write(frameData);
+        output.write("\r\n".getBytes());
+    }
 }
@@ -0,0 +1,63 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The conditional headers (If-None-Match and If-Modified-Since) of a request.
+ *
+ * They are read on the container thread, so work handed to a plugin pool can evaluate them without
+ * touching the request, which the container may recycle once the handler returns.
+ */
+public final class ConditionalHeaders {
+
+    /**
+     * A request without conditional headers
+     */
+    public static final ConditionalHeaders NONE = new ConditionalHeaders(null, -1L);
+
+    private final String ifNoneMatch;
+    private final long ifModifiedSince;
+
+    private ConditionalHeaders(String ifNoneMatch, long ifModifiedSince) {
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    /**
+     * The conditional headers of the request; a null request has none
+     */
+    public static ConditionalHeaders of(HttpServletRequest request) {
+        if (request == null) {
+            return NONE;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        } catch (IllegalArgumentException e) {
+            // A malformed date is ignored (RFC 7232 Section 3.3)
+            ifModifiedSince = -1L;
+        }
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch == null && ifModifiedSince < 0) {
+            return NONE;
+        }
+        return new ConditionalHeaders(ifNoneMatch, ifModifiedSince);
+    }
+
+    /**
+     * Whether the request carries no conditional headers, so no validator can match it
+     */
+    public boolean isEmpty() {
+        return (ifNoneMatch == null || ifNoneMatch.trim().isEmpty()) && ifModifiedSince < 0;
+    }
+
+    /**
+     * Whether a client holding a response with the validator's ETag and date can reuse it; a null
+     * validator never matches
+     */
+    public boolean isNotModified(ResourceValidator validator) {
+        return validator != null && !isEmpty() && validator.isNotModified(ifNoneMatch, ifModifiedSince);
+    }
+}
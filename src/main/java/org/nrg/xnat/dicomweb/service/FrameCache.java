@@ -0,0 +1,196 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * LRU cache of decoded frames held outside the Java heap.
+ *
+ * Frame bytes live in direct {@link ByteBuffer} slabs that are carved into fixed-size pages.
+ * An entry occupies as many pages as it needs; evicting it returns the pages to a free list,
+ * so the off-heap footprint never exceeds the configured capacity and steady-state caching
+ * allocates nothing but the small on-heap index entries.
+ */
+class FrameCache {
+
+    static final int PAGE_SIZE = 64 * 1024;
+    private static final int PAGES_PER_SLAB = 64;
+
+    /**
+     * Identifies a decoded frame. The project/study/series path the instance was resolved
+     * through is part of the key, so a hit never bypasses the lookup that authorized it.
+     */
+    static final class Key {
+
+        private final String scope;
+        private final String sopInstanceUID;
+        private final int frameIndex;
+        private final String transferSyntaxUID;
+
+        Key(String scope, String sopInstanceUID, int frameIndex, String transferSyntaxUID) {
+            this.scope = scope;
+            this.sopInstanceUID = sopInstanceUID;
+            this.frameIndex = frameIndex;
+            this.transferSyntaxUID = transferSyntaxUID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return frameIndex == other.frameIndex
+                    && Objects.equals(scope, other.scope)
+                    && Objects.equals(sopInstanceUID, other.sopInstanceUID)
+                    && Objects.equals(transferSyntaxUID, other.transferSyntaxUID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(scope, sopInstanceUID, frameIndex, transferSyntaxUID);
+        }
+    }
+
+    private static final class Entry {
+
+        private final int[] pages;
+        private final int length;
+
+        private Entry(int[] pages, int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+    }
+
+    private final int totalPages;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final Deque<Integer> freePages = new ArrayDeque<>();
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private int allocatedPages;
+    private long hits;
+    private long misses;
+
+    FrameCache(long capacityBytes) {
+        this.totalPages = (int) Math.min(Integer.MAX_VALUE, Math.max(0, capacityBytes) / PAGE_SIZE);
+    }
+
+    boolean isEnabled() {
+        return totalPages > 0;
+    }
+
+    /**
+     * Return a copy of the cached frame, or null on a miss
+     */
+    synchronized byte[] get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+
+        byte[] frame = new byte[entry.length];
+        int offset = 0;
+        for (int page : entry.pages) {
+            int chunk = Math.min(PAGE_SIZE, entry.length - offset);
+            pageBuffer(page).get(frame, offset, chunk);
+            offset += chunk;
+        }
+        return frame;
+    }
+
+    /**
+     * Cache a frame, evicting least recently used frames to make room.
+     * Frames larger than a quarter of the cache are not cached.
+     */
+    synchronized void put(Key key, byte[] frame) {
+        if (frame == null || !isEnabled()) {
+            return;
+        }
+        int pagesNeeded = Math.max(1, (frame.length + PAGE_SIZE - 1) / PAGE_SIZE);
+        if (pagesNeeded > totalPages / 4) {
+            return;
+        }
+
+        release(entries.remove(key));
+        while (availablePages() < pagesNeeded && !entries.isEmpty()) {
+            Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+            release(eldest.next().getValue());
+            eldest.remove();
+        }
+
+        int[] pages = new int[pagesNeeded];
+        int offset = 0;
+        for (int i = 0; i < pagesNeeded; i++) {
+            pages[i] = allocatePage();
+            int chunk = Math.min(PAGE_SIZE, frame.length - offset);
+            pageBuffer(pages[i]).put(frame, offset, chunk);
+            offset += chunk;
+        }
+        entries.put(key, new Entry(pages, frame.length));
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            release(entry);
+        }
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    private int availablePages() {
+        return freePages.size() + (totalPages - allocatedPages);
+    }
+
+    private int allocatePage() {
+        if (!freePages.isEmpty()) {
+            return freePages.pop();
+        }
+        int page = allocatedPages++;
+        if (page / PAGES_PER_SLAB >= slabs.size()) {
+            int slabPages = Math.min(PAGES_PER_SLAB, totalPages - slabs.size() * PAGES_PER_SLAB);
+            slabs.add(ByteBuffer.allocateDirect(slabPages * PAGE_SIZE));
+        }
+        return page;
+    }
+
+    private void release(Entry entry) {
+        if (entry != null) {
+            for (int page : entry.pages) {
+                freePages.push(page);
+            }
+        }
+    }
+
+    private ByteBuffer pageBuffer(int page) {
+        ByteBuffer slab = slabs.get(page / PAGES_PER_SLAB).duplicate();
+        int start = (page % PAGES_PER_SLAB) * PAGE_SIZE;
+        // Cast keeps the Java 8 Buffer signatures when compiled on a newer JDK
+        ((Buffer) slab).limit(start + PAGE_SIZE);
+        ((Buffer) slab).position(start);
+        return slab;
+    }
+}
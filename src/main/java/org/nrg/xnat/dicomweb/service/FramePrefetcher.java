@@ -0,0 +1,165 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.nrg.xnat.dicomweb.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Predictive read-ahead of multi-frame instances for cine playback.
+ *
+ * Each instance tracks the direction of its most recent frame requests. After every access the
+ * next {@code depth} frames in that direction are read (and decoded) on a low-priority pool into a
+ * small per-instance buffer, from which the following request is served. Read-ahead is skipped
+ * rather than queued without bound when the pool is busy, so it never competes with real requests.
+ */
+class FramePrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(FramePrefetcher.class);
+
+    private static final class InstanceState {
+
+        private final int numberOfFrames;
+        private final ParallelFrameDecoder.FrameReaderFactory readerFactory;
+        private final Map<Integer, byte[]> buffer = new LinkedHashMap<>();
+        private final Set<Integer> pending = new HashSet<>();
+        private int lastFrameIndex = -1;
+        private int direction = 1;
+
+        private InstanceState(int numberOfFrames, ParallelFrameDecoder.FrameReaderFactory readerFactory) {
+            this.numberOfFrames = numberOfFrames;
+            this.readerFactory = readerFactory;
+        }
+    }
+
+    private final int depth;
+    private final int maxInstances;
+    private final ThreadPoolExecutor executor;
+    private final LinkedHashMap<String, InstanceState> instances;
+
+    FramePrefetcher(int depth, int maxInstances, int threads) {
+        this.depth = depth;
+        this.maxInstances = Math.max(1, maxInstances);
+        this.instances = new LinkedHashMap<String, InstanceState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, InstanceState> eldest) {
+                return size() > FramePrefetcher.this.maxInstances;
+            }
+        };
+        int poolSize = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(this.maxInstances),
+                new NamedThreadFactory("dicomweb-frame-prefetch", Thread.MIN_PRIORITY),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    boolean isEnabled() {
+        return depth > 0;
+    }
+
+    /**
+     * Make an instance known to the prefetcher once its file has been resolved
+     */
+    synchronized void register(String instanceKey, int numberOfFrames,
+                               ParallelFrameDecoder.FrameReaderFactory readerFactory) {
+        if (isEnabled() && numberOfFrames > 1 && !instances.containsKey(instanceKey)) {
+            instances.put(instanceKey, new InstanceState(numberOfFrames, readerFactory));
+        }
+    }
+
+    /**
+     * Remove and return a prefetched frame (0-based), or null if it has not been read ahead
+     */
+    synchronized byte[] take(String instanceKey, int frameIndex) {
+        InstanceState state = instances.get(instanceKey);
+        return state != null ? state.buffer.remove(frameIndex) : null;
+    }
+
+    /**
+     * Record that a frame was served and read ahead in the current playback direction
+     */
+    void recordAccess(String instanceKey, int frameIndex) {
+        List<Integer> toRead = new ArrayList<>();
+        InstanceState state;
+        synchronized (this) {
+            state = instances.get(instanceKey);
+            if (state == null) {
+                return;
+            }
+            if (state.lastFrameIndex >= 0 && frameIndex != state.lastFrameIndex) {
+                state.direction = frameIndex > state.lastFrameIndex ? 1 : -1;
+            }
+            state.lastFrameIndex = frameIndex;
+
+            // Drop buffered frames that are now behind the playhead
+            state.buffer.keySet().removeIf(buffered -> (buffered - frameIndex) * state.direction <= 0
+                    || Math.abs(buffered - frameIndex) > depth);
+
+            for (int step = 1; step <= depth; step++) {
+                int next = frameIndex + step * state.direction;
+                if (next < 0 || next >= state.numberOfFrames) {
+                    break;
+                }
+                if (!state.buffer.containsKey(next) && !state.pending.contains(next)) {
+                    toRead.add(next);
+                }
+            }
+            if (toRead.isEmpty()) {
+                return;
+            }
+            state.pending.addAll(toRead);
+        }
+
+        try {
+            executor.execute(() -> readAhead(instanceKey, state, toRead));
+        } catch (RejectedExecutionException e) {
+            // Pool is busy or shut down; skip this read-ahead
+            clearPending(state, toRead);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            instances.clear();
+        }
+    }
+
+    private void readAhead(String instanceKey, InstanceState state, List<Integer> frameIndexes) {
+        try (ParallelFrameDecoder.FrameReader reader = state.readerFactory.open()) {
+            for (Integer frameIndex : frameIndexes) {
+                synchronized (this) {
+                    // Stop early if the instance was evicted in the meantime
+                    if (instances.get(instanceKey) != state) {
+                        break;
+                    }
+                }
+                byte[] frame = reader.readFrame(frameIndex);
+                synchronized (this) {
+                    if (state.pending.remove(frameIndex) && frame != null) {
+                        state.buffer.put(frameIndex, frame);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Frame prefetch failed for instance {}", instanceKey, e);
+        } finally {
+            clearPending(state, frameIndexes);
+        }
+    }
+
+    private synchronized void clearPending(InstanceState state, List<Integer> frameIndexes) {
+        state.pending.removeAll(frameIndexes);
+    }
+}
@@ -0,0 +1,230 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded pools of DICOM {@link ImageReader} and encoding {@link ImageWriter} instances.
+ *
+ * Looking a codec up through the ImageIO service registry and constructing it is comparatively
+ * expensive, so codecs are reset and reused across requests. Each pool caps the number of codecs
+ * in use; callers block when it is exhausted, and the time spent waiting is recorded. Each pool logs a
+ * summary of its use at INFO at most every {@code dicomweb.imageio.statsIntervalMillis} while it is
+ * borrowed from, and once more when it is cleared at shutdown.
+ */
+class ImageCodecPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageCodecPool.class);
+
+    private static final long SLOW_WAIT_NANOS = 50_000_000L;
+
+    interface Factory<T> {
+        T create() throws IOException;
+    }
+
+    /**
+     * A bounded pool of reusable objects
+     */
+    static class Pool<T> {
+
+        private final String name;
+        private final Factory<T> factory;
+        private final Consumer<T> reset;
+        private final Consumer<T> dispose;
+        private final Semaphore permits;
+        private final ConcurrentLinkedDeque<T> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong borrows = new AtomicLong();
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final long reportIntervalNanos;
+        private final AtomicLong nextReportNanos;
+
+        Pool(String name, int maxSize, long reportIntervalMillis, Factory<T> factory, Consumer<T> reset,
+             Consumer<T> dispose) {
+            this.name = name;
+            this.factory = factory;
+            this.reset = reset;
+            this.dispose = dispose;
+            this.permits = new Semaphore(Math.max(1, maxSize), true);
+            this.reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+            this.nextReportNanos = new AtomicLong(System.nanoTime() + reportIntervalNanos);
+        }
+
+        /**
+         * Take an idle object, or create one if fewer than the maximum are in use
+         */
+        T borrow() throws IOException {
+            if (!permits.tryAcquire()) {
+                long start = System.nanoTime();
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + name);
+                }
+                recordWait(System.nanoTime() - start);
+            }
+            borrows.incrementAndGet();
+            reportIfDue();
+
+            T pooled = idle.pollFirst();
+            if (pooled != null) {
+                return pooled;
+            }
+            try {
+                T fresh = factory.create();
+                created.incrementAndGet();
+                return fresh;
+            } catch (IOException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Return a borrowed object; objects that failed mid-use should not be reused
+         */
+        void release(T object, boolean reusable) {
+            if (object == null) {
+                permits.release();
+                return;
+            }
+            boolean keep = reusable;
+            if (keep) {
+                try {
+                    reset.accept(object);
+                } catch (RuntimeException e) {
+                    logger.debug("Discarding {} that failed to reset", name, e);
+                    keep = false;
+                }
+            }
+            if (keep) {
+                idle.offerFirst(object);
+            } else {
+                dispose.accept(object);
+            }
+            permits.release();
+        }
+
+        void clear() {
+            T object;
+            while ((object = idle.pollFirst()) != null) {
+                dispose.accept(object);
+            }
+            if (borrows.get() > 0) {
+                logger.info(summary());
+            }
+        }
+
+        /**
+         * Use of the pool so far, for the periodic log line
+         */
+        String summary() {
+            return String.format("%s pool: %d borrows, %d created, %d idle, %d waits (%d ms total, %d ms max)",
+                    name, borrows.get(), created.get(), idle.size(), waits.get(),
+                    TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get()),
+                    TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        }
+
+        private void reportIfDue() {
+            if (reportIntervalNanos <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long due = nextReportNanos.get();
+            // Only the borrower that moves the deadline forward logs
+            if (now - due >= 0 && nextReportNanos.compareAndSet(due, now + reportIntervalNanos)) {
+                logger.info(summary());
+            }
+        }
+
+        private void recordWait(long nanos) {
+            waits.incrementAndGet();
+            totalWaitNanos.addAndGet(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+            if (nanos > SLOW_WAIT_NANOS) {
+                logger.debug("Waited {} ms for a pooled {} ({} waits, {} ms total)", nanos / 1_000_000, name,
+                        waits.get(), totalWaitNanos.get() / 1_000_000);
+            }
+        }
+    }
+
+    private final int maxWriters;
+    private final long reportIntervalMillis;
+    private final Pool<ImageReader> readers;
+    private final Map<String, Pool<ImageWriter>> writers = new ConcurrentHashMap<>();
+
+    ImageCodecPool(int maxReaders, int maxWriters, long reportIntervalMillis) {
+        this.maxWriters = maxWriters;
+        this.reportIntervalMillis = reportIntervalMillis;
+        this.readers = new Pool<>("DICOM ImageReader", maxReaders, reportIntervalMillis,
+                () -> {
+                    Iterator<ImageReader> found = ImageIO.getImageReadersByFormatName("DICOM");
+                    if (!found.hasNext()) {
+                        throw new IOException("No DICOM ImageReader found");
+                    }
+                    return found.next();
+                },
+                ImageReader::reset,
+                ImageReader::dispose);
+    }
+
+    /**
+     * Borrow a DICOM reader; the caller sets its input and must {@link #releaseReader} it
+     */
+    ImageReader borrowReader() throws IOException {
+        return readers.borrow();
+    }
+
+    void releaseReader(ImageReader reader, boolean reusable) {
+        readers.release(reader, reusable);
+    }
+
+    /**
+     * Borrow a writer for an informal format name such as "JPEG" or "PNG"
+     */
+    ImageWriter borrowWriter(String formatName) throws IOException {
+        return writerPool(formatName).borrow();
+    }
+
+    void releaseWriter(String formatName, ImageWriter writer, boolean reusable) {
+        writerPool(formatName).release(writer, reusable);
+    }
+
+    void clear() {
+        readers.clear();
+        for (Pool<ImageWriter> pool : writers.values()) {
+            pool.clear();
+        }
+    }
+
+    private Pool<ImageWriter> writerPool(String formatName) {
+        String format = formatName.toUpperCase();
+        return writers.computeIfAbsent(format, key -> new Pool<>(key + " ImageWriter", maxWriters, reportIntervalMillis,
+                () -> {
+                    Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(key);
+                    if (!found.hasNext()) {
+                        throw new IOException("No " + key + " ImageWriter found");
+                    }
+                    return found.next();
+                },
+                ImageWriter::reset,
+                ImageWriter::dispose));
+    }
+}
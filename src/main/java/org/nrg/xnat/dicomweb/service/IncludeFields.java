@@ -0,0 +1,143 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.nrg.xnat.dicomweb.utils.DicomWebUtils;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Attributes requested by the QIDO-RS {@code includefield} parameter (DICOM PS3.18 Section 8.3.4.3)
+ *
+ * A response contains the default attributes of its level, the matching keys of the query and the
+ * included fields. Derived attributes that are expensive to compute (related instance counts) are
+ * only built when requested; {@code includefield=all} requests everything available.
+ */
+public class IncludeFields {
+
+    public static final IncludeFields DEFAULT = new IncludeFields(false, new int[0]);
+    public static final IncludeFields ALL = new IncludeFields(true, new int[0]);
+
+    /**
+     * Instance attributes returned without includefield, in ascending tag order
+     */
+    static final int[] INSTANCE_DEFAULTS = {
+            Tag.SpecificCharacterSet,
+            Tag.SOPClassUID,
+            Tag.SOPInstanceUID,
+            Tag.Modality,
+            Tag.StudyInstanceUID,
+            Tag.SeriesInstanceUID,
+            Tag.SeriesNumber,
+            Tag.InstanceNumber,
+            Tag.NumberOfFrames,
+            Tag.Rows,
+            Tag.Columns,
+            Tag.BitsAllocated
+    };
+
+    private final boolean all;
+    private final int[] tags;
+
+    private IncludeFields(boolean all, int[] tags) {
+        this.all = all;
+        this.tags = tags;
+    }
+
+    /**
+     * Parse an includefield value: comma-separated keywords or 8-digit hex tags, or "all".
+     * Unknown attributes are ignored.
+     */
+    public static IncludeFields parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT;
+        }
+        Set<Integer> tags = new TreeSet<>();
+        for (String field : value.split(",")) {
+            String trimmed = field.trim();
+            if (trimmed.equalsIgnoreCase("all")) {
+                return ALL;
+            }
+            int tag = DicomWebUtils.resolveTag(trimmed);
+            if (tag != -1) {
+                tags.add(tag);
+            }
+        }
+        if (tags.isEmpty()) {
+            return DEFAULT;
+        }
+        int[] sorted = new int[tags.size()];
+        int i = 0;
+        for (int tag : tags) {
+            sorted[i++] = tag;
+        }
+        return new IncludeFields(false, sorted);
+    }
+
+    public boolean isAll() {
+        return all;
+    }
+
+    /**
+     * Whether an attribute outside the default set was requested
+     */
+    public boolean includes(int tag) {
+        return all || Arrays.binarySearch(tags, tag) >= 0;
+    }
+
+    /**
+     * Canonical form for cache keys
+     */
+    String toCacheKey() {
+        return all ? "all" : Arrays.toString(tags);
+    }
+
+    /**
+     * The default, matching and included attributes of a candidate
+     */
+    Attributes select(Attributes source, int[] defaults, Attributes query) {
+        if (all) {
+            return source;
+        }
+        return new Attributes(source, selection(defaults, query));
+    }
+
+    /**
+     * Tag at which a header read can stop, having seen every attribute needed to match and select.
+     * Pixel data is never needed.
+     */
+    int stopTag(int[] defaults, Attributes query) {
+        if (all) {
+            return Tag.PixelData;
+        }
+        int[] selection = selection(defaults, query);
+        int last = selection[selection.length - 1];
+        return last < Tag.PixelData ? last + 1 : Tag.PixelData;
+    }
+
+    /**
+     * Defaults, query keys and included tags in ascending order, as required by {@link Attributes}
+     */
+    private int[] selection(int[] defaults, Attributes query) {
+        Set<Integer> selection = new TreeSet<>();
+        for (int tag : defaults) {
+            selection.add(tag);
+        }
+        for (int tag : tags) {
+            selection.add(tag);
+        }
+        if (query != null) {
+            for (int tag : query.tags()) {
+                selection.add(tag);
+            }
+        }
+        int[] sorted = new int[selection.size()];
+        int i = 0;
+        for (int tag : selection) {
+            sorted[i++] = tag;
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,62 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.io.File;
+
+/**
+ * The stored file of a DICOM instance with its size and validators, taken from file metadata and
+ * the catalog entry without reading the file.
+ *
+ * The bytes of an instance do not change for its SOPInstanceUID, so the ETag is strong: the
+ * catalog digest when XNAT recorded one, otherwise the UID, size and modification time of the file.
+ */
+public class InstanceFile {
+
+    private final File file;
+    private final long length;
+    private final ResourceValidator validator;
+
+    private InstanceFile(File file, long length, ResourceValidator validator) {
+        this.file = file;
+        this.length = length;
+        this.validator = validator;
+    }
+
+    /**
+     * @param digest checksum from the catalog entry, or null if none is recorded
+     */
+    public static InstanceFile of(String sopInstanceUID, File file, String digest) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String version = digest != null && !digest.isEmpty()
+                ? "digest|" + digest
+                : "file|" + sopInstanceUID + "|" + length + "|" + lastModified;
+        return new InstanceFile(file, length, ResourceValidator.strong(version, lastModified > 0 ? lastModified : -1L));
+    }
+
+    /**
+     * A file listed from a DICOM resource without reading its header; without a digest the ETag
+     * follows the file's path, size and modification time
+     */
+    public static InstanceFile of(File file, String digest) {
+        return of(file.getAbsolutePath(), file, digest);
+    }
+
+    /**
+     * A copy of an instance in another transfer syntax; its ETag follows the source and the syntax
+     */
+    public static InstanceFile transcoded(File file, InstanceFile source, String transferSyntaxUID) {
+        return new InstanceFile(file, file.length(), source.getValidator().withVariant(transferSyntaxUID));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public ResourceValidator getValidator() {
+        return validator;
+    }
+}
@@ -0,0 +1,52 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The requested frames of one instance, located and checked but not yet read.
+ *
+ * Frames are taken from the frame cache or decoded only when written, and are handed over in request
+ * order as each one is ready, so a response can send the leading frames while later ones decode.
+ * Frames that cannot be read are left out.
+ */
+public interface InstanceFrames {
+
+    /**
+     * Receives frames in request order
+     */
+    interface Sink {
+        void accept(byte[] frame) throws IOException;
+    }
+
+    /**
+     * Number of frames requested and in range; fewer are written if some cannot be read
+     */
+    int getFrameCount();
+
+    /**
+     * Pass the frames to the sink in request order
+     */
+    void writeTo(Sink sink) throws IOException;
+
+    /**
+     * Frames already in memory
+     */
+    static InstanceFrames of(List<byte[]> frames) {
+        List<byte[]> copy = new ArrayList<>(frames);
+        return new InstanceFrames() {
+            @Override
+            public int getFrameCount() {
+                return copy.size();
+            }
+
+            @Override
+            public void writeTo(Sink sink) throws IOException {
+                for (byte[] frame : copy) {
+                    sink.accept(frame);
+                }
+            }
+        };
+    }
+}
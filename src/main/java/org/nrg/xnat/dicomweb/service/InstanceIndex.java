@@ -0,0 +1,114 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SOPInstanceUID to stored file for recently used series.
+ *
+ * Finding an instance otherwise means reading headers of the series' files until the UID turns up,
+ * for every instance, frame or rendered request. The index of a series is built once, by one caller
+ * while concurrent callers wait, and is kept while the series' fingerprint (scan modification time
+ * and resource file counts and sizes) is unchanged. The least recently used series are dropped
+ * beyond {@code maxSeries}.
+ */
+class InstanceIndex {
+
+    /**
+     * Reads the files of a series into an index
+     */
+    interface Builder {
+        Map<String, Located> build() throws Exception;
+    }
+
+    /**
+     * A stored file with its catalog digest, or null digest if none is recorded
+     */
+    static final class Located {
+
+        private final File file;
+        private final String digest;
+
+        Located(File file, String digest) {
+            this.file = file;
+            this.digest = digest;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        String getDigest() {
+            return digest;
+        }
+    }
+
+    private static final class Entry {
+
+        private final String fingerprint;
+        private final Map<String, Located> files;
+
+        private Entry(String fingerprint, Map<String, Located> files) {
+            this.fingerprint = fingerprint;
+            this.files = files;
+        }
+    }
+
+    private final int maxSeries;
+    private final Map<String, Entry> entries;
+    private final SingleFlight<Map<String, Located>> builds = new SingleFlight<>();
+
+    /**
+     * @param maxSeries number of series to keep; 0 keeps none, but concurrent builds are still shared
+     */
+    InstanceIndex(int maxSeries) {
+        this.maxSeries = Math.max(0, maxSeries);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > InstanceIndex.this.maxSeries;
+            }
+        };
+    }
+
+    /**
+     * The file of an instance, building the series index if it is missing or stale
+     *
+     * @return null if the series has no instance with the UID
+     */
+    Located find(String seriesKey, String fingerprint, String sopInstanceUID, Builder builder) throws Exception {
+        return filesOf(seriesKey, fingerprint, builder).get(sopInstanceUID);
+    }
+
+    Map<String, Located> filesOf(String seriesKey, String fingerprint, Builder builder) throws Exception {
+        synchronized (entries) {
+            Entry entry = entries.get(seriesKey);
+            if (entry != null && entry.fingerprint.equals(fingerprint)) {
+                return entry.files;
+            }
+        }
+
+        Map<String, Located> files = Collections.unmodifiableMap(
+                builds.run(seriesKey + "|" + fingerprint, builder::build));
+        if (maxSeries > 0) {
+            synchronized (entries) {
+                entries.put(seriesKey, new Entry(fingerprint, files));
+            }
+        }
+        return files;
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
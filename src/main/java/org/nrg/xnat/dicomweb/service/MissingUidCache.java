@@ -0,0 +1,154 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Short-lived record of study, series and instance UIDs that were looked up and not found.
+ *
+ * Viewers with stale links repeat the same unknown UIDs, and each miss otherwise loads sessions or
+ * reads the files of a scan before answering 404. A miss is remembered per user, project and UID
+ * path, since lookups only see what the user may read, for at most {@code ttlMillis}; once older
+ * than {@code revalidateMillis} it is only trusted while the project's change stamp is unchanged,
+ * so archiving a session or scan makes its UIDs visible again. Project access must be checked
+ * before a lookup. Lookups that fail with an error are not recorded.
+ */
+class MissingUidCache {
+
+    private static final class Entry {
+
+        private final String projectId;
+        private final String stamp;
+        private final long createdAt;
+        private volatile long validatedAt;
+
+        private Entry(String projectId, String stamp, long createdAt) {
+            this.projectId = projectId;
+            this.stamp = stamp;
+            this.createdAt = createdAt;
+            this.validatedAt = createdAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long revalidateMillis;
+    private final int maxEntries;
+    private final Function<String, String> changeStamp;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis   maximum age of a miss; 0 disables the cache
+     * @param changeStamp project ID to a value that changes whenever its sessions or scans change, or
+     *                    null if unknown; may itself be null when only the TTL applies
+     */
+    MissingUidCache(long ttlMillis, long revalidateMillis, int maxEntries, Function<String, String> changeStamp) {
+        this.ttlMillis = Math.max(0, ttlMillis);
+        this.revalidateMillis = Math.max(0, revalidateMillis);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.changeStamp = changeStamp;
+    }
+
+    boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * Whether the UID path (study, then series and instance UIDs) recently had no match in the project
+     * for the user
+     *
+     * @param userKey identifies the user whose lookup found nothing
+     */
+    boolean isMissing(String userKey, String projectId, String... uids) {
+        if (!isEnabled()) {
+            return false;
+        }
+        String key = keyOf(userKey, projectId, uids);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (isValid(entry, now)) {
+            return true;
+        }
+        entries.remove(key, entry);
+        return false;
+    }
+
+    /**
+     * Remember that the UID path had no match; the stamp is read now, so record misses right after
+     * the lookup that found nothing
+     */
+    void recordMissing(String userKey, String projectId, String... uids) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        entries.put(keyOf(userKey, projectId, uids), new Entry(projectId, stampOf(projectId), now));
+        evictIfFull(now);
+    }
+
+    /**
+     * Drop every miss of a project
+     */
+    void invalidate(String projectId) {
+        entries.values().removeIf(entry -> entry.projectId.equals(projectId));
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static String keyOf(String userKey, String projectId, String... uids) {
+        return userKey + "|" + projectId + "|" + String.join("|", uids);
+    }
+
+    private boolean isValid(Entry entry, long now) {
+        if (now - entry.createdAt >= ttlMillis) {
+            return false;
+        }
+        if (now - entry.validatedAt < revalidateMillis || changeStamp == null) {
+            return true;
+        }
+        String stamp = stampOf(entry.projectId);
+        if (stamp == null || !stamp.equals(entry.stamp)) {
+            return false;
+        }
+        entry.validatedAt = now;
+        return true;
+    }
+
+    private String stampOf(String projectId) {
+        return changeStamp != null ? changeStamp.apply(projectId) : null;
+    }
+
+    /**
+     * Remove expired misses, then the oldest ones, until the cache is within its bound
+     */
+    private void evictIfFull(long now) {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        entries.values().removeIf(entry -> now - entry.createdAt >= ttlMillis);
+        while (entries.size() > maxEntries) {
+            Map.Entry<String, Entry> oldest = null;
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> candidate = iterator.next();
+                if (oldest == null || candidate.getValue().createdAt < oldest.getValue().createdAt) {
+                    oldest = candidate;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.nrg.xnat.dicomweb.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes the frames of a single instance on a bounded worker pool.
+ *
+ * A request is split across at most {@code maxWorkers} workers. Each worker opens its own
+ * {@link FrameReader} once and decodes every frame assigned to it, so codec state is never shared
+ * between threads. Frames are assigned round-robin so the leading frames are decoded first, and
+ * they are handed to the caller in request order as soon as each one is ready. If the caller stops
+ * accepting frames (for example because the client disconnected), workers skip their remaining frames
+ * and return their readers instead of decoding frames nobody will receive.
+ *
+ * Identical requests arriving while a decode is in flight can share it by key. Each caller takes the
+ * frames through its own sink as they complete, so a slow client holds up only its own response, and
+ * the shared decode is abandoned only once every caller has stopped accepting frames.
+ */
+class ParallelFrameDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelFrameDecoder.class);
+
+    /**
+     * Reads decoded frames from one open instance. Not required to be thread-safe.
+     */
+    interface FrameReader extends Closeable {
+        byte[] readFrame(int frameIndex) throws IOException;
+    }
+
+    /**
+     * Opens a new reader on the instance being decoded
+     */
+    interface FrameReaderFactory {
+        FrameReader open() throws IOException;
+    }
+
+    /**
+     * Receives decoded frames in request order. A null frame means decoding failed.
+     */
+    interface FrameSink {
+        void accept(int position, byte[] frame) throws IOException;
+    }
+
+    /**
+     * The frames of one decode, and the callers still taking them
+     */
+    private static final class Decode {
+
+        private final List<CompletableFuture<byte[]>> results;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private int consumers;
+
+        private Decode(int frameCount) {
+            this.results = new ArrayList<>(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                results.add(new CompletableFuture<>());
+            }
+        }
+
+        /**
+         * Add a caller, unless every earlier caller has already given up on this decode
+         */
+        private synchronized boolean join() {
+            if (cancelled.get()) {
+                return false;
+            }
+            consumers++;
+            return true;
+        }
+
+        /**
+         * Remove a caller; workers stop once the last one has left
+         * @return whether this was the last caller
+         */
+        private synchronized boolean leave() {
+            if (--consumers > 0) {
+                return false;
+            }
+            cancelled.set(true);
+            return true;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int maxWorkers;
+    private final ConcurrentHashMap<String, Decode> shared = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    ParallelFrameDecoder(int poolSize) {
+        this.maxWorkers = Math.max(1, poolSize);
+        this.executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxWorkers * 16),
+                new NamedThreadFactory("dicomweb-frame-decode"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Decode the given frames (0-based indexes) and pass them to the sink in request order. If the
+     * sink throws, decoding of the remaining frames is abandoned and the exception is rethrown.
+     */
+    void decode(FrameReaderFactory readerFactory, List<Integer> frameIndexes, FrameSink sink) throws IOException {
+        decode(null, readerFactory, frameIndexes, maxWorkers, sink);
+    }
+
+    /**
+     * Decode the given frames on at most {@code workers} workers, sharing the decode with callers
+     * passing the same key (and frames) while it is in flight. Every caller receives all frames
+     * through its own sink; a null key decodes for this caller alone.
+     */
+    void decode(String key, FrameReaderFactory readerFactory, List<Integer> frameIndexes, int workers,
+                FrameSink sink) throws IOException {
+        Decode decode = key != null
+                ? join(key, readerFactory, frameIndexes, workers)
+                : start(readerFactory, frameIndexes, workers);
+        try {
+            for (int position = 0; position < frameIndexes.size(); position++) {
+                sink.accept(position, awaitFrame(decode.results.get(position), frameIndexes.get(position)));
+            }
+        } finally {
+            if (decode.leave() && key != null) {
+                shared.remove(key, decode);
+            }
+        }
+    }
+
+    /**
+     * Number of callers that shared a decode already in flight
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Stop the worker pool
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Decode join(String key, FrameReaderFactory readerFactory, List<Integer> frameIndexes, int workers) {
+        Decode[] created = new Decode[1];
+        Decode decode = shared.compute(key, (k, existing) -> {
+            if (existing != null && existing.join()) {
+                return existing;
+            }
+            created[0] = new Decode(frameIndexes.size());
+            created[0].join();
+            return created[0];
+        });
+        if (created[0] == null) {
+            coalesced.incrementAndGet();
+            return decode;
+        }
+
+        startWorkers(created[0], readerFactory, frameIndexes, workers);
+        CompletableFuture.allOf(created[0].results.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((ignored, e) -> shared.remove(key, created[0]));
+        return created[0];
+    }
+
+    private Decode start(FrameReaderFactory readerFactory, List<Integer> frameIndexes, int workers) {
+        Decode decode = new Decode(frameIndexes.size());
+        decode.join();
+        startWorkers(decode, readerFactory, frameIndexes, workers);
+        return decode;
+    }
+
+    private void startWorkers(Decode decode, FrameReaderFactory readerFactory, List<Integer> frameIndexes,
+                              int workers) {
+        int stride = Math.max(1, Math.min(Math.min(maxWorkers, workers), frameIndexes.size()));
+        for (int worker = 0; worker < stride; worker++) {
+            final int firstPosition = worker;
+            executor.execute(() -> decodeAssignedFrames(readerFactory, frameIndexes, decode.results, firstPosition,
+                    stride, decode.cancelled));
+        }
+    }
+
+    private void decodeAssignedFrames(FrameReaderFactory readerFactory, List<Integer> frameIndexes,
+                                      List<CompletableFuture<byte[]>> results, int firstPosition, int stride,
+                                      AtomicBoolean cancelled) {
+        try (FrameReader reader = readerFactory.open()) {
+            for (int position = firstPosition; position < results.size() && !cancelled.get(); position += stride) {
+                CompletableFuture<byte[]> result = results.get(position);
+                try {
+                    result.complete(reader.readFrame(frameIndexes.get(position)));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error in frame decode worker", e);
+        } finally {
+            // Anything left incomplete (the reader could not be opened, or every caller gave up)
+            // is reported as failed
+            for (int position = firstPosition; position < results.size(); position += stride) {
+                results.get(position).complete(null);
+            }
+        }
+    }
+
+    private byte[] awaitFrame(CompletableFuture<byte[]> result, int frameIndex) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding frame " + frameIndex, e);
+        } catch (ExecutionException e) {
+            logger.error("Error decoding frame {}", frameIndex, e.getCause());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived record of which projects a user can read.
+ *
+ * Every request starts with a project lookup that evaluates the user's permissions, repeated for each
+ * frame a viewer loads. Decisions, both granted and refused, are kept per user and project for at most
+ * {@code ttlMillis}, so a permission change applies to open viewers within that time, or at once
+ * through {@link #invalidateUser} and {@link #invalidateProject}. The project list of root searches is
+ * kept the same way and also answers single-project checks. Failed checks are not recorded.
+ */
+class ProjectAccessCache {
+
+    /**
+     * Evaluates whether the user can read the project
+     */
+    interface Check {
+        boolean canRead() throws Exception;
+    }
+
+    /**
+     * Lists the IDs of the projects the user can read
+     */
+    interface Listing {
+        List<String> list() throws Exception;
+    }
+
+    private static final class Entry<V> {
+
+        private final String userKey;
+        private final String projectId;
+        private final V value;
+        private final long createdAt;
+
+        private Entry(String userKey, String projectId, V value, long createdAt) {
+            this.userKey = userKey;
+            this.projectId = projectId;
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Entry<Boolean>> decisions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry<List<String>>> listings = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis maximum age of a decision; 0 disables the cache
+     */
+    ProjectAccessCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = Math.max(0, ttlMillis);
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * Whether the user can read the project, from a recent decision or the check
+     *
+     * @param userKey identifies the user; null bypasses the cache
+     */
+    boolean canRead(String userKey, String projectId, Check check) throws Exception {
+        if (!isEnabled() || userKey == null) {
+            return check.canRead();
+        }
+
+        long now = System.currentTimeMillis();
+        String key = userKey + "|" + projectId;
+        Entry<Boolean> decision = decisions.get(key);
+        if (decision != null) {
+            if (now - decision.createdAt < ttlMillis) {
+                return decision.value;
+            }
+            decisions.remove(key, decision);
+        }
+        Entry<List<String>> listing = listings.get(userKey);
+        if (listing != null && now - listing.createdAt < ttlMillis && listing.value.contains(projectId)) {
+            return true;
+        }
+
+        boolean canRead = check.canRead();
+        decisions.put(key, new Entry<>(userKey, projectId, canRead, now));
+        evictIfFull(decisions, now);
+        return canRead;
+    }
+
+    /**
+     * IDs of the projects the user can read, from a recent listing or the loader
+     *
+     * @param userKey identifies the user; null bypasses the cache
+     */
+    List<String> readableProjects(String userKey, Listing listing) throws Exception {
+        if (!isEnabled() || userKey == null) {
+            return listing.list();
+        }
+
+        long now = System.currentTimeMillis();
+        Entry<List<String>> cached = listings.get(userKey);
+        if (cached != null) {
+            if (now - cached.createdAt < ttlMillis) {
+                return new ArrayList<>(cached.value);
+            }
+            listings.remove(userKey, cached);
+        }
+
+        List<String> projectIds = listing.list();
+        listings.put(userKey, new Entry<>(userKey, null,
+                Collections.unmodifiableList(new ArrayList<>(projectIds)), now));
+        evictIfFull(listings, now);
+        return projectIds;
+    }
+
+    /**
+     * Forget every decision about a user, for example after a role or group change
+     */
+    void invalidateUser(String userKey) {
+        decisions.values().removeIf(entry -> entry.userKey.equals(userKey));
+        listings.remove(userKey);
+    }
+
+    /**
+     * Forget every decision about a project, for example after its accessibility changed
+     */
+    void invalidateProject(String projectId) {
+        decisions.values().removeIf(entry -> entry.projectId.equals(projectId));
+        listings.clear();
+    }
+
+    void clear() {
+        decisions.clear();
+        listings.clear();
+    }
+
+    int size() {
+        return decisions.size() + listings.size();
+    }
+
+    /**
+     * Remove expired entries, then the oldest ones, until the map is within the bound
+     */
+    private <V> void evictIfFull(ConcurrentHashMap<String, Entry<V>> entries, long now) {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        entries.values().removeIf(entry -> now - entry.createdAt >= ttlMillis);
+        while (entries.size() > maxEntries) {
+            Map.Entry<String, Entry<V>> oldest = null;
+            Iterator<Map.Entry<String, Entry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry<V>> candidate = iterator.next();
+                if (oldest == null || candidate.getValue().createdAt < oldest.getValue().createdAt) {
+                    oldest = candidate;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+}
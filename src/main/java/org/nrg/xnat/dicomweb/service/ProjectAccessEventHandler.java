@@ -0,0 +1,51 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.nrg.xft.event.XftItemEventI;
+import org.nrg.xft.event.methods.AbstractXftItemEventHandlerMethod;
+import org.nrg.xft.event.methods.XftItemEventCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drops cached project access decisions as soon as XNAT changes who can read a project.
+ *
+ * User events name the user whose roles or groups changed, so only that user's decisions go. Group
+ * events may change the access of every member and project events the accessibility of the project,
+ * so they drop every decision that could depend on them.
+ */
+@Component
+public class ProjectAccessEventHandler extends AbstractXftItemEventHandlerMethod {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProjectAccessEventHandler.class);
+
+    static final String USER = "xdat:user";
+    static final String USER_GROUP = "xdat:userGroup";
+    static final String PROJECT = "xnat:projectData";
+
+    private final XnatDicomService dicomService;
+
+    @Autowired
+    public ProjectAccessEventHandler(XnatDicomService dicomService) {
+        super(XftItemEventCriteria.getXsiTypeCriteria(USER),
+                XftItemEventCriteria.getXsiTypeCriteria(USER_GROUP),
+                XftItemEventCriteria.getXsiTypeCriteria(PROJECT));
+        this.dicomService = dicomService;
+    }
+
+    @Override
+    protected boolean handleEventImpl(XftItemEventI event) {
+        String xsiType = event.getXsiType();
+        String id = event.getId();
+        logger.debug("Dropping cached project access after {} event for {} {}", event.getAction(), xsiType, id);
+        if (USER.equals(xsiType) && id != null) {
+            dicomService.invalidateProjectAccess(id);
+        } else if (PROJECT.equals(xsiType) && id != null) {
+            dicomService.invalidateProjectAccessTo(id);
+        } else {
+            dicomService.invalidateProjectAccess(null);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.nrg.xnat.dicomweb.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a search in every accessible project on a bounded pool, for QIDO-RS queries made against
+ * the DICOMweb root instead of a single project.
+ *
+ * Results are returned in project order whatever order the searches finish in. A project whose
+ * search fails is logged and contributes nothing, so one broken project does not fail the query.
+ * When the queue is full the calling thread runs the search itself.
+ */
+class ProjectFanOut {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProjectFanOut.class);
+
+    /**
+     * A search within one project
+     */
+    interface ProjectSearch<T> {
+        T search(String projectId) throws Exception;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    ProjectFanOut(int poolSize) {
+        int threads = Math.max(1, poolSize);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                new NamedThreadFactory("dicomweb-qido-fanout"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run the search in each project; failed projects are left out of the result
+     */
+    <T> List<T> searchAll(List<String> projectIds, ProjectSearch<T> search) {
+        if (projectIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (projectIds.size() == 1) {
+            T result = searchOne(projectIds.get(0), search);
+            return result != null ? Collections.singletonList(result) : Collections.emptyList();
+        }
+
+        List<Future<T>> futures = new ArrayList<>(projectIds.size());
+        for (String projectId : projectIds) {
+            futures.add(executor.submit(() -> searchOne(projectId, search)));
+        }
+
+        List<T> results = new ArrayList<>(projectIds.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                T result = futures.get(i).get();
+                if (result != null) {
+                    results.add(result);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+                break;
+            } catch (ExecutionException e) {
+                logger.error("Error searching project {}", projectIds.get(i), e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Concatenate per-project matches, keeping the first match for each value of {@code uidTag}
+     * (a study shared into several projects is returned once)
+     *
+     * @return the number of duplicates dropped
+     */
+    static int mergeUnique(List<List<Attributes>> perProject, int uidTag, List<Attributes> sink) {
+        Set<String> seen = new HashSet<>();
+        int duplicates = 0;
+        for (List<Attributes> matches : perProject) {
+            for (Attributes attrs : matches) {
+                String uid = attrs.getString(uidTag);
+                if (uid == null || seen.add(uid)) {
+                    sink.add(attrs);
+                } else {
+                    duplicates++;
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <T> T searchOne(String projectId, ProjectSearch<T> search) {
+        try {
+            return search.search(projectId);
+        } catch (Exception e) {
+            logger.error("Error searching project {}", projectId, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.VR;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * QIDO-RS matching keys compiled into per-attribute matchers (DICOM PS3.4 C.2.2.2).
+ *
+ * A query is compiled once and then evaluated against each candidate without building regular
+ * expressions or copying values: candidate values are read one at a time and matched in place, so
+ * evaluation does not allocate (apart from UID list lookups against a region of a longer string).
+ * Single value, list of UID, wildcard, date/time range and sequence matching are supported. Empty
+ * keys request universal matching and are not compiled.
+ *
+ * Attributes missing from a candidate are not evaluated, so the same matcher can first be run
+ * against the few attributes XNAT already knows about a scan or session (rejecting early,
+ * before any file is parsed) and then against the full header.
+ */
+class QueryMatcher {
+
+    /**
+     * Matches one value, given as a region of a possibly multi-valued string
+     */
+    interface ValueMatcher {
+        boolean matches(String value, int start, int end);
+    }
+
+    private static final QueryMatcher MATCH_ALL = new QueryMatcher(new int[0], new ValueMatcher[0],
+            new int[0], new QueryMatcher[0]);
+
+    private final int[] tags;
+    private final ValueMatcher[] matchers;
+    private final int[] sequenceTags;
+    private final QueryMatcher[] sequenceMatchers;
+
+    private QueryMatcher(int[] tags, ValueMatcher[] matchers, int[] sequenceTags, QueryMatcher[] sequenceMatchers) {
+        this.tags = tags;
+        this.matchers = matchers;
+        this.sequenceTags = sequenceTags;
+        this.sequenceMatchers = sequenceMatchers;
+    }
+
+    /**
+     * Compile the matching keys of a query; null or empty queries match everything
+     *
+     * @param ignoreTags keys handled elsewhere (for example path parameters)
+     * @throws IllegalArgumentException if a range key is malformed
+     */
+    static QueryMatcher compile(Attributes query, int... ignoreTags) {
+        if (query == null || query.isEmpty()) {
+            return MATCH_ALL;
+        }
+
+        Set<Integer> ignored = new HashSet<>();
+        for (int tag : ignoreTags) {
+            ignored.add(tag);
+        }
+
+        List<Integer> tags = new ArrayList<>();
+        List<ValueMatcher> matchers = new ArrayList<>();
+        List<Integer> sequenceTags = new ArrayList<>();
+        List<QueryMatcher> sequenceMatchers = new ArrayList<>();
+
+        for (int tag : query.tags()) {
+            if (ignored.contains(tag)) {
+                continue;
+            }
+            VR vr = query.getVR(tag);
+            if (vr == VR.SQ) {
+                Sequence items = query.getSequence(tag);
+                if (items != null && !items.isEmpty() && !items.get(0).isEmpty()) {
+                    sequenceTags.add(tag);
+                    sequenceMatchers.add(compile(items.get(0)));
+                }
+                continue;
+            }
+
+            String[] values = query.getStrings(tag);
+            ValueMatcher matcher = values != null ? compileValues(vr, values) : null;
+            if (matcher != null) {
+                tags.add(tag);
+                matchers.add(matcher);
+            }
+        }
+
+        if (tags.isEmpty() && sequenceTags.isEmpty()) {
+            return MATCH_ALL;
+        }
+        int[] tagArray = new int[tags.size()];
+        for (int i = 0; i < tagArray.length; i++) {
+            tagArray[i] = tags.get(i);
+        }
+        int[] sequenceTagArray = new int[sequenceTags.size()];
+        for (int i = 0; i < sequenceTagArray.length; i++) {
+            sequenceTagArray[i] = sequenceTags.get(i);
+        }
+        return new QueryMatcher(tagArray, matchers.toArray(new ValueMatcher[0]),
+                sequenceTagArray, sequenceMatchers.toArray(new QueryMatcher[0]));
+    }
+
+    boolean isMatchAll() {
+        return tags.length == 0 && sequenceTags.length == 0;
+    }
+
+    /**
+     * Evaluate the compiled keys against the attributes present in a candidate
+     */
+    boolean matches(Attributes candidate) {
+        for (int i = 0; i < tags.length; i++) {
+            if (!candidate.containsValue(tags[i])) {
+                continue;
+            }
+            if (!matchesAnyValue(matchers[i], candidate, tags[i])) {
+                return false;
+            }
+        }
+        for (int i = 0; i < sequenceTags.length; i++) {
+            Sequence items = candidate.getSequence(sequenceTags[i]);
+            if (items == null) {
+                continue;
+            }
+            boolean anyItem = false;
+            for (Attributes item : items) {
+                if (sequenceMatchers[i].matches(item)) {
+                    anyItem = true;
+                    break;
+                }
+            }
+            if (!anyItem) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A candidate matches when any of its values (including backslash-separated parts) matches.
+     * Values are read up to the first empty one, which ends the list.
+     */
+    private static boolean matchesAnyValue(ValueMatcher matcher, Attributes candidate, int tag) {
+        String value;
+        for (int i = 0; (value = candidate.getString(tag, i)) != null; i++) {
+            int start = 0;
+            int separator;
+            while ((separator = value.indexOf('\\', start)) >= 0) {
+                if (matcher.matches(value, start, separator)) {
+                    return true;
+                }
+                start = separator + 1;
+            }
+            if (matcher.matches(value, start, value.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ValueMatcher compileValues(VR vr, String[] values) {
+        List<String> parts = new ArrayList<>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            int start = 0;
+            int separator;
+            while ((separator = value.indexOf('\\', start)) >= 0) {
+                addPart(parts, value.substring(start, separator));
+                start = separator + 1;
+            }
+            addPart(parts, value.substring(start));
+        }
+        if (parts.isEmpty()) {
+            return null;
+        }
+
+        if ((vr == VR.DA || vr == VR.TM || vr == VR.DT) && parts.size() == 1 && parts.get(0).indexOf('-') >= 0) {
+            return rangeMatcher(parts.get(0), vr == VR.DA);
+        }
+
+        // Person names are matched case-insensitively; UIDs never contain wildcards
+        boolean ignoreCase = vr == VR.PN;
+        boolean wildcards = false;
+        for (String value : parts) {
+            wildcards |= vr != VR.UI && hasWildcard(value);
+        }
+        if (!wildcards) {
+            return parts.size() == 1 ? exactMatcher(parts.get(0), ignoreCase) : listMatcher(parts, ignoreCase);
+        }
+
+        ValueMatcher[] alternatives = new ValueMatcher[parts.size()];
+        for (int i = 0; i < alternatives.length; i++) {
+            String value = parts.get(i);
+            alternatives[i] = hasWildcard(value) ? wildcardMatcher(value, ignoreCase) : exactMatcher(value, ignoreCase);
+        }
+        return anyOf(alternatives);
+    }
+
+    private static void addPart(List<String> parts, String part) {
+        String trimmed = part.trim();
+        if (!trimmed.isEmpty()) {
+            parts.add(trimmed);
+        }
+    }
+
+    static boolean hasWildcard(String value) {
+        return value.indexOf('*') >= 0 || value.indexOf('?') >= 0;
+    }
+
+    static ValueMatcher exactMatcher(String expected, boolean ignoreCase) {
+        return (value, start, end) -> end - start == expected.length()
+                && value.regionMatches(ignoreCase, start, expected, 0, expected.length());
+    }
+
+    /**
+     * List of UID (or other values) matching via a hash lookup
+     */
+    static ValueMatcher listMatcher(List<String> expected, boolean ignoreCase) {
+        if (ignoreCase) {
+            ValueMatcher[] alternatives = new ValueMatcher[expected.size()];
+            for (int i = 0; i < alternatives.length; i++) {
+                alternatives[i] = exactMatcher(expected.get(i), true);
+            }
+            return anyOf(alternatives);
+        }
+        Set<String> set = new HashSet<>(expected);
+        return (value, start, end) -> start == 0 && end == value.length()
+                ? set.contains(value)
+                : set.contains(value.substring(start, end));
+    }
+
+    private static ValueMatcher anyOf(ValueMatcher[] alternatives) {
+        if (alternatives.length == 1) {
+            return alternatives[0];
+        }
+        return (value, start, end) -> {
+            for (ValueMatcher alternative : alternatives) {
+                if (alternative.matches(value, start, end)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * '*' matches any run of characters and '?' a single character
+     */
+    static ValueMatcher wildcardMatcher(String pattern, boolean ignoreCase) {
+        char[] compiled = pattern.toCharArray();
+        return (value, start, end) -> {
+            int p = 0;
+            int v = start;
+            int starP = -1;
+            int starV = -1;
+            while (v < end) {
+                if (p < compiled.length && (compiled[p] == '?' || sameChar(compiled[p], value.charAt(v), ignoreCase))) {
+                    p++;
+                    v++;
+                } else if (p < compiled.length && compiled[p] == '*') {
+                    starP = p++;
+                    starV = v;
+                } else if (starP >= 0) {
+                    p = starP + 1;
+                    v = ++starV;
+                } else {
+                    return false;
+                }
+            }
+            while (p < compiled.length && compiled[p] == '*') {
+                p++;
+            }
+            return p == compiled.length;
+        };
+    }
+
+    /**
+     * Inclusive date, time or datetime range; either bound may be open.
+     * Time zone offsets in datetime ranges are not supported.
+     */
+    static ValueMatcher rangeMatcher(String range, boolean date) {
+        int dash = range.indexOf('-');
+        String lower = range.substring(0, dash).trim().replace(":", "");
+        String upper = range.substring(dash + 1).trim().replace(":", "");
+        if ((lower.isEmpty() && upper.isEmpty()) || !isDateTime(lower) || !isDateTime(upper)) {
+            throw new IllegalArgumentException("Invalid range: " + range);
+        }
+        return (value, start, end) -> {
+            if (!lower.isEmpty() && compareToBound(value, start, end, lower, date) < 0) {
+                return false;
+            }
+            return upper.isEmpty() || compareToBound(value, start, end, upper, date) <= 0;
+        };
+    }
+
+    private static boolean sameChar(char a, char b, boolean ignoreCase) {
+        return a == b || (ignoreCase && Character.toUpperCase(a) == Character.toUpperCase(b));
+    }
+
+    /**
+     * Compare a candidate region with a range bound digit by digit.
+     * Separators of legacy formats (':' in times, '.' in dates) are skipped.
+     */
+    private static int compareToBound(String value, int start, int end, String bound, boolean date) {
+        int b = 0;
+        int v = start;
+        for (; v < end && b < bound.length(); v++) {
+            char c = value.charAt(v);
+            if (c == ':' || (date && c == '.')) {
+                continue;
+            }
+            char expected = bound.charAt(b++);
+            if (c != expected) {
+                return c < expected ? -1 : 1;
+            }
+        }
+        // Missing trailing digits on either side count as zero ("10" equals "1000")
+        for (; b < bound.length(); b++) {
+            char remaining = bound.charAt(b);
+            if (remaining != '0' && remaining != '.') {
+                return -1;
+            }
+        }
+        for (; v < end; v++) {
+            char remaining = value.charAt(v);
+            if (remaining >= '1' && remaining <= '9') {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isDateTime(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
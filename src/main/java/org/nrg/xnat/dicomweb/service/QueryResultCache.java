@@ -0,0 +1,217 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Short-lived cache of QIDO-RS results, for study lists that are re-queried every few seconds.
+ *
+ * Keys combine the level, the user, the project and the normalized query, since XFT filters matches
+ * by the user's permissions; project access must still be checked before a lookup. Concurrent identical
+ * queries share one computation. An entry lives at most {@code ttlMillis}; once it is older than
+ * {@code revalidateMillis} it is only served while the project's change stamp (for example the
+ * latest session modification) is unchanged. Callers receive copies, so cached results are never
+ * modified.
+ */
+class QueryResultCache<V> {
+
+    /**
+     * Computes a result on a cache miss
+     */
+    interface Loader<V> {
+        V load() throws Exception;
+    }
+
+    private static final class Entry<V> {
+
+        private final String projectId;
+        private final String stamp;
+        private final long createdAt;
+        private final CompletableFuture<V> value = new CompletableFuture<>();
+        private volatile long validatedAt;
+
+        private Entry(String projectId, String stamp, long createdAt) {
+            this.projectId = projectId;
+            this.stamp = stamp;
+            this.createdAt = createdAt;
+            this.validatedAt = createdAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long revalidateMillis;
+    private final int maxEntries;
+    private final Function<String, String> changeStamp;
+    private final UnaryOperator<V> copier;
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis   maximum age of an entry; 0 disables the cache
+     * @param changeStamp project ID to a value that changes whenever its sessions change, or null
+     *                    if unknown; may itself be null when only the TTL applies
+     * @param copier      copies a result before it is handed out
+     */
+    QueryResultCache(long ttlMillis, long revalidateMillis, int maxEntries,
+                     Function<String, String> changeStamp, UnaryOperator<V> copier) {
+        this.ttlMillis = Math.max(0, ttlMillis);
+        this.revalidateMillis = Math.max(0, revalidateMillis);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.changeStamp = changeStamp;
+        this.copier = copier;
+    }
+
+    boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * The cached result for the key, or the loader's result, computed once for concurrent callers
+     */
+    V get(String projectId, String key, Loader<V> loader) throws Exception {
+        if (!isEnabled()) {
+            return loader.load();
+        }
+
+        long now = System.currentTimeMillis();
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            if (isValid(entry, now)) {
+                return await(entry);
+            }
+            entries.remove(key, entry);
+        }
+
+        // The stamp is taken before loading, so a change made while loading invalidates the result
+        Entry<V> created = new Entry<>(projectId, stampOf(projectId), now);
+        Entry<V> existing = entries.putIfAbsent(key, created);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            V value = loader.load();
+            created.value.complete(value);
+            evictIfFull(now);
+            return copier.apply(value);
+        } catch (Exception e) {
+            entries.remove(key, created);
+            created.value.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop every entry of a project
+     */
+    void invalidate(String projectId) {
+        entries.values().removeIf(entry -> entry.projectId.equals(projectId));
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Canonical form of a query: attributes in tag order, values trimmed and sorted
+     */
+    static String normalize(Attributes query) {
+        if (query == null || query.isEmpty()) {
+            return "";
+        }
+        StringBuilder normalized = new StringBuilder();
+        for (int tag : query.tags()) {
+            normalized.append(String.format("%08X", tag)).append('=');
+            Sequence items = query.getSequence(tag);
+            if (items != null) {
+                normalized.append('[');
+                for (Attributes item : items) {
+                    normalized.append(normalize(item)).append(';');
+                }
+                normalized.append(']');
+            } else {
+                String[] values = query.getStrings(tag);
+                if (values != null) {
+                    String[] parts = String.join("\\", values).split("\\\\");
+                    for (int i = 0; i < parts.length; i++) {
+                        parts[i] = parts[i].trim();
+                    }
+                    Arrays.sort(parts);
+                    normalized.append(String.join("\\", parts));
+                }
+            }
+            normalized.append('&');
+        }
+        return normalized.toString();
+    }
+
+    private boolean isValid(Entry<V> entry, long now) {
+        if (!entry.value.isDone()) {
+            return true;
+        }
+        if (entry.value.isCompletedExceptionally() || now - entry.createdAt >= ttlMillis) {
+            return false;
+        }
+        if (now - entry.validatedAt < revalidateMillis || changeStamp == null) {
+            return true;
+        }
+        String stamp = stampOf(entry.projectId);
+        if (stamp == null || !stamp.equals(entry.stamp)) {
+            return false;
+        }
+        entry.validatedAt = now;
+        return true;
+    }
+
+    private String stampOf(String projectId) {
+        return changeStamp != null ? changeStamp.apply(projectId) : null;
+    }
+
+    private V await(Entry<V> entry) throws Exception {
+        try {
+            return copier.apply(entry.value.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Remove expired entries, then the oldest ones, until the cache is within its bound
+     */
+    private void evictIfFull(long now) {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        entries.values().removeIf(entry -> entry.value.isDone() && now - entry.createdAt >= ttlMillis);
+        while (entries.size() > maxEntries) {
+            Map.Entry<String, Entry<V>> oldest = null;
+            Iterator<Map.Entry<String, Entry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry<V>> candidate = iterator.next();
+                if (candidate.getValue().value.isDone()
+                        && (oldest == null || candidate.getValue().createdAt < oldest.getValue().createdAt)) {
+                    oldest = candidate;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.nrg.xnat.dicomweb.service;
+
+/**
+ * Rendering parameters for WADO-RS rendered resources (DICOM PS3.18 Section 8.3.5)
+ *
+ * Supports the {@code viewport}, {@code quality} and {@code window} query parameters.
+ */
+public class RenderParams {
+
+    public static final RenderParams DEFAULT = new RenderParams(0, 0, null, -1, null, null);
+
+    private final int viewportWidth;
+    private final int viewportHeight;
+    private final int[] sourceRegion;
+    private final int quality;
+    private final Float windowCenter;
+    private final Float windowWidth;
+
+    private RenderParams(int viewportWidth, int viewportHeight, int[] sourceRegion, int quality,
+                         Float windowCenter, Float windowWidth) {
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
+        this.sourceRegion = sourceRegion;
+        this.quality = quality;
+        this.windowCenter = windowCenter;
+        this.windowWidth = windowWidth;
+    }
+
+    /**
+     * Parse the rendering query parameters; any of them may be null
+     *
+     * @param viewport "vw,vh" or "vw,vh,sx,sy,sw,sh"
+     * @param quality  1-100
+     * @param window   "center,width[,function]" (only linear windowing is supported)
+     * @throws IllegalArgumentException if a parameter is malformed
+     */
+    public static RenderParams parse(String viewport, String quality, String window) {
+        int viewportWidth = 0;
+        int viewportHeight = 0;
+        int[] sourceRegion = null;
+        if (viewport != null && !viewport.trim().isEmpty()) {
+            String[] parts = viewport.split(",");
+            if (parts.length != 2 && parts.length != 6) {
+                throw new IllegalArgumentException("Invalid viewport: " + viewport);
+            }
+            viewportWidth = parsePositive(parts[0], "viewport");
+            viewportHeight = parsePositive(parts[1], "viewport");
+            if (parts.length == 6) {
+                sourceRegion = new int[]{
+                        parseNonNegative(parts[2], "viewport"),
+                        parseNonNegative(parts[3], "viewport"),
+                        parsePositive(parts[4], "viewport"),
+                        parsePositive(parts[5], "viewport")
+                };
+            }
+        }
+
+        int jpegQuality = -1;
+        if (quality != null && !quality.trim().isEmpty()) {
+            jpegQuality = parsePositive(quality, "quality");
+            if (jpegQuality > 100) {
+                throw new IllegalArgumentException("Invalid quality: " + quality);
+            }
+        }
+
+        Float windowCenter = null;
+        Float windowWidth = null;
+        if (window != null && !window.trim().isEmpty()) {
+            String[] parts = window.split(",");
+            if (parts.length < 2 || parts.length > 3) {
+                throw new IllegalArgumentException("Invalid window: " + window);
+            }
+            try {
+                windowCenter = Float.parseFloat(parts[0].trim());
+                windowWidth = Float.parseFloat(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid window: " + window);
+            }
+            if (windowWidth <= 0) {
+                throw new IllegalArgumentException("Invalid window width: " + window);
+            }
+        }
+
+        return new RenderParams(viewportWidth, viewportHeight, sourceRegion, jpegQuality, windowCenter, windowWidth);
+    }
+
+    public boolean hasViewport() {
+        return viewportWidth > 0 && viewportHeight > 0;
+    }
+
+    public int getViewportWidth() {
+        return viewportWidth;
+    }
+
+    public int getViewportHeight() {
+        return viewportHeight;
+    }
+
+    /**
+     * Source region as {x, y, width, height}, or null for the whole image
+     */
+    public int[] getSourceRegion() {
+        return sourceRegion != null ? sourceRegion.clone() : null;
+    }
+
+    /**
+     * JPEG quality (1-100), or -1 for the encoder default
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    public boolean hasWindow() {
+        return windowCenter != null && windowWidth != null;
+    }
+
+    public Float getWindowCenter() {
+        return windowCenter;
+    }
+
+    public Float getWindowWidth() {
+        return windowWidth;
+    }
+
+    /**
+     * Canonical form used in rendered cache keys
+     */
+    public String toCacheKey() {
+        StringBuilder key = new StringBuilder();
+        if (hasViewport()) {
+            key.append("viewport=").append(viewportWidth).append(',').append(viewportHeight);
+            if (sourceRegion != null) {
+                key.append(',').append(sourceRegion[0]).append(',').append(sourceRegion[1])
+                        .append(',').append(sourceRegion[2]).append(',').append(sourceRegion[3]);
+            }
+            key.append(';');
+        }
+        if (quality > 0) {
+            key.append("quality=").append(quality).append(';');
+        }
+        if (hasWindow()) {
+            key.append("window=").append(windowCenter).append(',').append(windowWidth).append(';');
+        }
+        return key.toString();
+    }
+
+    private static int parsePositive(String value, String name) {
+        int parsed = parseNonNegative(value, name);
+        if (parsed == 0) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        return parsed;
+    }
+
+    private static int parseNonNegative(String value, String name) {
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < 0) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.nrg.xnat.dicomweb.utils.DicomWebUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two-tier cache of rendered (JPEG/PNG) output.
+ *
+ * A small in-memory LRU sits in front of a bounded on-disk store. Every entry records the
+ * last-modified time and length of the DICOM file it was rendered from, and an entry whose
+ * source file has changed is discarded on lookup instead of being served. Renderings show patient
+ * data, so the directory and its files are readable by the owner only, and {@link #clear()} removes
+ * them at shutdown.
+ */
+class RenderedImageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderedImageCache.class);
+
+    private static final String FILE_SUFFIX = ".render";
+
+    private static final class Entry {
+
+        private final long sourceModified;
+        private final long sourceLength;
+        private final byte[] data;
+
+        private Entry(long sourceModified, long sourceLength, byte[] data) {
+            this.sourceModified = sourceModified;
+            this.sourceLength = sourceLength;
+            this.data = data;
+        }
+
+        private boolean matches(File source) {
+            return source.lastModified() == sourceModified && source.length() == sourceLength;
+        }
+    }
+
+    private final long memoryCapacity;
+    private final long diskCapacity;
+    private final File directory;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Long> diskIndex = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+    private boolean diskIndexLoaded;
+
+    RenderedImageCache(long memoryCapacity, File directory, long diskCapacity) {
+        this.memoryCapacity = Math.max(0, memoryCapacity);
+        this.directory = directory;
+        this.diskCapacity = directory != null ? Math.max(0, diskCapacity) : 0;
+    }
+
+    /**
+     * Build a cache key from the instance, frame (0-based) and rendering parameters
+     */
+    static String key(String scope, String sopInstanceUID, int frameIndex, String renderParams) {
+        return scope + "|" + sopInstanceUID + "|" + frameIndex + "|" + (renderParams != null ? renderParams : "");
+    }
+
+    /**
+     * Return the cached rendering if it was produced from the current version of the source file
+     */
+    byte[] get(String key, File source) {
+        synchronized (this) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                if (entry.matches(source)) {
+                    return entry.data;
+                }
+                removeFromMemory(key);
+            }
+        }
+
+        Entry entry = readFromDisk(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.matches(source)) {
+            deleteFromDisk(key);
+            return null;
+        }
+        synchronized (this) {
+            addToMemory(key, entry);
+        }
+        return entry.data;
+    }
+
+    /**
+     * Store a rendering of the given source file in both tiers
+     */
+    void put(String key, File source, byte[] data) {
+        if (data == null) {
+            return;
+        }
+        Entry entry = new Entry(source.lastModified(), source.length(), data);
+        synchronized (this) {
+            addToMemory(key, entry);
+        }
+        writeToDisk(key, entry);
+    }
+
+    /**
+     * Drop every entry from memory and delete the cached files from disk
+     */
+    synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0;
+        diskIndex.clear();
+        diskBytes = 0;
+        diskIndexLoaded = true;
+        File[] files = directory != null ? directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX)) : null;
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                logger.debug("Unable to delete rendered cache file {}", file);
+            }
+        }
+    }
+
+    private void addToMemory(String key, Entry entry) {
+        if (entry.data.length > memoryCapacity / 4) {
+            return;
+        }
+        removeFromMemory(key);
+        memory.put(key, entry);
+        memoryBytes += entry.data.length;
+        Iterator<Map.Entry<String, Entry>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > memoryCapacity && eldest.hasNext()) {
+            memoryBytes -= eldest.next().getValue().data.length;
+            eldest.remove();
+        }
+    }
+
+    private void removeFromMemory(String key) {
+        Entry removed = memory.remove(key);
+        if (removed != null) {
+            memoryBytes -= removed.data.length;
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        if (diskCapacity == 0) {
+            return null;
+        }
+        File file = diskFile(key);
+        synchronized (this) {
+            loadDiskIndex();
+            if (diskIndex.get(file.getName()) == null) {
+                return null;
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            long sourceModified = in.readLong();
+            long sourceLength = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new Entry(sourceModified, sourceLength, data);
+        } catch (IOException e) {
+            logger.debug("Discarding unreadable rendered cache file {}", file, e);
+            deleteFromDisk(key);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (diskCapacity == 0 || entry.data.length > diskCapacity / 4) {
+            return;
+        }
+        File file = diskFile(key);
+        try {
+            DicomWebUtils.createPrivateDirectory(directory);
+            File temp = DicomWebUtils.createPrivateTempFile(directory, "render", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeLong(entry.sourceModified);
+                out.writeLong(entry.sourceLength);
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized (this) {
+                loadDiskIndex();
+                Long previous = diskIndex.put(file.getName(), file.length());
+                diskBytes += file.length() - (previous != null ? previous : 0);
+                evictFromDisk();
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write rendered cache file {}", file, e);
+        }
+    }
+
+    private void deleteFromDisk(String key) {
+        File file = diskFile(key);
+        synchronized (this) {
+            Long size = diskIndex.remove(file.getName());
+            if (size != null) {
+                diskBytes -= size;
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            logger.debug("Unable to delete rendered cache file {}", file);
+        }
+    }
+
+    private void evictFromDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = diskIndex.entrySet().iterator();
+        while (diskBytes > diskCapacity && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            diskBytes -= entry.getValue();
+            File file = new File(directory, entry.getKey());
+            if (!file.delete()) {
+                logger.debug("Unable to evict rendered cache file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Pick up entries left on disk by a previous run, oldest first
+     */
+    private void loadDiskIndex() {
+        if (diskIndexLoaded) {
+            return;
+        }
+        diskIndexLoaded = true;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            diskIndex.put(file.getName(), file.length());
+            diskBytes += file.length();
+        }
+        evictFromDisk();
+    }
+
+    private File diskFile(String key) {
+        return new File(directory, sha1(key) + FILE_SUFFIX);
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HTTP validators (ETag and Last-Modified) of a QIDO-RS or metadata response.
+ *
+ * Validators are built from what XNAT records about sessions, scans and resources (modification
+ * times, file counts and sizes) without opening any file, so a conditional request can be
+ * answered with 304 Not Modified before a response is built. Generated responses get weak ETags,
+ * since equal versions promise equivalent, not byte-identical, content; stored instance files get
+ * strong ETags, which also validate range requests.
+ */
+public class ResourceValidator {
+
+    private final String etag;
+    private final long lastModified;
+
+    private ResourceValidator(String etag, long lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Weak validators of a generated response
+     *
+     * @param version      a value that changes whenever the response would change
+     * @param lastModified latest modification in milliseconds, or -1 if unknown
+     */
+    public static ResourceValidator of(String version, long lastModified) {
+        return new ResourceValidator("W/\"" + sha1(version) + "\"", lastModified);
+    }
+
+    /**
+     * Strong validators of content whose bytes are fixed by {@code version}
+     */
+    public static ResourceValidator strong(String version, long lastModified) {
+        return new ResourceValidator("\"" + sha1(version) + "\"", lastModified);
+    }
+
+    /**
+     * Validators of another representation of the same content, such as a different transfer
+     * syntax; weak and strong validators stay so
+     */
+    public ResourceValidator withVariant(String variant) {
+        String version = etag + "|" + variant;
+        return isWeak() ? of(version, lastModified) : strong(version, lastModified);
+    }
+
+    public boolean isWeak() {
+        return etag.startsWith("W/");
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Latest modification in milliseconds, or -1 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Whether the conditional headers of a request match; a null request never matches
+     */
+    public boolean isNotModified(HttpServletRequest request) {
+        return ConditionalHeaders.of(request).isNotModified(this);
+    }
+
+    /**
+     * Whether a range request may be served as partial content: true without If-Range, otherwise
+     * only when If-Range names this strong ETag or exactly this modification date (RFC 7233 Section 3.2)
+     */
+    public boolean isRangeCurrent(HttpServletRequest request) {
+        String ifRange = request != null ? request.getHeader(HttpHeaders.IF_RANGE) : null;
+        if (ifRange == null || ifRange.trim().isEmpty()) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return !isWeak() && value.equals(etag);
+        }
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return lastModified >= 0 && date >= 0 && lastModified / 1000 == date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * ETag and, when known, Last-Modified headers for a 200 or 304 response
+     */
+    public HttpHeaders toHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(etag);
+        if (lastModified >= 0) {
+            headers.setLastModified(lastModified);
+        }
+        return headers;
+    }
+
+    /**
+     * Whether a client holding a response with the given validators can reuse it. If-None-Match
+     * takes precedence over If-Modified-Since (RFC 7232 Section 6) and is compared weakly.
+     *
+     * @param ifNoneMatch     If-None-Match header, or null
+     * @param ifModifiedSince If-Modified-Since in milliseconds, or -1 if absent
+     */
+    public boolean isNotModified(String ifNoneMatch, long ifModifiedSince) {
+        if (ifNoneMatch != null && !ifNoneMatch.trim().isEmpty()) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || opaqueTag(tag).equals(opaqueTag(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // HTTP dates have second precision
+        return ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static String opaqueTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
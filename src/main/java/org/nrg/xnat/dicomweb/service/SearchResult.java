@@ -0,0 +1,40 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+
+import java.util.List;
+
+/**
+ * One page of QIDO-RS matches together with the total number of matches
+ */
+public class SearchResult {
+
+    private final List<Attributes> matches;
+    private final int offset;
+    private final int totalMatches;
+
+    public SearchResult(List<Attributes> matches, int offset, int totalMatches) {
+        this.matches = matches;
+        this.offset = offset;
+        this.totalMatches = totalMatches;
+    }
+
+    public List<Attributes> getMatches() {
+        return matches;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getTotalMatches() {
+        return totalMatches;
+    }
+
+    /**
+     * Whether further matches exist beyond this page
+     */
+    public boolean hasMoreMatches() {
+        return offset + matches.size() < totalMatches;
+    }
+}
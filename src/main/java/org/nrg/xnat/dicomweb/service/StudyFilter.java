@@ -0,0 +1,246 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.nrg.xft.search.CriteriaCollection;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Study-level QIDO-RS matching keys translated into XNAT search criteria or SQL conditions.
+ *
+ * Supported keys are PatientID, PatientName, StudyDate (single date or range), AccessionNumber,
+ * StudyInstanceUID (list) and ModalitiesInStudy (list). All keys of the query, including ones
+ * that cannot be pushed down, are then checked against the built study attributes with a
+ * {@link QueryMatcher}, so results are exact even where the database match is coarser
+ * (for example case sensitivity of wildcard matches).
+ */
+class StudyFilter {
+
+    private static final String SESSION = "xnat:imageSessionData/";
+
+    private final String patientId;
+    private final String patientName;
+    private final String dateFrom;
+    private final String dateTo;
+    private final String accessionNumber;
+    private final List<String> studyInstanceUIDs;
+    private final List<String> modalities;
+    private final QueryMatcher matcher;
+
+    private StudyFilter(String patientId, String patientName, String dateFrom, String dateTo,
+                        String accessionNumber, List<String> studyInstanceUIDs, List<String> modalities,
+                        QueryMatcher matcher) {
+        this.patientId = patientId;
+        this.patientName = patientName;
+        this.dateFrom = dateFrom;
+        this.dateTo = dateTo;
+        this.accessionNumber = accessionNumber;
+        this.studyInstanceUIDs = studyInstanceUIDs;
+        this.modalities = modalities;
+        this.matcher = matcher;
+    }
+
+    /**
+     * Build a filter from QIDO-RS query attributes; null or empty attributes match everything
+     *
+     * @throws IllegalArgumentException if StudyDate is not a valid date or range
+     */
+    static StudyFilter fromAttributes(Attributes query) {
+        if (query == null) {
+            return new StudyFilter(null, null, null, null, null, Collections.emptyList(), Collections.emptyList(),
+                    QueryMatcher.compile(null));
+        }
+
+        String[] dateRange = parseDateRange(query.getString(Tag.StudyDate));
+        return new StudyFilter(
+                emptyToNull(query.getString(Tag.PatientID)),
+                emptyToNull(query.getString(Tag.PatientName)),
+                dateRange[0],
+                dateRange[1],
+                emptyToNull(query.getString(Tag.AccessionNumber)),
+                splitValues(query.getStrings(Tag.StudyInstanceUID)),
+                splitValues(query.getStrings(Tag.ModalitiesInStudy)),
+                QueryMatcher.compile(query));
+    }
+
+    boolean isEmpty() {
+        return patientId == null && patientName == null && dateFrom == null && dateTo == null
+                && accessionNumber == null && studyInstanceUIDs.isEmpty() && modalities.isEmpty();
+    }
+
+    /**
+     * Whether ModalitiesInStudy is a matching key, which needs the scans of each candidate
+     */
+    boolean hasModalities() {
+        return !modalities.isEmpty();
+    }
+
+    /**
+     * Criteria selecting the image sessions of a project that can match this filter
+     */
+    CriteriaCollection toCriteria(String projectId) {
+        CriteriaCollection cc = new CriteriaCollection("AND");
+        cc.addClause(SESSION + "project", projectId);
+
+        // The study attributes report the XNAT subject as both PatientID and PatientName
+        addValueClause(cc, SESSION + "subject_ID", patientId);
+        addValueClause(cc, SESSION + "subject_ID", patientName);
+        addValueClause(cc, SESSION + "label", accessionNumber);
+
+        if (dateFrom != null) {
+            cc.addClause(SESSION + "date", ">=", toIsoDate(dateFrom));
+        }
+        if (dateTo != null) {
+            cc.addClause(SESSION + "date", "<=", toIsoDate(dateTo));
+        }
+
+        addAnyOfClause(cc, SESSION + "UID", studyInstanceUIDs);
+        addAnyOfClause(cc, SESSION + "scans/scan/modality", modalities);
+
+        return cc;
+    }
+
+    /**
+     * SQL conditions over the aliases of {@link StudyRowQuery}, each starting with " AND "
+     */
+    String toSqlConditions(MapSqlParameterSource parameters) {
+        StringBuilder sql = new StringBuilder();
+
+        addValueCondition(sql, parameters, "sa.subject_id", "patientId", patientId);
+        addValueCondition(sql, parameters, "sa.subject_id", "patientName", patientName);
+        addValueCondition(sql, parameters, "e.label", "accessionNumber", accessionNumber);
+
+        if (dateFrom != null) {
+            sql.append(" AND e.date >= CAST(:dateFrom AS date)");
+            parameters.addValue("dateFrom", toIsoDate(dateFrom));
+        }
+        if (dateTo != null) {
+            sql.append(" AND e.date <= CAST(:dateTo AS date)");
+            parameters.addValue("dateTo", toIsoDate(dateTo));
+        }
+
+        if (!studyInstanceUIDs.isEmpty()) {
+            sql.append(" AND s.uid IN (:studyInstanceUIDs)");
+            parameters.addValue("studyInstanceUIDs", studyInstanceUIDs);
+        }
+        if (!modalities.isEmpty()) {
+            sql.append(" AND EXISTS (SELECT 1 FROM xnat_imagescandata m"
+                    + " WHERE m.image_session_id = s.id AND m.modality IN (:modalities))");
+            parameters.addValue("modalities", modalities);
+        }
+
+        return sql.toString();
+    }
+
+    /**
+     * Check the study attributes built for a session against this filter
+     */
+    boolean matches(Attributes study) {
+        return matcher.matches(study);
+    }
+
+    /**
+     * Parse a DICOM date or date range (YYYYMMDD, YYYYMMDD-, -YYYYMMDD, YYYYMMDD-YYYYMMDD)
+     *
+     * @return {from, to}, either of which may be null
+     */
+    static String[] parseDateRange(String value) {
+        value = emptyToNull(value);
+        if (value == null) {
+            return new String[2];
+        }
+        int dash = value.indexOf('-');
+        String from = dash < 0 ? value : value.substring(0, dash);
+        String to = dash < 0 ? value : value.substring(dash + 1);
+        return new String[]{checkDate(emptyToNull(from), value), checkDate(emptyToNull(to), value)};
+    }
+
+    /**
+     * Translate DICOM wildcards ('*' and '?') to SQL LIKE wildcards
+     */
+    static String toLikePattern(String value) {
+        return value.replace('*', '%').replace('?', '_');
+    }
+
+    private static void addValueClause(CriteriaCollection cc, String field, String value) {
+        if (value == null) {
+            return;
+        }
+        if (QueryMatcher.hasWildcard(value)) {
+            cc.addClause(field, "LIKE", toLikePattern(value));
+        } else {
+            cc.addClause(field, value);
+        }
+    }
+
+    private static void addValueCondition(StringBuilder sql, MapSqlParameterSource parameters, String column,
+                                          String name, String value) {
+        if (value == null) {
+            return;
+        }
+        if (QueryMatcher.hasWildcard(value)) {
+            sql.append(" AND ").append(column).append(" LIKE :").append(name);
+            parameters.addValue(name, toLikePattern(value));
+        } else {
+            sql.append(" AND ").append(column).append(" = :").append(name);
+            parameters.addValue(name, value);
+        }
+    }
+
+    private static void addAnyOfClause(CriteriaCollection cc, String field, List<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (values.size() == 1) {
+            cc.addClause(field, values.get(0));
+            return;
+        }
+        CriteriaCollection anyOf = new CriteriaCollection("OR");
+        for (String value : values) {
+            anyOf.addClause(field, value);
+        }
+        cc.add(anyOf);
+    }
+
+    private static List<String> splitValues(String[] values) {
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        List<String> split = new ArrayList<>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            for (String part : value.split("[\\\\,]")) {
+                String trimmed = part.trim();
+                if (!trimmed.isEmpty() && !split.contains(trimmed)) {
+                    split.add(trimmed);
+                }
+            }
+        }
+        return split;
+    }
+
+    private static String checkDate(String date, String original) {
+        if (date != null && !date.matches("\\d{8}")) {
+            throw new IllegalArgumentException("Invalid StudyDate: " + original);
+        }
+        return date;
+    }
+
+    private static String toIsoDate(String date) {
+        return date.substring(0, 4) + "-" + date.substring(4, 6) + "-" + date.substring(6, 8);
+    }
+
+    private static String emptyToNull(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+}
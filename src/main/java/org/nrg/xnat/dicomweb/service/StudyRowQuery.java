@@ -0,0 +1,164 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Study rows of a project read with a single projection query.
+ *
+ * Session fields, aggregated scan modalities and the scan count come back as flat rows, so a
+ * study list costs one query instead of loading every session and its scans as XFT objects.
+ * Project access must be checked by the caller; the query selects sessions whose primary
+ * project is the given one, like the XFT search it replaces. It applies no per-type
+ * permissions, so callers use it only when the user can read every session type found by
+ * {@link #sessionTypes}.
+ */
+class StudyRowQuery {
+
+    static final String SELECT =
+            "SELECT e.id, s.uid, sa.subject_id, e.date, e.time, e.label,"
+            + " string_agg(DISTINCT scan.modality, ',') AS modalities,"
+            + " count(scan.xnat_imagescandata_id) AS series_count"
+            + " FROM xnat_imagesessiondata s"
+            + " JOIN xnat_experimentdata e ON e.id = s.id"
+            + " JOIN xnat_subjectassessordata sa ON sa.id = s.id"
+            + " LEFT JOIN xnat_imagescandata scan ON scan.image_session_id = s.id"
+            + " WHERE e.project = :project AND s.uid IS NOT NULL AND s.uid <> ''";
+
+    static final String GROUP_BY = " GROUP BY e.id, s.uid, sa.subject_id, e.date, e.time, e.label";
+
+    /**
+     * Session and scan counts, the latest session and scan modifications and the number of DICOM files
+     * of a project. File counts are summed per scan first so resources do not multiply the scan rows.
+     */
+    static final String CHANGE_STAMP =
+            "SELECT count(DISTINCT e.id) AS sessions, count(scan.xnat_imagescandata_id) AS scans,"
+            + " max(m.last_modified) AS modified, max(sm.last_modified) AS scans_modified,"
+            + " coalesce(sum(files.dicom_files), 0) AS dicom_files"
+            + " FROM xnat_experimentdata e"
+            + " JOIN xnat_imagesessiondata s ON s.id = e.id"
+            + " LEFT JOIN xnat_experimentdata_meta_data m ON m.meta_data_id = e.experimentdata_info"
+            + " LEFT JOIN xnat_imagescandata scan ON scan.image_session_id = s.id"
+            + " LEFT JOIN xnat_imagescandata_meta_data sm ON sm.meta_data_id = scan.imagescandata_info"
+            + " LEFT JOIN (SELECT r.xnat_imagescandata_xnat_imagescandata_id AS scan_id,"
+            + " sum(r.file_count) AS dicom_files"
+            + " FROM xnat_abstractresource r"
+            + " LEFT JOIN xnat_resource res ON res.xnat_abstractresource_id = r.xnat_abstractresource_id"
+            + " WHERE lower(concat_ws(' ', r.label, res.format, res.content)) SIMILAR TO '%(dicom|secondary)%'"
+            + " GROUP BY r.xnat_imagescandata_xnat_imagescandata_id) files"
+            + " ON files.scan_id = scan.xnat_imagescandata_id"
+            + " WHERE e.project = :project";
+
+    /**
+     * Data types of the image sessions whose primary project is the given one
+     */
+    static final String SESSION_TYPES =
+            "SELECT DISTINCT m.element_name"
+            + " FROM xnat_experimentdata e"
+            + " JOIN xnat_imagesessiondata s ON s.id = e.id"
+            + " JOIN xdat_meta_element m ON m.xdat_meta_element_id = e.extension"
+            + " WHERE e.project = :project";
+
+    /**
+     * A study with the number of series XNAT records for it
+     */
+    static final class Row {
+
+        private final String sessionId;
+        private final Attributes attrs;
+        private final int seriesCount;
+
+        Row(String sessionId, Attributes attrs, int seriesCount) {
+            this.sessionId = sessionId;
+            this.attrs = attrs;
+            this.seriesCount = seriesCount;
+        }
+
+        String getSessionId() {
+            return sessionId;
+        }
+
+        Attributes getAttrs() {
+            return attrs;
+        }
+
+        int getSeriesCount() {
+            return seriesCount;
+        }
+    }
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    StudyRowQuery(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Study rows of a project that can match the filter; the filter must still be applied to each row
+     */
+    List<Row> find(String projectId, StudyFilter filter) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+        String sql = buildSql(projectId, filter, parameters);
+        return jdbcTemplate.query(sql, parameters, (rs, rowNum) -> toRow(rs));
+    }
+
+    /**
+     * A value that changes when sessions or scans of the project are added, removed or modified, or
+     * when DICOM files are added to or removed from its scans
+     */
+    static String changeStamp(NamedParameterJdbcTemplate jdbcTemplate, String projectId) {
+        List<String> stamps = jdbcTemplate.query(CHANGE_STAMP, new MapSqlParameterSource("project", projectId),
+                (rs, rowNum) -> rs.getLong("sessions") + ":" + rs.getLong("scans") + ":" + rs.getString("modified")
+                        + ":" + rs.getString("scans_modified") + ":" + rs.getLong("dicom_files"));
+        return stamps.isEmpty() ? null : stamps.get(0);
+    }
+
+    /**
+     * Element names, such as xnat:mrSessionData, of the image sessions in the project
+     */
+    static List<String> sessionTypes(NamedParameterJdbcTemplate jdbcTemplate, String projectId) {
+        return jdbcTemplate.queryForList(SESSION_TYPES, new MapSqlParameterSource("project", projectId), String.class);
+    }
+
+    static String buildSql(String projectId, StudyFilter filter, MapSqlParameterSource parameters) {
+        parameters.addValue("project", projectId);
+        return SELECT + filter.toSqlConditions(parameters) + GROUP_BY;
+    }
+
+    private static Row toRow(ResultSet rs) throws SQLException {
+        String sessionId = rs.getString("id");
+        String modalities = rs.getString("modalities");
+        Attributes attrs = studyAttributes(rs.getString("uid"), rs.getString("subject_id"),
+                rs.getString("date"), rs.getString("time"), rs.getString("label"), sessionId);
+        if (modalities != null && !modalities.isEmpty()) {
+            attrs.setString(Tag.ModalitiesInStudy, VR.CS, modalities.split(","));
+        }
+        return new Row(sessionId, attrs, rs.getInt("series_count"));
+    }
+
+    /**
+     * Study attributes from session fields; dates and times may use ISO separators
+     */
+    static Attributes studyAttributes(String studyUID, String subjectId, String date, String time,
+                                      String label, String sessionId) {
+        Attributes attrs = new Attributes();
+        if (studyUID != null && !studyUID.isEmpty()) {
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+        }
+        attrs.setString(Tag.PatientName, VR.PN, subjectId != null ? subjectId : "UNKNOWN");
+        attrs.setString(Tag.PatientID, VR.LO, subjectId != null ? subjectId : "UNKNOWN");
+        attrs.setString(Tag.StudyDate, VR.DA, date != null ? date.replace("-", "") : "");
+        attrs.setString(Tag.StudyTime, VR.TM, time != null ? time.replace(":", "") : "");
+        attrs.setString(Tag.StudyDescription, VR.LO, label != null ? label : "");
+        attrs.setString(Tag.AccessionNumber, VR.SH, label != null ? label : "");
+        attrs.setString(Tag.StudyID, VR.SH, sessionId != null ? sessionId : "");
+        return attrs;
+    }
+}
@@ -0,0 +1,145 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the representative slice of a series for thumbnails and remembers the choice.
+ *
+ * The middle instance by InstanceNumber is used; a series made of a single multi-frame instance
+ * uses its middle frame instead. Choices are kept in a bounded LRU keyed by series, so the header
+ * scan that produces them only runs the first time a series thumbnail is requested. The series
+ * chosen to represent a study is remembered the same way, keyed by study.
+ */
+class ThumbnailSelector {
+
+    /**
+     * A candidate image read from a DICOM header
+     */
+    static final class Candidate {
+
+        private final File file;
+        private final String sopInstanceUID;
+        private final Integer instanceNumber;
+        private final int numberOfFrames;
+
+        Candidate(File file, String sopInstanceUID, Integer instanceNumber, int numberOfFrames) {
+            this.file = file;
+            this.sopInstanceUID = sopInstanceUID;
+            this.instanceNumber = instanceNumber;
+            this.numberOfFrames = Math.max(1, numberOfFrames);
+        }
+    }
+
+    /**
+     * The chosen file and 0-based frame within it
+     */
+    static final class Selection {
+
+        private final File file;
+        private final String sopInstanceUID;
+        private final int frameIndex;
+
+        private Selection(File file, String sopInstanceUID, int frameIndex) {
+            this.file = file;
+            this.sopInstanceUID = sopInstanceUID;
+            this.frameIndex = frameIndex;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        String getSopInstanceUID() {
+            return sopInstanceUID;
+        }
+
+        int getFrameIndex() {
+            return frameIndex;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_INSTANCE_NUMBER = Comparator
+            .comparing((Candidate candidate) -> candidate.instanceNumber,
+                    Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(candidate -> candidate.file.getName());
+
+    private final LinkedHashMap<String, Selection> selections;
+    private final LinkedHashMap<String, String> studySeries;
+
+    ThumbnailSelector(int maxSeries) {
+        final int capacity = Math.max(1, maxSeries);
+        this.selections = new LinkedHashMap<String, Selection>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Selection> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.studySeries = new LinkedHashMap<String, String>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the remembered selection for a series if its file still exists
+     */
+    synchronized Selection get(String seriesKey) {
+        Selection selection = selections.get(seriesKey);
+        if (selection != null && !selection.file.isFile()) {
+            selections.remove(seriesKey);
+            return null;
+        }
+        return selection;
+    }
+
+    synchronized void put(String seriesKey, Selection selection) {
+        if (selection != null) {
+            selections.put(seriesKey, selection);
+        }
+    }
+
+    /**
+     * Return the SeriesInstanceUID remembered as the representative of a study, or null
+     */
+    synchronized String getStudySeries(String studyKey) {
+        return studySeries.get(studyKey);
+    }
+
+    synchronized void putStudySeries(String studyKey, String seriesInstanceUID) {
+        if (seriesInstanceUID != null) {
+            studySeries.put(studyKey, seriesInstanceUID);
+        }
+    }
+
+    /**
+     * Forget the representative series of a study, e.g. once that series is gone
+     */
+    synchronized void removeStudySeries(String studyKey) {
+        studySeries.remove(studyKey);
+    }
+
+    /**
+     * Pick the middle slice from the given candidates, or null if there are none
+     */
+    static Selection selectMiddle(List<Candidate> candidates) {
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
+        if (candidates.size() == 1) {
+            Candidate only = candidates.get(0);
+            return new Selection(only.file, only.sopInstanceUID, only.numberOfFrames / 2);
+        }
+
+        List<Candidate> sorted = new ArrayList<>(candidates);
+        sorted.sort(BY_INSTANCE_NUMBER);
+        Candidate middle = sorted.get((sorted.size() - 1) / 2);
+        return new Selection(middle.file, middle.sopInstanceUID, 0);
+    }
+}
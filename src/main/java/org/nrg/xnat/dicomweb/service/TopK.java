@@ -0,0 +1,62 @@
+package org.nrg.xnat.dicomweb.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the first {@code k} elements of a stream in a given order without sorting the stream.
+ *
+ * A heap ordered worst-first holds at most {@code k} elements, so offering {@code n} elements
+ * costs O(n log k) time and O(k) memory.
+ */
+class TopK<T> {
+
+    private final int k;
+    private final Comparator<? super T> order;
+    private final PriorityQueue<T> heap;
+    private int offered;
+
+    TopK(int k, Comparator<? super T> order) {
+        this.k = Math.max(0, k);
+        this.order = order;
+        this.heap = new PriorityQueue<>(Math.max(1, Math.min(this.k, 1024)), Collections.reverseOrder(order));
+    }
+
+    void offer(T element) {
+        offered++;
+        if (k == 0) {
+            return;
+        }
+        if (heap.size() < k) {
+            heap.add(element);
+        } else if (order.compare(element, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(element);
+        }
+    }
+
+    /**
+     * Number of elements offered so far, kept or not
+     */
+    int getOffered() {
+        return offered;
+    }
+
+    /**
+     * The kept elements in order, skipping the first {@code offset}
+     */
+    List<T> toList(int offset) {
+        List<T> sorted = new ArrayList<>(heap);
+        sorted.sort(order);
+        if (offset <= 0) {
+            return sorted;
+        }
+        if (offset >= sorted.size()) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(sorted.subList(offset, sorted.size()));
+    }
+}
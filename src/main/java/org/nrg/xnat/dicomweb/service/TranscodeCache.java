@@ -0,0 +1,173 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.nrg.xnat.dicomweb.utils.DicomWebUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded on-disk store of transcoded instances, evicting the least recently used.
+ *
+ * Keys name the source version and the target transfer syntax, so a changed source is stored under
+ * a new key and its old output ages out. Outputs are served as files so their size is known and
+ * ranges work. The newest output is never evicted, even when it alone exceeds the capacity, so the
+ * caller can still send it; it goes once the next output is stored. Outputs carry patient data, so
+ * the directory and its files are readable by the owner only, and {@link #clear()} removes them at
+ * shutdown.
+ */
+class TranscodeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TranscodeCache.class);
+
+    private static final String FILE_SUFFIX = ".dcm";
+
+    /**
+     * Writes the transcoded output to the given file
+     */
+    interface Writer {
+        void write(File target) throws IOException;
+    }
+
+    private final File directory;
+    private final long capacity;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    private boolean indexLoaded;
+
+    TranscodeCache(File directory, long capacity) {
+        this.directory = directory;
+        this.capacity = Math.max(0, capacity);
+    }
+
+    /**
+     * The stored output for the key, or null if there is none
+     */
+    File get(String key) {
+        File file = fileOf(key);
+        synchronized (this) {
+            loadIndex();
+            if (index.get(file.getName()) == null) {
+                return null;
+            }
+            if (!file.isFile()) {
+                bytes -= index.remove(file.getName());
+                return null;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Write and store the output for the key, replacing any previous one
+     */
+    File put(String key, Writer writer) throws IOException {
+        DicomWebUtils.createPrivateDirectory(directory);
+        synchronized (this) {
+            // Outputs of a previous run are indexed before this one lands among them
+            loadIndex();
+        }
+        File file = fileOf(key);
+        File temp = DicomWebUtils.createPrivateTempFile(directory, "transcode", ".tmp");
+        try {
+            writer.write(temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                logger.debug("Unable to delete transcode temp file {}", temp);
+            }
+        }
+
+        synchronized (this) {
+            Long previous = index.put(file.getName(), file.length());
+            bytes += file.length() - (previous != null ? previous : 0);
+            evict(file.getName());
+        }
+        return file;
+    }
+
+    /**
+     * Delete every stored output
+     */
+    synchronized void clear() {
+        index.clear();
+        bytes = 0;
+        indexLoaded = true;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                logger.debug("Unable to delete transcoded file {}", file);
+            }
+        }
+    }
+
+    synchronized long size() {
+        return bytes;
+    }
+
+    private void evict(String newest) {
+        Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (bytes > capacity && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(newest)) {
+                continue;
+            }
+            eldest.remove();
+            bytes -= entry.getValue();
+            File file = new File(directory, entry.getKey());
+            if (!file.delete()) {
+                logger.debug("Unable to evict transcoded file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Pick up outputs left on disk by a previous run, oldest first
+     */
+    private void loadIndex() {
+        if (indexLoaded) {
+            return;
+        }
+        indexLoaded = true;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            index.put(file.getName(), file.length());
+            bytes += file.length();
+        }
+        evict(null);
+    }
+
+    private File fileOf(String key) {
+        return new File(directory, sha1(key) + FILE_SUFFIX);
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.nrg.xft.security.UserI;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 
@@ -14,24 +15,116 @@ public interface XnatDicomService {
 
     /**
      * Search for studies in a project
+     * @param queryAttributes QIDO-RS matching keys, or null to return every study
+     * @throws IllegalArgumentException if a matching key is malformed
      */
     List<Attributes> searchStudies(UserI user, String projectId, Attributes queryAttributes);
 
+    /**
+     * Search for studies in a project, returning one page of matches ordered by StudyDate (newest first)
+     * @param offset number of leading matches to skip
+     * @param limit maximum number of matches to return, or 0 for no limit
+     * @param includeFields derived attributes to add to each match
+     * @throws IllegalArgumentException if a matching key is malformed
+     */
+    SearchResult searchStudies(UserI user, String projectId, Attributes queryAttributes, int offset, int limit,
+                               IncludeFields includeFields);
+
+    /**
+     * Search for studies in every project the user can read, merged on StudyInstanceUID and ordered
+     * like {@link #searchStudies(UserI, String, Attributes, int, int, IncludeFields)}. Each match carries
+     * a RetrieveURL relative to the DICOMweb root.
+     * @throws IllegalArgumentException if a matching key is malformed
+     */
+    SearchResult searchAllStudies(UserI user, Attributes queryAttributes, int offset, int limit,
+                                  IncludeFields includeFields);
+
+    /**
+     * Search for series in every project the user can read, merged on SeriesInstanceUID
+     * @throws IllegalArgumentException if a matching key is malformed
+     */
+    SearchResult searchAllSeries(UserI user, Attributes queryAttributes, int offset, int limit,
+                                 IncludeFields includeFields);
+
+    /**
+     * Search for instances in every project the user can read, merged on SOPInstanceUID
+     * @throws IllegalArgumentException if a matching key is malformed
+     */
+    SearchResult searchAllInstances(UserI user, Attributes queryAttributes, int offset, int limit,
+                                    IncludeFields includeFields);
+
     /**
      * Search for series within a study
+     * @param queryAttributes QIDO-RS matching keys, or null to return every series
+     * @throws IllegalArgumentException if a matching key is malformed
      */
     List<Attributes> searchSeries(UserI user, String projectId, String studyInstanceUID, Attributes queryAttributes);
 
+    /**
+     * Search for series within a study, adding the requested derived attributes
+     * @throws IllegalArgumentException if a matching key is malformed
+     */
+    List<Attributes> searchSeries(UserI user, String projectId, String studyInstanceUID, Attributes queryAttributes,
+                                  IncludeFields includeFields);
+
     /**
      * Search for instances within a series
+     * @param queryAttributes QIDO-RS matching keys, or null to return every instance
+     * @throws IllegalArgumentException if a matching key is malformed
      */
     List<Attributes> searchInstances(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID, Attributes queryAttributes);
 
+    /**
+     * Search for instances within a series, returning only the default, matching and included attributes
+     * @param includeFields attributes to return, or null for the complete header
+     * @throws IllegalArgumentException if a matching key is malformed
+     */
+    List<Attributes> searchInstances(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID,
+                                     Attributes queryAttributes, IncludeFields includeFields);
+
+    /**
+     * Validators of the study list of a project, or null if they cannot be computed
+     */
+    ResourceValidator getProjectValidator(UserI user, String projectId);
+
+    /**
+     * Validators of a study's series list and metadata, from session and scan records; no file is read
+     * @return null if the study is not found or the validators cannot be computed
+     */
+    ResourceValidator getStudyValidator(UserI user, String projectId, String studyInstanceUID);
+
+    /**
+     * Validators of a series' instance list and metadata, from scan and resource records; no file is read
+     * @return null if the series is not found or the validators cannot be computed
+     */
+    ResourceValidator getSeriesValidator(UserI user, String projectId, String studyInstanceUID,
+                                         String seriesInstanceUID);
+
     /**
      * Retrieve a DICOM instance
      */
     InputStream retrieveInstance(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID, String sopInstanceUID);
 
+    /**
+     * Locate the stored file of a DICOM instance with its size and validators, without reading it
+     * @return null if the instance is not found
+     */
+    InstanceFile locateInstance(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID,
+                                String sopInstanceUID);
+
+    /**
+     * List the stored files of every instance in a series from its DICOM resources, without reading them
+     * @return an empty list if the series is not found
+     */
+    List<InstanceFile> locateSeriesInstances(UserI user, String projectId, String studyInstanceUID,
+                                             String seriesInstanceUID);
+
+    /**
+     * List the stored files of every instance in a study, series by series, without reading them
+     * @return an empty list if the study is not found
+     */
+    List<InstanceFile> locateStudyInstances(UserI user, String projectId, String studyInstanceUID);
+
     /**
      * Retrieve metadata for an instance
      */
@@ -63,9 +156,58 @@ public interface XnatDicomService {
     byte[] retrieveRenderedInstance(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID, String sopInstanceUID);
 
     /**
-     * Retrieve specific frame(s) from a DICOM instance
+     * Retrieve a rendered instance as JPEG using the given viewport, quality and window
+     */
+    byte[] retrieveRenderedInstance(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID, String sopInstanceUID, RenderParams renderParams);
+
+    /**
+     * Retrieve a small JPEG of the middle slice of a series
+     */
+    byte[] retrieveSeriesThumbnail(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID);
+
+    /**
+     * Retrieve a small JPEG representing a study (middle slice of its largest series)
+     */
+    byte[] retrieveStudyThumbnail(UserI user, String projectId, String studyInstanceUID);
+
+    /**
+     * Locate specific frame(s) of a DICOM instance; frames are read or decoded only when written
+     * @param frameNumbers comma-separated list of frame numbers (1-based)
+     * @return the frames in request order, or null if the instance or none of the frames exist
+     */
+    InstanceFrames locateFrames(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID, String sopInstanceUID, String frameNumbers);
+
+    /**
+     * Retrieve specific frame(s) from a DICOM instance rendered as JPEG
      * @param frameNumbers comma-separated list of frame numbers (1-based)
-     * @return list of byte arrays, one per requested frame
+     * @return list of JPEG images, one per requested frame
+     */
+    List<byte[]> retrieveRenderedFrames(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID, String sopInstanceUID, String frameNumbers, RenderParams renderParams);
+
+    /**
+     * An instance in the requested transfer syntax: the stored file when it already uses the syntax,
+     * otherwise a transcoded copy kept in the on-disk transcode cache. Either way its ETag is the
+     * source's varied by the syntax, so it can be checked before transcoding.
+     * @param transferSyntaxUID the syntax to return, or null for the stored one
+     * @return null if the instance cannot be transcoded to the syntax
+     * @throws IOException if the instance could not be read or the transcoded copy written
+     */
+    InstanceFile transcodeInstance(InstanceFile instance, String transferSyntaxUID) throws IOException;
+
+    /**
+     * A transcoded copy of the instance already kept in the transcode cache, without transcoding
+     * @return null if no copy in the syntax is stored
+     */
+    InstanceFile findTranscodedInstance(InstanceFile instance, String transferSyntaxUID);
+
+    /**
+     * Forget cached project access decisions after a group, role or project access change
+     * @param login the user whose access changed, or null for every user
+     */
+    void invalidateProjectAccess(String login);
+
+    /**
+     * Forget cached access decisions about a project after its accessibility or membership changed
      */
-    List<byte[]> retrieveFrames(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID, String sopInstanceUID, String frameNumbers);
+    void invalidateProjectAccessTo(String projectId);
 }
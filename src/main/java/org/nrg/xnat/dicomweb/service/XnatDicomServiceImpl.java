@@ -2,131 +2,710 @@ package org.nrg.xnat.dicomweb.service;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.image.BufferedImageUtils;
+import org.dcm4che3.imageio.codec.Transcoder;
 import org.dcm4che3.imageio.plugins.dcm.DicomImageReadParam;
 import org.nrg.xdat.om.XnatProjectdata;
 import org.nrg.xdat.om.XnatImagesessiondata;
 import org.nrg.action.ServerException;
+import org.nrg.xdat.XDAT;
 import org.nrg.xdat.model.CatEntryI;
+import org.nrg.xdat.security.helpers.Permissions;
 import org.nrg.xdat.om.XnatImagescandata;
 import org.nrg.xdat.om.XnatAbstractresource;
 import org.nrg.xdat.om.XnatResourcecatalog;
 import org.nrg.xft.security.UserI;
 import org.nrg.xft.XFTItem;
 import org.nrg.xft.search.CriteriaCollection;
+import org.nrg.xnat.dicomweb.utils.DicomWebUtils;
 import org.nrg.xnat.utils.CatalogUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Service;
 
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 /**
  * XNAT 1.9.x implementation of DICOM service
  */
 @Service
-public class XnatDicomServiceImpl implements XnatDicomService {
+public class XnatDicomServiceImpl implements XnatDicomService, DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(XnatDicomServiceImpl.class);
 
+    /**
+     * QIDO-RS study order: most recent StudyDate first, studies without a date last, then by UID
+     */
+    private static final Comparator<Attributes> STUDY_ATTRIBUTE_ORDER = Comparator
+            .comparing((Attributes attrs) -> attrs.getString(Tag.StudyDate, ""), Comparator.reverseOrder())
+            .thenComparing(attrs -> attrs.getString(Tag.StudyInstanceUID, ""));
+
+    private static final Comparator<StudyCandidate> STUDY_ORDER =
+            Comparator.comparing(candidate -> candidate.attrs, STUDY_ATTRIBUTE_ORDER);
+
+    /**
+     * Study-level matching keys used to narrow root series and instance searches to candidate studies
+     */
+    private static final int[] STUDY_MATCHING_KEYS = {
+            Tag.StudyDate,
+            Tag.AccessionNumber,
+            Tag.PatientName,
+            Tag.PatientID,
+            Tag.StudyInstanceUID
+    };
+
+    /**
+     * A matching study and the attributes built for it so far; the session object is only
+     * present when the study was loaded through XFT, and the series count only when it was projected
+     */
+    private static final class StudyCandidate {
+
+        private final XnatImagesessiondata session;
+        private final String sessionId;
+        private final Attributes attrs;
+        private final int seriesCount;
+
+        private StudyCandidate(XnatImagesessiondata session, String sessionId, Attributes attrs, int seriesCount) {
+            this.session = session;
+            this.sessionId = sessionId;
+            this.attrs = attrs;
+            this.seriesCount = seriesCount;
+        }
+    }
+
+    private final ParallelFrameDecoder frameDecoder = new ParallelFrameDecoder(
+            DicomWebUtils.getIntProperty("dicomweb.frameDecode.threads", Runtime.getRuntime().availableProcessors()));
+
+    private final FrameCache frameCache = new FrameCache(
+            DicomWebUtils.getLongProperty("dicomweb.frameCache.maxBytes", 256L * 1024 * 1024));
+
+    private final FramePrefetcher framePrefetcher = new FramePrefetcher(
+            DicomWebUtils.getIntProperty("dicomweb.prefetch.depth", 0),
+            DicomWebUtils.getIntProperty("dicomweb.prefetch.maxInstances", 32),
+            DicomWebUtils.getIntProperty("dicomweb.prefetch.threads", 2));
+
+    private final RenderedImageCache renderedImageCache = new RenderedImageCache(
+            DicomWebUtils.getLongProperty("dicomweb.renderCache.memoryBytes", 32L * 1024 * 1024),
+            DicomWebUtils.getCacheDirectory("dicomweb.renderCache.dir", "rendered"),
+            DicomWebUtils.getLongProperty("dicomweb.renderCache.diskBytes", 1024L * 1024 * 1024));
+
+    private final ImageCodecPool imageCodecPool = new ImageCodecPool(
+            DicomWebUtils.getIntProperty("dicomweb.imageio.maxReaders", 2 * Runtime.getRuntime().availableProcessors()),
+            DicomWebUtils.getIntProperty("dicomweb.imageio.maxWriters", Runtime.getRuntime().availableProcessors()),
+            DicomWebUtils.getLongProperty("dicomweb.imageio.statsIntervalMillis", 900000L));
+
+    private final RenderParams thumbnailParams = RenderParams.parse(
+            DicomWebUtils.getIntProperty("dicomweb.thumbnail.size", 128) + ","
+                    + DicomWebUtils.getIntProperty("dicomweb.thumbnail.size", 128),
+            String.valueOf(DicomWebUtils.getIntProperty("dicomweb.thumbnail.quality", 80)), null);
+
+    private final ThumbnailSelector thumbnailSelector = new ThumbnailSelector(
+            DicomWebUtils.getIntProperty("dicomweb.thumbnail.maxSeries", 4096));
+
+    private final ProjectFanOut projectFanOut = new ProjectFanOut(
+            DicomWebUtils.getIntProperty("dicomweb.qido.fanoutThreads", 4));
+
+    private volatile boolean studyProjectionEnabled =
+            Boolean.parseBoolean(System.getProperty("dicomweb.qido.studyProjection", "true"));
+
+    private final QueryResultCache<SearchResult> studyResultCache = new QueryResultCache<>(
+            DicomWebUtils.getLongProperty("dicomweb.qidoCache.ttlMillis", 10000L),
+            DicomWebUtils.getLongProperty("dicomweb.qidoCache.revalidateMillis", 1000L),
+            DicomWebUtils.getIntProperty("dicomweb.qidoCache.maxEntries", 1024),
+            this::projectChangeStamp,
+            result -> new SearchResult(copyAttributes(result.getMatches()), result.getOffset(),
+                    result.getTotalMatches()));
+
+    private final QueryResultCache<List<Attributes>> seriesResultCache = new QueryResultCache<>(
+            DicomWebUtils.getLongProperty("dicomweb.qidoCache.ttlMillis", 10000L),
+            DicomWebUtils.getLongProperty("dicomweb.qidoCache.revalidateMillis", 1000L),
+            DicomWebUtils.getIntProperty("dicomweb.qidoCache.maxEntries", 1024),
+            this::projectChangeStamp,
+            XnatDicomServiceImpl::copyAttributes);
+
+    private final InstanceIndex instanceIndex = new InstanceIndex(
+            DicomWebUtils.getIntProperty("dicomweb.instanceIndex.maxSeries", 128));
+
+    private final SingleFlight<List<Attributes>> metadataFlight = new SingleFlight<>();
+
+    private final TranscodeCache transcodeCache = new TranscodeCache(
+            DicomWebUtils.getCacheDirectory("dicomweb.transcodeCache.dir", "transcoded"),
+            DicomWebUtils.getLongProperty("dicomweb.transcodeCache.diskBytes", 4L * 1024 * 1024 * 1024));
+
+    private final SingleFlight<File> transcodeFlight = new SingleFlight<>();
+
+    private final ProjectAccessCache projectAccess = new ProjectAccessCache(
+            DicomWebUtils.getLongProperty("dicomweb.accessCache.ttlMillis", 10000L),
+            DicomWebUtils.getIntProperty("dicomweb.accessCache.maxEntries", 4096));
+
+    private final MissingUidCache missingUids = new MissingUidCache(
+            DicomWebUtils.getLongProperty("dicomweb.missCache.ttlMillis", 30000L),
+            DicomWebUtils.getLongProperty("dicomweb.missCache.revalidateMillis", 5000L),
+            DicomWebUtils.getIntProperty("dicomweb.missCache.maxEntries", 10000),
+            this::projectChangeStamp);
+
+    @Override
+    public void destroy() {
+        framePrefetcher.shutdown();
+        frameDecoder.shutdown();
+        frameCache.clear();
+        imageCodecPool.clear();
+        projectFanOut.shutdown();
+        studyResultCache.clear();
+        seriesResultCache.clear();
+        instanceIndex.clear();
+        missingUids.clear();
+        projectAccess.clear();
+        if (!Boolean.getBoolean("dicomweb.diskCache.keepOnShutdown")) {
+            renderedImageCache.clear();
+            transcodeCache.clear();
+        }
+    }
+
     @Override
     public List<Attributes> searchStudies(UserI user, String projectId, Attributes queryAttributes) {
-        List<Attributes> results = new ArrayList<>();
+        return searchStudies(user, projectId, queryAttributes, 0, 0, IncludeFields.DEFAULT).getMatches();
+    }
+
+    @Override
+    public SearchResult searchStudies(UserI user, String projectId, Attributes queryAttributes,
+                                      int offset, int limit, IncludeFields includeFields) {
+        // Built before the try block so malformed matching keys reach the caller
+        StudyFilter filter = StudyFilter.fromAttributes(queryAttributes);
 
         try {
-            // Get project and check permissions
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
+            // Get project and check permissions; results are cached per user, since XFT filters them by user
+            if (!canReadProject(user, projectId)) {
                 logger.warn("Project not found or user does not have access: {}", projectId);
-                return results;
+                return new SearchResult(new ArrayList<>(), offset, 0);
             }
 
-            // Search for image sessions in this project using CriteriaCollection
-            CriteriaCollection cc = new CriteriaCollection("AND");
-            cc.addClause("xnat:imageSessionData/project", projectId);
+            String key = "studies|" + userScope(user, projectId) + "|" + QueryResultCache.normalize(queryAttributes)
+                    + "|" + offset + "|" + limit + "|" + includeFields.toCacheKey();
+            return studyResultCache.get(projectId, key,
+                    () -> findStudies(user, projectId, filter, offset, limit, includeFields));
 
-            ArrayList sessions = XnatImagesessiondata.getXnatImagesessiondatasByField(
-                "xnat:imageSessionData/project", projectId, user, false);
+        } catch (Exception e) {
+            logger.error("Error searching studies in project: " + projectId, e);
+            return new SearchResult(new ArrayList<>(), offset, 0);
+        }
+    }
 
-            logger.debug("Found {} sessions in project {}",
-                        sessions != null ? sessions.size() : 0, projectId);
+    /**
+     * Studies of a project matching the filter. Failures propagate so that they are not cached as empty
+     * results; searchStudies logs them.
+     */
+    private SearchResult findStudies(UserI user, String projectId, StudyFilter filter, int offset, int limit,
+                                     IncludeFields includeFields) throws Exception {
+        List<Attributes> results = new ArrayList<>();
 
-            if (sessions != null) {
-                for (Object sessionObj : sessions) {
-                    try {
-                        if (sessionObj instanceof XnatImagesessiondata) {
-                            XnatImagesessiondata session = (XnatImagesessiondata) sessionObj;
-
-                            // Only include sessions with StudyInstanceUID
-                            String studyUID = session.getUid();
-                            if (studyUID != null && !studyUID.isEmpty()) {
-                                Attributes attrs = createStudyAttributes(session);
-                                results.add(attrs);
-                            }
-                        }
-                    } catch (Exception e) {
-                        logger.error("Error processing session", e);
+        // Keep only the best offset + limit matches; scan-derived attributes are built for the page only
+        int keep = limit > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) offset + limit) : Integer.MAX_VALUE;
+        TopK<StudyCandidate> page = new TopK<>(keep, STUDY_ORDER);
+
+        List<StudyRowQuery.Row> rows = findStudyRows(user, projectId, filter);
+        if (rows != null) {
+            for (StudyRowQuery.Row row : rows) {
+                if (filter.matches(row.getAttrs())) {
+                    page.offer(new StudyCandidate(null, row.getSessionId(), row.getAttrs(), row.getSeriesCount()));
+                }
+            }
+        } else {
+            offerHydratedStudies(user, projectId, filter, page);
+        }
+
+        int totalMatches = page.getOffered();
+        for (StudyCandidate candidate : page.toList(offset)) {
+            if (candidate.session != null && !filter.hasModalities()) {
+                addModalitiesInStudy(candidate.attrs, candidate.session);
+            }
+            addStudyRelatedCounts(user, candidate, includeFields);
+            results.add(candidate.attrs);
+        }
+
+        logger.info("Study search for project {} returned {} of {} studies", projectId, results.size(),
+                totalMatches);
+
+        return new SearchResult(results, offset, totalMatches);
+    }
+
+    @Override
+    public SearchResult searchAllStudies(UserI user, Attributes queryAttributes, int offset, int limit,
+                                         IncludeFields includeFields) {
+        // Validated here so malformed keys reach the caller instead of failing in each project
+        StudyFilter.fromAttributes(queryAttributes);
+
+        int keep = limit > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) offset + limit) : 0;
+        List<SearchResult> perProject = projectFanOut.searchAll(getAccessibleProjectIds(user), projectId -> {
+            SearchResult result = searchStudies(user, projectId, queryAttributes, 0, keep, includeFields);
+            setRetrieveURLs(result.getMatches(), projectId);
+            return result;
+        });
+
+        List<List<Attributes>> matches = new ArrayList<>();
+        int totalMatches = 0;
+        for (SearchResult result : perProject) {
+            matches.add(result.getMatches());
+            totalMatches += result.getTotalMatches();
+        }
+        List<Attributes> studies = new ArrayList<>();
+        totalMatches -= ProjectFanOut.mergeUnique(matches, Tag.StudyInstanceUID, studies);
+        studies.sort(STUDY_ATTRIBUTE_ORDER);
+
+        logger.info("Study search across {} projects returned {} studies", perProject.size(), studies.size());
+        return page(studies, offset, limit, totalMatches);
+    }
+
+    @Override
+    public SearchResult searchAllSeries(UserI user, Attributes queryAttributes, int offset, int limit,
+                                        IncludeFields includeFields) {
+        // Compiled once for every study searched; studies are already restricted by the study query
+        QueryMatcher matcher = QueryMatcher.compile(queryAttributes, Tag.StudyInstanceUID);
+        Attributes studyQuery = createStudyQuery(queryAttributes);
+
+        // Each project stops once it alone could fill the page; the total is then unknown
+        int keep = limit > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) offset + limit) : Integer.MAX_VALUE;
+        AtomicBoolean truncated = new AtomicBoolean();
+        List<List<Attributes>> perProject = projectFanOut.searchAll(getAccessibleProjectIds(user), projectId -> {
+            List<Attributes> series = new ArrayList<>();
+            for (Attributes study : searchStudies(user, projectId, studyQuery)) {
+                String studyUID = study.getString(Tag.StudyInstanceUID);
+                for (Attributes attrs : searchSeries(user, projectId, studyUID, queryAttributes, matcher,
+                        includeFields)) {
+                    attrs.setString(Tag.RetrieveURL, VR.UR, retrieveURL(projectId, studyUID,
+                            attrs.getString(Tag.SeriesInstanceUID)));
+                    series.add(attrs);
+                }
+                if (series.size() >= keep) {
+                    truncated.set(true);
+                    break;
+                }
+            }
+            return series;
+        });
+
+        List<Attributes> series = new ArrayList<>();
+        ProjectFanOut.mergeUnique(perProject, Tag.SeriesInstanceUID, series);
+
+        logger.info("Series search across {} projects returned {} series", perProject.size(), series.size());
+        return page(series, offset, limit, truncated.get() ? series.size() + 1 : series.size());
+    }
+
+    @Override
+    public SearchResult searchAllInstances(UserI user, Attributes queryAttributes, int offset, int limit,
+                                           IncludeFields includeFields) {
+        // Compiled once for every series searched; studies and series are already restricted by their queries
+        QueryMatcher matcher = QueryMatcher.compile(queryAttributes, Tag.StudyInstanceUID, Tag.SeriesInstanceUID);
+        Attributes studyQuery = createStudyQuery(queryAttributes);
+        Attributes seriesQuery = new Attributes();
+        if (queryAttributes != null && queryAttributes.containsValue(Tag.SeriesInstanceUID)) {
+            seriesQuery.setString(Tag.SeriesInstanceUID, VR.UI, queryAttributes.getStrings(Tag.SeriesInstanceUID));
+        }
+        if (queryAttributes != null && queryAttributes.containsValue(Tag.Modality)) {
+            seriesQuery.setString(Tag.Modality, VR.CS, queryAttributes.getStrings(Tag.Modality));
+        }
+        QueryMatcher seriesMatcher = QueryMatcher.compile(seriesQuery, Tag.StudyInstanceUID);
+
+        // Each project stops once it alone could fill the page; the total is then unknown
+        int keep = limit > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) offset + limit) : Integer.MAX_VALUE;
+        AtomicBoolean truncated = new AtomicBoolean();
+        List<List<Attributes>> perProject = projectFanOut.searchAll(getAccessibleProjectIds(user), projectId -> {
+            List<Attributes> instances = new ArrayList<>();
+            for (Attributes study : searchStudies(user, projectId, studyQuery)) {
+                String studyUID = study.getString(Tag.StudyInstanceUID);
+                for (Attributes series : searchSeries(user, projectId, studyUID, seriesQuery, seriesMatcher,
+                        IncludeFields.DEFAULT)) {
+                    String seriesUID = series.getString(Tag.SeriesInstanceUID);
+                    for (Attributes attrs : searchInstances(user, projectId, studyUID, seriesUID, queryAttributes,
+                            matcher, includeFields)) {
+                        attrs.setString(Tag.RetrieveURL, VR.UR, retrieveURL(projectId, studyUID, seriesUID,
+                                attrs.getString(Tag.SOPInstanceUID)));
+                        instances.add(attrs);
+                    }
+                    if (instances.size() >= keep) {
+                        truncated.set(true);
+                        return instances;
                     }
                 }
             }
+            return instances;
+        });
+
+        List<Attributes> instances = new ArrayList<>();
+        ProjectFanOut.mergeUnique(perProject, Tag.SOPInstanceUID, instances);
 
-            logger.info("Study search for project {} returned {} studies", projectId, results.size());
+        logger.info("Instance search across {} projects returned {} instances", perProject.size(), instances.size());
+        return page(instances, offset, limit, truncated.get() ? instances.size() + 1 : instances.size());
+    }
 
+    /**
+     * IDs of the projects the user can read, one query per root search
+     */
+    private List<String> getAccessibleProjectIds(UserI user) {
+        try {
+            return projectAccess.readableProjects(userKey(user), () -> {
+                List<String> projectIds = new ArrayList<>();
+                List<XnatProjectdata> projects = XnatProjectdata.getAllXnatProjectdatas(user, false);
+                if (projects != null) {
+                    for (XnatProjectdata project : projects) {
+                        projectIds.add(project.getId());
+                    }
+                }
+                return projectIds;
+            });
         } catch (Exception e) {
-            logger.error("Error searching studies in project: " + projectId, e);
+            logger.error("Error listing accessible projects", e);
+            return new ArrayList<>();
         }
+    }
 
-        return results;
+    /**
+     * Whether the user can read the project, reusing recent decisions for the same user
+     */
+    private boolean canReadProject(UserI user, String projectId) throws Exception {
+        return projectAccess.canRead(userKey(user), projectId,
+                () -> XnatProjectdata.getXnatProjectdatasById(projectId, user, false) != null);
+    }
+
+    private static String userKey(UserI user) {
+        return user != null ? user.getLogin() : null;
+    }
+
+    /**
+     * Cache key prefix for results computed with the user's permissions
+     */
+    private static String userScope(UserI user, String projectId) {
+        return userKey(user) + "|" + projectId;
     }
 
     @Override
-    public List<Attributes> searchSeries(UserI user, String projectId, String studyInstanceUID, Attributes queryAttributes) {
-        List<Attributes> results = new ArrayList<>();
+    public InstanceFile transcodeInstance(InstanceFile instance, String transferSyntaxUID) throws IOException {
+        if (transferSyntaxUID == null) {
+            return instance;
+        }
+        String key = transcodeKey(instance, transferSyntaxUID);
+        try {
+            File transcoded = transcodeCache.get(key);
+            if (transcoded == null) {
+                transcoded = transcodeFlight.run(key, () -> {
+                    File stored = transcodeCache.get(key);
+                    return stored != null ? stored : transcode(instance.getFile(), key, transferSyntaxUID);
+                });
+            }
+            // A file already in the syntax is sent as stored, under the same ETag as a transcoded copy
+            return InstanceFile.transcoded(transcoded != null ? transcoded : instance.getFile(), instance,
+                    transferSyntaxUID);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // dcm4che has no codec for the source or requested syntax
+            logger.warn("Unable to transcode {} to {}: {}", instance.getFile().getAbsolutePath(), transferSyntaxUID,
+                    e.getMessage());
+            return null;
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted transcoding " + instance.getFile().getName());
+        } catch (Exception e) {
+            throw new IOException("Unable to transcode " + instance.getFile().getName() + " to "
+                    + transferSyntaxUID, e);
+        }
+    }
+
+    @Override
+    public InstanceFile findTranscodedInstance(InstanceFile instance, String transferSyntaxUID) {
+        File transcoded = transcodeCache.get(transcodeKey(instance, transferSyntaxUID));
+        return transcoded != null ? InstanceFile.transcoded(transcoded, instance, transferSyntaxUID) : null;
+    }
+
+    /**
+     * Keyed on the source's strong ETag, so a replaced file is transcoded again
+     */
+    private static String transcodeKey(InstanceFile instance, String transferSyntaxUID) {
+        return instance.getValidator().getETag() + "|" + transferSyntaxUID;
+    }
+
+    /**
+     * Transcode a file into the cache, or return null if it is already in the transfer syntax
+     */
+    private File transcode(File source, String key, String transferSyntaxUID) throws IOException {
+        try (Transcoder transcoder = new Transcoder(source)) {
+            if (transferSyntaxUID.equals(transcoder.getSourceTransferSyntax())) {
+                return null;
+            }
+            transcoder.setIncludeFileMetaInformation(true);
+            transcoder.setDestinationTransferSyntax(transferSyntaxUID);
+            logger.debug("Transcoding {} from {} to {}", source.getAbsolutePath(),
+                    transcoder.getSourceTransferSyntax(), transferSyntaxUID);
+            return transcodeCache.put(key, target -> {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+                    transcoder.transcode((t, dataset) -> out);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void invalidateProjectAccess(String login) {
+        if (login == null) {
+            projectAccess.clear();
+            return;
+        }
+        projectAccess.invalidateUser(login);
+    }
+
+    @Override
+    public void invalidateProjectAccessTo(String projectId) {
+        projectAccess.invalidateProject(projectId);
+    }
+
+    /**
+     * The study-level keys of a series or instance query; an exact modality also narrows the
+     * studies through ModalitiesInStudy
+     */
+    private static Attributes createStudyQuery(Attributes query) {
+        if (query == null) {
+            return null;
+        }
+        Attributes studyQuery = new Attributes(query, STUDY_MATCHING_KEYS);
+        String[] modalities = query.getStrings(Tag.Modality);
+        if (modalities != null && modalities.length > 0) {
+            boolean exact = true;
+            for (String modality : modalities) {
+                exact &= modality != null && !modality.isEmpty() && !QueryMatcher.hasWildcard(modality);
+            }
+            if (exact) {
+                studyQuery.setString(Tag.ModalitiesInStudy, VR.CS, modalities);
+            }
+        }
+        return studyQuery;
+    }
+
+    private static void setRetrieveURLs(List<Attributes> studies, String projectId) {
+        for (Attributes attrs : studies) {
+            attrs.setString(Tag.RetrieveURL, VR.UR, retrieveURL(projectId, attrs.getString(Tag.StudyInstanceUID)));
+        }
+    }
 
+    /**
+     * Project-scoped location of a study, series or instance, relative to the DICOMweb root
+     */
+    static String retrieveURL(String projectId, String studyUID, String... seriesAndInstanceUIDs) {
+        StringBuilder url = new StringBuilder("projects/").append(projectId).append("/studies/").append(studyUID);
+        if (seriesAndInstanceUIDs.length > 0) {
+            url.append("/series/").append(seriesAndInstanceUIDs[0]);
+        }
+        if (seriesAndInstanceUIDs.length > 1) {
+            url.append("/instances/").append(seriesAndInstanceUIDs[1]);
+        }
+        return url.toString();
+    }
+
+    private static SearchResult page(List<Attributes> matches, int offset, int limit, int totalMatches) {
+        int from = Math.min(offset, matches.size());
+        int to = limit > 0 ? (int) Math.min(matches.size(), (long) from + limit) : matches.size();
+        return new SearchResult(new ArrayList<>(matches.subList(from, to)), from, Math.max(totalMatches, to));
+    }
+
+    /**
+     * Value that changes whenever the image sessions of a project change, or null if it cannot be read
+     */
+    private String projectChangeStamp(String projectId) {
         try {
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
-                return results;
+            NamedParameterJdbcTemplate jdbcTemplate = XDAT.getNamedParameterJdbcTemplate();
+            return jdbcTemplate != null ? StudyRowQuery.changeStamp(jdbcTemplate, projectId) : null;
+        } catch (Exception e) {
+            logger.debug("Unable to read change stamp of project {}", projectId, e);
+            return null;
+        }
+    }
+
+    private static List<Attributes> copyAttributes(List<Attributes> source) {
+        List<Attributes> copy = new ArrayList<>(source.size());
+        for (Attributes attrs : source) {
+            copy.add(new Attributes(attrs));
+        }
+        return copy;
+    }
+
+    /**
+     * Study rows from the projection query, or null when sessions must be loaded through XFT: the
+     * query is unavailable, or the user cannot read every session type in the project
+     */
+    private List<StudyRowQuery.Row> findStudyRows(UserI user, String projectId, StudyFilter filter) {
+        if (!studyProjectionEnabled) {
+            return null;
+        }
+        try {
+            NamedParameterJdbcTemplate jdbcTemplate = XDAT.getNamedParameterJdbcTemplate();
+            if (jdbcTemplate == null) {
+                return null;
             }
+            // The projection bypasses XFT's per-type filtering, so it serves only users who see every session
+            for (String sessionType : StudyRowQuery.sessionTypes(jdbcTemplate, projectId)) {
+                if (!Permissions.canRead(user, sessionType + "/project", projectId)) {
+                    logger.debug("User cannot read {} in project {}, loading sessions instead", sessionType,
+                            projectId);
+                    return null;
+                }
+            }
+            List<StudyRowQuery.Row> rows = new StudyRowQuery(jdbcTemplate).find(projectId, filter);
+            logger.debug("Study projection returned {} rows in project {}", rows.size(), projectId);
+            return rows;
+        } catch (BadSqlGrammarException e) {
+            // The schema differs from the one the query was written for; stay on the XFT path
+            logger.warn("Study projection query does not match the schema, loading sessions from now on", e);
+            studyProjectionEnabled = false;
+            return null;
+        } catch (Exception e) {
+            logger.warn("Study projection query failed, loading sessions instead", e);
+            return null;
+        }
+    }
 
-            // Find the session with matching StudyInstanceUID
-            XnatImagesessiondata targetSession = findSessionByUID(user, projectId, studyInstanceUID);
+    /**
+     * Load the candidate sessions of a project through XFT, with the matching keys pushed into the query
+     */
+    private void offerHydratedStudies(UserI user, String projectId, StudyFilter filter, TopK<StudyCandidate> page)
+            throws Exception {
+        CriteriaCollection cc = filter.toCriteria(projectId);
 
-            if (targetSession == null) {
-                logger.warn("Study not found: {}", studyInstanceUID);
-                return results;
+        ArrayList sessions = XnatImagesessiondata.getXnatImagesessiondatasByField(cc, user, false);
+
+        logger.debug("Found {} sessions in project {}",
+                    sessions != null ? sessions.size() : 0, projectId);
+
+        if (sessions == null) {
+            return;
+        }
+        Set<String> seen = new HashSet<>();
+        for (Object sessionObj : sessions) {
+            try {
+                if (sessionObj instanceof XnatImagesessiondata) {
+                    XnatImagesessiondata session = (XnatImagesessiondata) sessionObj;
+
+                    // Only include sessions with StudyInstanceUID; joins may repeat a session
+                    String studyUID = session.getUid();
+                    if (studyUID != null && !studyUID.isEmpty() && seen.add(session.getId())) {
+                        Attributes attrs = createStudyKeyAttributes(session);
+                        if (filter.hasModalities()) {
+                            addModalitiesInStudy(attrs, session);
+                        }
+                        if (filter.matches(attrs)) {
+                            page.offer(new StudyCandidate(session, session.getId(), attrs, -1));
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Error processing session", e);
             }
+        }
+    }
 
-            // Get all scans (series) in the session
-            List scans = targetSession.getScans_scan();
+    @Override
+    public List<Attributes> searchSeries(UserI user, String projectId, String studyInstanceUID, Attributes queryAttributes) {
+        return searchSeries(user, projectId, studyInstanceUID, queryAttributes, IncludeFields.DEFAULT);
+    }
 
-            logger.debug("Found {} scans in session {}", scans.size(), targetSession.getId());
+    @Override
+    public List<Attributes> searchSeries(UserI user, String projectId, String studyInstanceUID,
+                                         Attributes queryAttributes, IncludeFields includeFields) {
+        // The study is fixed by the path; remaining keys are matched per series
+        QueryMatcher matcher = QueryMatcher.compile(queryAttributes, Tag.StudyInstanceUID);
+        return searchSeries(user, projectId, studyInstanceUID, queryAttributes, matcher, includeFields);
+    }
 
-            for (Object scanObj : scans) {
-                XnatImagescandata scan = (XnatImagescandata) scanObj;
-                Attributes attrs = createSeriesAttributes(scan, studyInstanceUID);
-                results.add(attrs);
+    private List<Attributes> searchSeries(UserI user, String projectId, String studyInstanceUID,
+                                          Attributes queryAttributes, QueryMatcher matcher,
+                                          IncludeFields includeFields) {
+        try {
+            if (!canReadProject(user, projectId)) {
+                return new ArrayList<>();
             }
 
-            logger.info("Series search for study {} returned {} series", studyInstanceUID, results.size());
+            // The instance count is the only series attribute that depends on includefield
+            boolean instanceCounts = includeFields.includes(Tag.NumberOfSeriesRelatedInstances)
+                    || (queryAttributes != null && queryAttributes.contains(Tag.NumberOfSeriesRelatedInstances));
+            String key = "series|" + userScope(user, projectId) + "|" + studyInstanceUID + "|"
+                    + QueryResultCache.normalize(queryAttributes) + "|" + instanceCounts;
+            return seriesResultCache.get(projectId, key,
+                    () -> findSeries(user, projectId, studyInstanceUID, matcher, instanceCounts));
 
         } catch (Exception e) {
             logger.error("Error searching series in study: " + studyInstanceUID, e);
+            return new ArrayList<>();
         }
+    }
+
+    /**
+     * Series of a study matching the query, with NumberOfSeriesRelatedInstances only when requested.
+     * Failures propagate so that they are not cached as empty results; searchSeries logs them.
+     */
+    private List<Attributes> findSeries(UserI user, String projectId, String studyInstanceUID, QueryMatcher matcher,
+                                        boolean instanceCounts) {
+        List<Attributes> results = new ArrayList<>();
+
+        // Find the session with matching StudyInstanceUID
+        XnatImagesessiondata targetSession = findSessionByUID(user, projectId, studyInstanceUID);
+
+        if (targetSession == null) {
+            logger.warn("Study not found: {}", studyInstanceUID);
+            return results;
+        }
+
+        // Get all scans (series) in the session
+        List scans = targetSession.getScans_scan();
+
+        logger.debug("Found {} scans in session {}", scans.size(), targetSession.getId());
+
+        for (Object scanObj : scans) {
+            XnatImagescandata scan = (XnatImagescandata) scanObj;
+            Attributes attrs = createSeriesAttributes(scan, studyInstanceUID, instanceCounts);
+            if (matcher.matches(attrs)) {
+                results.add(attrs);
+            }
+        }
+
+        logger.info("Series search for study {} returned {} series", studyInstanceUID, results.size());
 
         return results;
     }
@@ -134,39 +713,57 @@ public class XnatDicomServiceImpl implements XnatDicomService {
     @Override
     public List<Attributes> searchInstances(UserI user, String projectId, String studyInstanceUID,
                                            String seriesInstanceUID, Attributes queryAttributes) {
+        return searchInstances(user, projectId, studyInstanceUID, seriesInstanceUID, queryAttributes, null);
+    }
+
+    @Override
+    public List<Attributes> searchInstances(UserI user, String projectId, String studyInstanceUID,
+                                           String seriesInstanceUID, Attributes queryAttributes,
+                                           IncludeFields includeFields) {
+        // Study and series are fixed by the path; remaining keys are matched per instance
+        QueryMatcher matcher = QueryMatcher.compile(queryAttributes, Tag.StudyInstanceUID, Tag.SeriesInstanceUID);
+        return searchInstances(user, projectId, studyInstanceUID, seriesInstanceUID, queryAttributes, matcher,
+                includeFields);
+    }
+
+    private List<Attributes> searchInstances(UserI user, String projectId, String studyInstanceUID,
+                                             String seriesInstanceUID, Attributes queryAttributes,
+                                             QueryMatcher matcher, IncludeFields includeFields) {
         List<Attributes> results = new ArrayList<>();
 
         try {
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
+            if (!canReadProject(user, projectId)) {
                 return results;
             }
 
             // Find the scan by SeriesInstanceUID
-            XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
-            if (session == null) {
-                logger.warn("Study not found: {}", studyInstanceUID);
+            XnatImagescandata targetScan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
+            if (targetScan == null) {
+                logger.warn("Series not found: {}", seriesInstanceUID);
                 return results;
             }
 
-            XnatImagescandata targetScan = null;
-            List scans = session.getScans_scan();
-
-            for (Object scanObj : scans) {
-                XnatImagescandata scan = (XnatImagescandata) scanObj;
-                if (seriesInstanceUID.equals(scan.getUid())) {
-                    targetScan = scan;
-                    break;
-                }
-            }
-
-            if (targetScan == null) {
-                logger.warn("Series not found: {}", seriesInstanceUID);
+            // Series-level keys that XNAT already knows decide the match without parsing any file
+            if (!matcher.isMatchAll() && !matcher.matches(createKnownSeriesAttributes(targetScan))) {
+                logger.debug("Series {} does not match the query", seriesInstanceUID);
                 return results;
             }
 
-            // Get DICOM files for this scan
-            results = readDicomFilesFromScan(targetScan);
+            // Get DICOM files for this scan, reading headers only as far as the returned attributes need
+            int stopTag = includeFields != null
+                    ? includeFields.stopTag(IncludeFields.INSTANCE_DEFAULTS, queryAttributes)
+                    : -1;
+            XnatImagescandata scan = targetScan;
+            String key = "series|" + userScope(user, projectId) + "|" + studyInstanceUID + "|"
+                    + seriesInstanceUID + "|" + QueryResultCache.normalize(queryAttributes) + "|" + stopTag;
+            for (Attributes attrs : copyAttributes(metadataFlight.run(key,
+                    () -> readDicomFilesFromScan(scan, stopTag)))) {
+                if (matcher.matches(attrs)) {
+                    results.add(includeFields != null
+                            ? includeFields.select(attrs, IncludeFields.INSTANCE_DEFAULTS, queryAttributes)
+                            : attrs);
+                }
+            }
 
             logger.info("Instance search for series {} returned {} instances", seriesInstanceUID, results.size());
 
@@ -178,53 +775,136 @@ public class XnatDicomServiceImpl implements XnatDicomService {
     }
 
     @Override
-    public InputStream retrieveInstance(UserI user, String projectId, String studyInstanceUID,
-                                       String seriesInstanceUID, String sopInstanceUID) {
+    public ResourceValidator getProjectValidator(UserI user, String projectId) {
         try {
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
+            if (!canReadProject(user, projectId)) {
                 return null;
             }
+            String stamp = projectChangeStamp(projectId);
+            return stamp != null ? ResourceValidator.of("project|" + projectId + "|" + stamp, -1L) : null;
+        } catch (Exception e) {
+            logger.debug("Unable to compute validators of project {}", projectId, e);
+            return null;
+        }
+    }
 
-            // Find the session and scan
+    @Override
+    public ResourceValidator getStudyValidator(UserI user, String projectId, String studyInstanceUID) {
+        try {
+            if (!canReadProject(user, projectId)) {
+                return null;
+            }
             XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
             if (session == null) {
                 return null;
             }
 
-            XnatImagescandata targetScan = null;
-            List scans = session.getScans_scan();
-
-            for (Object scanObj : scans) {
-                XnatImagescandata scan = (XnatImagescandata) scanObj;
-                if (seriesInstanceUID.equals(scan.getUid())) {
-                    targetScan = scan;
-                    break;
-                }
+            StringBuilder version = new StringBuilder("study|").append(session.getId());
+            long lastModified = appendModified(version, session.getLastModified(), -1L);
+            for (Object scanObj : session.getScans_scan()) {
+                lastModified = appendScanVersion(version, (XnatImagescandata) scanObj, lastModified);
             }
+            return ResourceValidator.of(version.toString(), lastModified);
+        } catch (Exception e) {
+            logger.debug("Unable to compute validators of study {}", studyInstanceUID, e);
+            return null;
+        }
+    }
 
-            if (targetScan == null) {
+    @Override
+    public ResourceValidator getSeriesValidator(UserI user, String projectId, String studyInstanceUID,
+                                                String seriesInstanceUID) {
+        try {
+            if (!canReadProject(user, projectId)) {
+                return null;
+            }
+            XnatImagescandata scan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
+            if (scan == null) {
                 return null;
             }
 
-            // Find the specific DICOM file
-            File dicomFile = findDicomFileInScan(targetScan, sopInstanceUID);
+            StringBuilder version = new StringBuilder("series|").append(scan.getImageSessionId());
+            long lastModified = appendScanVersion(version, scan, -1L);
+            return ResourceValidator.of(version.toString(), lastModified);
+        } catch (Exception e) {
+            logger.debug("Unable to compute validators of series {}", seriesInstanceUID, e);
+            return null;
+        }
+    }
 
-            if (dicomFile != null) {
-                logger.info("Retrieved instance: {}", sopInstanceUID);
-                return new FileInputStream(dicomFile);
+    /**
+     * Add a scan's UID, modification time and the file count and size of each DICOM resource,
+     * returning the later of {@code lastModified} and the scan's modification time
+     */
+    private long appendScanVersion(StringBuilder version, XnatImagescandata scan, long lastModified) {
+        version.append('|').append(scan.getUid());
+        long modified = appendModified(version, scan.getLastModified(), lastModified);
+        List resources = scan.getFile();
+        if (resources != null) {
+            for (Object resourceObj : resources) {
+                if (resourceObj instanceof XnatAbstractresource
+                        && isDicomResource((XnatAbstractresource) resourceObj)) {
+                    XnatAbstractresource resource = (XnatAbstractresource) resourceObj;
+                    version.append(':').append(resource.getFileCount()).append('/').append(resource.getFileSize());
+                }
             }
+        }
+        return modified;
+    }
 
-        } catch (Exception e) {
+    private static long appendModified(StringBuilder version, Date modified, long lastModified) {
+        if (modified == null) {
+            version.append("@-");
+            return lastModified;
+        }
+        version.append('@').append(modified.getTime());
+        return Math.max(lastModified, modified.getTime());
+    }
+
+    @Override
+    public InputStream retrieveInstance(UserI user, String projectId, String studyInstanceUID,
+                                       String seriesInstanceUID, String sopInstanceUID) {
+        InstanceFile instance = locateInstance(user, projectId, studyInstanceUID, seriesInstanceUID, sopInstanceUID);
+        if (instance == null) {
+            return null;
+        }
+
+        try {
+            logger.info("Retrieved instance: {}", sopInstanceUID);
+            return new FileInputStream(instance.getFile());
+        } catch (IOException e) {
             logger.error("Error retrieving instance: " + sopInstanceUID, e);
+            return null;
         }
+    }
 
-        return null;
+    @Override
+    public InstanceFile locateInstance(UserI user, String projectId, String studyInstanceUID,
+                                       String seriesInstanceUID, String sopInstanceUID) {
+        try {
+            if (!canReadProject(user, projectId)) {
+                return null;
+            }
+
+            // Find the scan, then the specific DICOM file
+            XnatImagescandata targetScan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
+            if (targetScan == null) {
+                return null;
+            }
+            return findInstance(user, projectId, studyInstanceUID, targetScan, sopInstanceUID);
+
+        } catch (Exception e) {
+            logger.error("Error locating instance: " + sopInstanceUID, e);
+            return null;
+        }
     }
 
     @Override
     public Attributes retrieveMetadata(UserI user, String projectId, String studyInstanceUID,
                                       String seriesInstanceUID, String sopInstanceUID) {
+        if (missingUids.isMissing(userKey(user), projectId, studyInstanceUID, seriesInstanceUID, sopInstanceUID)) {
+            return null;
+        }
         List<Attributes> instances = searchInstances(user, projectId, studyInstanceUID, seriesInstanceUID, null);
 
         for (Attributes attrs : instances) {
@@ -233,14 +913,17 @@ public class XnatDicomServiceImpl implements XnatDicomService {
             }
         }
 
+        // An empty series may also mean no access or a failed read, which are not remembered
+        if (!instances.isEmpty()) {
+            missingUids.recordMissing(userKey(user), projectId, studyInstanceUID, seriesInstanceUID, sopInstanceUID);
+        }
         return null;
     }
 
     @Override
     public Attributes retrieveStudyMetadata(UserI user, String projectId, String studyInstanceUID) {
         try {
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
+            if (!canReadProject(user, projectId)) {
                 logger.warn("Project not found or user does not have access: {}", projectId);
                 return null;
             }
@@ -269,29 +952,15 @@ public class XnatDicomServiceImpl implements XnatDicomService {
         List<Attributes> allInstances = new ArrayList<>();
 
         try {
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
+            if (!canReadProject(user, projectId)) {
                 logger.warn("Project not found or user does not have access: {}", projectId);
                 return allInstances;
             }
 
-            // Find the session with matching StudyInstanceUID
-            XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
-            if (session == null) {
-                logger.warn("Study not found: {}", studyInstanceUID);
-                return allInstances;
-            }
-
-            // Get all scans (series) in the session
-            List scans = session.getScans_scan();
-            logger.debug("Found {} scans in study {}", scans.size(), studyInstanceUID);
-
-            // Collect instances from all series
-            for (Object scanObj : scans) {
-                XnatImagescandata scan = (XnatImagescandata) scanObj;
-                List<Attributes> instances = readDicomFilesFromScan(scan);
-                allInstances.addAll(instances);
-            }
+            // Concurrent requests for the same study share one read; each gets its own copy
+            String key = "study|" + userScope(user, projectId) + "|" + studyInstanceUID;
+            allInstances = copyAttributes(metadataFlight.run(key,
+                    () -> readStudyInstances(user, projectId, studyInstanceUID)));
 
             logger.info("Retrieved metadata for {} instances in study {}", allInstances.size(), studyInstanceUID);
 
@@ -302,87 +971,212 @@ public class XnatDicomServiceImpl implements XnatDicomService {
         return allInstances;
     }
 
+    private List<Attributes> readStudyInstances(UserI user, String projectId, String studyInstanceUID) {
+        List<Attributes> allInstances = new ArrayList<>();
+
+        // Find the session with matching StudyInstanceUID
+        XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
+        if (session == null) {
+            logger.warn("Study not found: {}", studyInstanceUID);
+            return allInstances;
+        }
+
+        // Get all scans (series) in the session
+        List scans = session.getScans_scan();
+        logger.debug("Found {} scans in study {}", scans.size(), studyInstanceUID);
+
+        // Collect instances from all series
+        for (Object scanObj : scans) {
+            XnatImagescandata scan = (XnatImagescandata) scanObj;
+            List<Attributes> instances = readDicomFilesFromScan(scan);
+            allInstances.addAll(instances);
+        }
+        return allInstances;
+    }
+
     @Override
     public List<InputStream> retrieveStudy(UserI user, String projectId, String studyInstanceUID) {
-        List<InputStream> streams = new ArrayList<>();
+        return openInstances(locateStudyInstances(user, projectId, studyInstanceUID));
+    }
+
+    @Override
+    public List<InputStream> retrieveSeries(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID) {
+        return openInstances(locateSeriesInstances(user, projectId, studyInstanceUID, seriesInstanceUID));
+    }
 
+    @Override
+    public List<InstanceFile> locateSeriesInstances(UserI user, String projectId, String studyInstanceUID,
+                                                    String seriesInstanceUID) {
         try {
-            List<Attributes> series = searchSeries(user, projectId, studyInstanceUID, null);
+            if (!canReadProject(user, projectId)) {
+                return new ArrayList<>();
+            }
 
-            for (Attributes seriesAttrs : series) {
-                String seriesUID = seriesAttrs.getString(Tag.SeriesInstanceUID);
-                streams.addAll(retrieveSeries(user, projectId, studyInstanceUID, seriesUID));
+            XnatImagescandata scan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
+            if (scan == null) {
+                logger.warn("Series not found: {}", seriesInstanceUID);
+                return new ArrayList<>();
             }
+            return listDicomInstances(scan);
 
         } catch (Exception e) {
-            logger.error("Error retrieving study: " + studyInstanceUID, e);
+            logger.error("Error locating instances of series: " + seriesInstanceUID, e);
+            return new ArrayList<>();
         }
-
-        return streams;
     }
 
     @Override
-    public List<InputStream> retrieveSeries(UserI user, String projectId, String studyInstanceUID, String seriesInstanceUID) {
-        List<InputStream> streams = new ArrayList<>();
+    public List<InstanceFile> locateStudyInstances(UserI user, String projectId, String studyInstanceUID) {
+        List<InstanceFile> instances = new ArrayList<>();
 
         try {
-            List<Attributes> instances = searchInstances(user, projectId, studyInstanceUID, seriesInstanceUID, null);
+            if (!canReadProject(user, projectId)) {
+                return instances;
+            }
 
-            for (Attributes attrs : instances) {
-                String sopUID = attrs.getString(Tag.SOPInstanceUID);
-                InputStream stream = retrieveInstance(user, projectId, studyInstanceUID, seriesInstanceUID, sopUID);
-                if (stream != null) {
-                    streams.add(stream);
-                }
+            XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
+            if (session == null) {
+                logger.warn("Study not found: {}", studyInstanceUID);
+                return instances;
+            }
+            for (Object scanObj : session.getScans_scan()) {
+                instances.addAll(listDicomInstances((XnatImagescandata) scanObj));
             }
 
         } catch (Exception e) {
-            logger.error("Error retrieving series: " + seriesInstanceUID, e);
+            logger.error("Error locating instances of study: " + studyInstanceUID, e);
         }
 
+        return instances;
+    }
+
+    private List<InputStream> openInstances(List<InstanceFile> instances) {
+        List<InputStream> streams = new ArrayList<>(instances.size());
+        for (InstanceFile instance : instances) {
+            try {
+                streams.add(new FileInputStream(instance.getFile()));
+            } catch (IOException e) {
+                logger.warn("Unable to open instance file {}", instance.getFile().getAbsolutePath(), e);
+            }
+        }
         return streams;
     }
 
     @Override
     public byte[] retrieveRenderedInstance(UserI user, String projectId, String studyInstanceUID,
                                           String seriesInstanceUID, String sopInstanceUID) {
+        return retrieveRenderedInstance(user, projectId, studyInstanceUID, seriesInstanceUID, sopInstanceUID,
+                RenderParams.DEFAULT);
+    }
+
+    @Override
+    public byte[] retrieveRenderedInstance(UserI user, String projectId, String studyInstanceUID,
+                                          String seriesInstanceUID, String sopInstanceUID,
+                                          RenderParams renderParams) {
         try {
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
+            if (!canReadProject(user, projectId)) {
                 return null;
             }
 
             // Find the session and scan
-            XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
-            if (session == null) {
+            XnatImagescandata targetScan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
+            if (targetScan == null) {
                 return null;
             }
 
-            XnatImagescandata targetScan = null;
-            List scans = session.getScans_scan();
+            // Find the specific DICOM file
+            InstanceFile instance = findInstance(user, projectId, studyInstanceUID, targetScan, sopInstanceUID);
+            File dicomFile = instance != null ? instance.getFile() : null;
 
-            for (Object scanObj : scans) {
-                XnatImagescandata scan = (XnatImagescandata) scanObj;
-                if (seriesInstanceUID.equals(scan.getUid())) {
-                    targetScan = scan;
-                    break;
+            if (dicomFile != null) {
+                String cacheKey = RenderedImageCache.key(projectId + "/" + studyInstanceUID + "/" + seriesInstanceUID,
+                        sopInstanceUID, 0, "image/jpeg;" + renderParams.toCacheKey());
+                byte[] cached = renderedImageCache.get(cacheKey, dicomFile);
+                if (cached != null) {
+                    logger.debug("Served rendered instance {} from cache", sopInstanceUID);
+                    return cached;
                 }
+
+                logger.info("Rendering instance: {}", sopInstanceUID);
+                byte[] rendered = renderDicomToJpeg(dicomFile, 0, renderParams);
+                renderedImageCache.put(cacheKey, dicomFile, rendered);
+                return rendered;
             }
 
-            if (targetScan == null) {
+        } catch (Exception e) {
+            logger.error("Error rendering instance: " + sopInstanceUID, e);
+        }
+
+        return null;
+    }
+
+    @Override
+    public byte[] retrieveSeriesThumbnail(UserI user, String projectId, String studyInstanceUID,
+                                         String seriesInstanceUID) {
+        try {
+            if (!canReadProject(user, projectId)) {
                 return null;
             }
 
-            // Find the specific DICOM file
-            File dicomFile = findDicomFileInScan(targetScan, sopInstanceUID);
+            XnatImagescandata scan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
+            if (scan == null) {
+                return null;
+            }
 
-            if (dicomFile != null) {
-                logger.info("Rendering instance: {}", sopInstanceUID);
-                return renderDicomToJpeg(dicomFile);
+            return renderThumbnail(projectId + "/" + studyInstanceUID + "/" + seriesInstanceUID, scan);
+
+        } catch (Exception e) {
+            logger.error("Error rendering series thumbnail: " + seriesInstanceUID, e);
+        }
+
+        return null;
+    }
+
+    @Override
+    public byte[] retrieveStudyThumbnail(UserI user, String projectId, String studyInstanceUID) {
+        try {
+            if (!canReadProject(user, projectId)) {
+                return null;
+            }
+
+            XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
+            if (session == null) {
+                return null;
             }
 
+            // Represent the study by the series with the most DICOM files, chosen once per study
+            String studyScope = projectId + "/" + studyInstanceUID;
+            XnatImagescandata bestScan = null;
+            String rememberedSeries = thumbnailSelector.getStudySeries(studyScope);
+            if (rememberedSeries != null) {
+                bestScan = findScanByUID(session, rememberedSeries);
+                if (bestScan == null) {
+                    thumbnailSelector.removeStudySeries(studyScope);
+                }
+            }
+            if (bestScan == null) {
+                int bestCount = 0;
+                for (Object scanObj : session.getScans_scan()) {
+                    XnatImagescandata scan = (XnatImagescandata) scanObj;
+                    if (scan.getUid() == null) {
+                        continue;
+                    }
+                    int count = countDicomInstances(scan);
+                    if (count > bestCount) {
+                        bestScan = scan;
+                        bestCount = count;
+                    }
+                }
+                if (bestScan == null) {
+                    return null;
+                }
+                thumbnailSelector.putStudySeries(studyScope, bestScan.getUid());
+            }
+
+            return renderThumbnail(projectId + "/" + studyInstanceUID + "/" + bestScan.getUid(), bestScan);
+
         } catch (Exception e) {
-            logger.error("Error rendering instance: " + sopInstanceUID, e);
+            logger.error("Error rendering study thumbnail: " + studyInstanceUID, e);
         }
 
         return null;
@@ -394,6 +1188,10 @@ public class XnatDicomServiceImpl implements XnatDicomService {
      * Find session by StudyInstanceUID
      */
     private XnatImagesessiondata findSessionByUID(UserI user, String projectId, String studyUID) {
+        if (missingUids.isMissing(userKey(user), projectId, studyUID)) {
+            logger.debug("Study {} recently not found in project {}", studyUID, projectId);
+            return null;
+        }
         try {
             // Search by UID field
             ArrayList sessions = XnatImagesessiondata.getXnatImagesessiondatasByField(
@@ -404,53 +1202,36 @@ public class XnatDicomServiceImpl implements XnatDicomService {
                     if (sessionObj instanceof XnatImagesessiondata) {
                         XnatImagesessiondata session = (XnatImagesessiondata) sessionObj;
                         // Verify it's in the correct project
-                        if (projectId.equals(session.getProject())) {
-                            return session;
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            logger.error("Error finding session by UID: " + studyUID, e);
-        }
-
-        return null;
-    }
-
-    /**
-     * Create study-level DICOM attributes from session
-     */
-    private Attributes createStudyAttributes(XnatImagesessiondata session) {
-        Attributes attrs = new Attributes();
-
-        try {
-            // Required return attributes for QIDO-RS Study query
-            String studyUID = session.getUid();
-            if (studyUID != null && !studyUID.isEmpty()) {
-                attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
-            }
-
-            String subjectId = session.getSubjectId();
-            attrs.setString(Tag.PatientName, VR.PN, subjectId != null ? subjectId : "UNKNOWN");
-            attrs.setString(Tag.PatientID, VR.LO, subjectId != null ? subjectId : "UNKNOWN");
-
-            // Format date
-            Object sessionDateObj = session.getDate();
-            if (sessionDateObj != null) {
-                String dateStr = sessionDateObj.toString().replaceAll("-", "");
-                attrs.setString(Tag.StudyDate, VR.DA, dateStr);
-            } else {
-                attrs.setString(Tag.StudyDate, VR.DA, "");
+                        if (projectId.equals(session.getProject())) {
+                            return session;
+                        }
+                    }
+                }
             }
+            missingUids.recordMissing(userKey(user), projectId, studyUID);
+        } catch (Exception e) {
+            logger.error("Error finding session by UID: " + studyUID, e);
+        }
 
-            String label = session.getLabel();
-            attrs.setString(Tag.StudyDescription, VR.LO, label != null ? label : "");
-            attrs.setString(Tag.AccessionNumber, VR.SH, label != null ? label : "");
+        return null;
+    }
 
-            String id = session.getId();
-            attrs.setString(Tag.StudyID, VR.SH, id != null ? id : "");
+    /**
+     * Study attributes read directly from session fields, without visiting scans
+     */
+    private Attributes createStudyKeyAttributes(XnatImagesessiondata session) {
+        Object date = session.getDate();
+        Object time = session.getTime();
+        return StudyRowQuery.studyAttributes(session.getUid(), session.getSubjectId(),
+                date != null ? date.toString() : null, time != null ? time.toString() : null,
+                session.getLabel(), session.getId());
+    }
 
-            // Add modalities in study
+    /**
+     * Add ModalitiesInStudy, collected from the scans of the session
+     */
+    private void addModalitiesInStudy(Attributes attrs, XnatImagesessiondata session) {
+        try {
             List scans = session.getScans_scan();
             if (scans != null && !scans.isEmpty()) {
                 List<String> modalities = new ArrayList<>();
@@ -467,10 +1248,44 @@ public class XnatDicomServiceImpl implements XnatDicomService {
             }
 
         } catch (Exception e) {
-            logger.error("Error creating study attributes", e);
+            logger.error("Error collecting modalities in study", e);
         }
+    }
 
-        return attrs;
+    /**
+     * Add NumberOfStudyRelatedSeries, always when the study row already counted the series and otherwise
+     * when requested, and NumberOfStudyRelatedInstances when requested; counting loads the session and
+     * its scans
+     */
+    private void addStudyRelatedCounts(UserI user, StudyCandidate candidate, IncludeFields includeFields) {
+        if (candidate.seriesCount >= 0) {
+            candidate.attrs.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS, candidate.seriesCount);
+        }
+        boolean series = candidate.seriesCount < 0 && includeFields.includes(Tag.NumberOfStudyRelatedSeries);
+        boolean instances = includeFields.includes(Tag.NumberOfStudyRelatedInstances);
+        if (!series && !instances) {
+            return;
+        }
+        try {
+            XnatImagesessiondata session = candidate.session != null
+                    ? candidate.session
+                    : XnatImagesessiondata.getXnatImagesessiondatasById(candidate.sessionId, user, false);
+            List scans = session != null ? session.getScans_scan() : null;
+            if (series) {
+                candidate.attrs.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS, scans != null ? scans.size() : 0);
+            }
+            if (instances) {
+                int count = 0;
+                if (scans != null) {
+                    for (Object scanObj : scans) {
+                        count += countDicomInstances((XnatImagescandata) scanObj);
+                    }
+                }
+                candidate.attrs.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS, count);
+            }
+        } catch (Exception e) {
+            logger.error("Error counting study related series and instances", e);
+        }
     }
 
     /**
@@ -538,9 +1353,8 @@ public class XnatDicomServiceImpl implements XnatDicomService {
                         modalities.add(modality);
                     }
 
-                    // Count instances in this series
-                    List<Attributes> instances = readDicomFilesFromScan(scan);
-                    numberOfInstances += instances.size();
+                    // Count instances in this series from recorded file counts
+                    numberOfInstances += countDicomInstances(scan);
                 }
             }
 
@@ -576,7 +1390,7 @@ public class XnatDicomServiceImpl implements XnatDicomService {
     /**
      * Create series-level DICOM attributes from scan
      */
-    private Attributes createSeriesAttributes(XnatImagescandata scan, String studyUID) {
+    private Attributes createSeriesAttributes(XnatImagescandata scan, String studyUID, boolean instanceCount) {
         Attributes attrs = new Attributes();
 
         try {
@@ -595,6 +1409,10 @@ public class XnatDicomServiceImpl implements XnatDicomService {
             String description = scan.getSeriesDescription();
             attrs.setString(Tag.SeriesDescription, VR.LO, description != null ? description : "");
 
+            if (instanceCount) {
+                attrs.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS, countDicomInstances(scan));
+            }
+
             // Add study-level attributes
             attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
 
@@ -605,10 +1423,33 @@ public class XnatDicomServiceImpl implements XnatDicomService {
         return attrs;
     }
 
+    /**
+     * Series attributes actually recorded on the scan (no defaults), for early query rejection
+     */
+    private Attributes createKnownSeriesAttributes(XnatImagescandata scan) {
+        Attributes attrs = new Attributes();
+        String modality = scan.getModality();
+        if (modality != null && !modality.isEmpty()) {
+            attrs.setString(Tag.Modality, VR.CS, modality);
+        }
+        String description = scan.getSeriesDescription();
+        if (description != null && !description.isEmpty()) {
+            attrs.setString(Tag.SeriesDescription, VR.LO, description);
+        }
+        return attrs;
+    }
+
     /**
      * Read DICOM files from scan resources
      */
     private List<Attributes> readDicomFilesFromScan(XnatImagescandata scan) {
+        return readDicomFilesFromScan(scan, -1);
+    }
+
+    /**
+     * Read DICOM headers from scan resources, stopping at {@code stopTag} (-1 reads whole files)
+     */
+    private List<Attributes> readDicomFilesFromScan(XnatImagescandata scan, int stopTag) {
         List<Attributes> results = new ArrayList<>();
 
         try {
@@ -626,7 +1467,7 @@ public class XnatDicomServiceImpl implements XnatDicomService {
 
                         for (File dicomFile : resolveDicomFiles(resource, scan)) {
                             try (DicomInputStream dis = new DicomInputStream(dicomFile)) {
-                                Attributes attrs = dis.readDataset(-1, -1);
+                                Attributes attrs = dis.readDataset(-1, stopTag);
                                 results.add(attrs);
                             } catch (Exception e) {
                                 logger.debug("Error reading DICOM candidate {}", dicomFile.getAbsolutePath(), e);
@@ -644,7 +1485,14 @@ public class XnatDicomServiceImpl implements XnatDicomService {
     }
 
     private List<File> resolveDicomFiles(XnatAbstractresource resource, XnatImagescandata scan) {
-        Set<File> files = new LinkedHashSet<>();
+        return new ArrayList<>(resolveDicomEntries(resource, scan).keySet());
+    }
+
+    /**
+     * Resolve the files of a DICOM resource, each with its catalog digest (null when none is recorded)
+     */
+    private Map<File, String> resolveDicomEntries(XnatAbstractresource resource, XnatImagescandata scan) {
+        Map<File, String> files = new LinkedHashMap<>();
 
         XnatImagesessiondata session = (XnatImagesessiondata) scan.getImageSessionData();
 
@@ -656,7 +1504,7 @@ public class XnatDicomServiceImpl implements XnatDicomService {
                 for (CatEntryI entry : catalogData.catBean.getEntries_entry()) {
                     File file = CatalogUtils.getFile(entry, catalogData.catPath, projectId);
                     if (isReadableFile(file)) {
-                        files.add(file);
+                        files.put(file, entry.getDigest());
                     }
                 }
             } catch (ServerException e) {
@@ -667,11 +1515,15 @@ public class XnatDicomServiceImpl implements XnatDicomService {
         } else {
             String basePath = getResourcePath(resource, scan);
             if (basePath != null) {
-                collectFiles(new File(basePath), files);
+                Set<File> collected = new LinkedHashSet<>();
+                collectFiles(new File(basePath), collected);
+                for (File file : collected) {
+                    files.put(file, null);
+                }
             }
         }
 
-        return new ArrayList<>(files);
+        return files;
     }
 
     private boolean isReadableFile(File file) {
@@ -712,232 +1564,775 @@ public class XnatDicomServiceImpl implements XnatDicomService {
         if (normalized.isEmpty()) {
             return false;
         }
-        return normalized.contains("dicom") || normalized.contains("secondary");
+        return normalized.contains("dicom") || normalized.contains("secondary");
+    }
+
+    /**
+     * Find the file of an instance in a scan, with the catalog digest of its entry.
+     *
+     * The scan's SOPInstanceUIDs are indexed on first use and reused until the scan changes.
+     */
+    private InstanceFile findDicomInstance(XnatImagescandata scan, String sopInstanceUID) {
+        try {
+            StringBuilder fingerprint = new StringBuilder();
+            appendScanVersion(fingerprint, scan, -1L);
+            InstanceIndex.Located located = instanceIndex.find(scan.getImageSessionId() + "/" + scan.getId(),
+                    fingerprint.toString(), sopInstanceUID, () -> indexDicomInstances(scan));
+            if (located == null) {
+                return null;
+            }
+            if (located.getFile().isFile()) {
+                return InstanceFile.of(sopInstanceUID, located.getFile(), located.getDigest());
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to index instances of scan {}, searching its files", scan.getId(), e);
+        }
+
+        return scanDicomInstance(scan, sopInstanceUID);
+    }
+
+    /**
+     * SOPInstanceUID of every readable DICOM file in a scan
+     */
+    private Map<String, InstanceIndex.Located> indexDicomInstances(XnatImagescandata scan) {
+        Map<String, InstanceIndex.Located> index = new HashMap<>();
+        List resources = scan.getFile();
+        if (resources == null) {
+            return index;
+        }
+        for (Object resourceObj : resources) {
+            if (!(resourceObj instanceof XnatAbstractresource) || !isDicomResource((XnatAbstractresource) resourceObj)) {
+                continue;
+            }
+            for (Map.Entry<File, String> entry
+                    : resolveDicomEntries((XnatAbstractresource) resourceObj, scan).entrySet()) {
+                try (DicomInputStream dis = new DicomInputStream(entry.getKey())) {
+                    String uid = dis.readDataset(-1, Tag.SOPInstanceUID + 1).getString(Tag.SOPInstanceUID);
+                    if (uid != null) {
+                        index.putIfAbsent(uid, new InstanceIndex.Located(entry.getKey(), entry.getValue()));
+                    }
+                } catch (Exception e) {
+                    logger.debug("Error indexing DICOM candidate {}", entry.getKey().getAbsolutePath(), e);
+                }
+            }
+        }
+        logger.debug("Indexed {} instances of scan {}", index.size(), scan.getId());
+        return index;
+    }
+
+    /**
+     * Find the file of an instance by reading the headers of a scan's files
+     */
+    private InstanceFile scanDicomInstance(XnatImagescandata scan, String sopInstanceUID) {
+        try {
+            List resources = scan.getFile();
+
+            if (resources != null) {
+                for (Object resourceObj : resources) {
+                    if (resourceObj instanceof XnatAbstractresource) {
+                        XnatAbstractresource resource = (XnatAbstractresource) resourceObj;
+
+                        if (!isDicomResource(resource)) {
+                            continue;
+                        }
+
+                        for (Map.Entry<File, String> entry : resolveDicomEntries(resource, scan).entrySet()) {
+                            File dicomFile = entry.getKey();
+                            try (DicomInputStream dis = new DicomInputStream(dicomFile)) {
+                                Attributes attrs = dis.readDataset(-1, -1);
+                                String fileSOPUID = attrs.getString(Tag.SOPInstanceUID);
+
+                                if (sopInstanceUID.equals(fileSOPUID)) {
+                                    return InstanceFile.of(sopInstanceUID, dicomFile, entry.getValue());
+                                }
+                            } catch (Exception e) {
+                                logger.debug("Error reading DICOM candidate {}", dicomFile.getAbsolutePath(), e);
+                            }
+                        }
+                    }
+                }
+            }
+
+        } catch (Exception e) {
+            logger.error("Error finding DICOM file in scan", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Get file system path for a resource
+     *
+     * NOTE: This uses XNAT default path conventions. You may need to adjust
+     * the base archive path based on your XNAT installation.
+     */
+    private String getResourcePath(XnatAbstractresource resource, XnatImagescandata scan) {
+        try {
+            XnatImagesessiondata session = (XnatImagesessiondata) scan.getImageSessionData();
+            if (session != null) {
+                String archivePath = null;
+                try {
+                    archivePath = session.getArchivePath();
+                } catch (Exception e) {
+                    logger.debug("Unable to resolve archive path from session", e);
+                }
+
+                if (archivePath == null || archivePath.isEmpty()) {
+                    final String baseArchive = System.getProperty("xnat.archive", "/data/xnat/archive");
+                    final String projectId = session.getProject();
+                    final String sessionLabel = session.getLabel();
+                    archivePath = buildFallbackArchivePath(baseArchive, projectId, sessionLabel);
+                }
+
+                if (archivePath != null && !archivePath.isEmpty()) {
+                    return joinPaths(archivePath, "SCANS", scan.getId(), resource.getLabel());
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Error getting resource path", e);
+        }
+
+        return null;
+    }
+
+    private String buildFallbackArchivePath(String baseArchive, String projectId, String sessionLabel) {
+        if (baseArchive == null || baseArchive.isEmpty() || projectId == null || sessionLabel == null) {
+            return null;
+        }
+        String normalizedBase = baseArchive.endsWith(File.separator)
+                ? baseArchive.substring(0, baseArchive.length() - 1)
+                : baseArchive;
+        // Fallback to legacy arc001 assumption if archive path cannot be determined
+        return normalizedBase + File.separator + projectId + File.separator + "arc001" + File.separator + sessionLabel;
+    }
+
+    private String joinPaths(String first, String... others) {
+        File path = new File(first);
+        for (String part : others) {
+            if (part != null && !part.isEmpty()) {
+                path = new File(path, part);
+            }
+        }
+        return path.getPath();
+    }
+
+    /**
+     * Render (or serve from cache) the middle-slice thumbnail of a scan
+     */
+    private byte[] renderThumbnail(String seriesScope, XnatImagescandata scan) {
+        ThumbnailSelector.Selection selection = thumbnailSelector.get(seriesScope);
+        if (selection == null) {
+            selection = ThumbnailSelector.selectMiddle(readThumbnailCandidates(scan));
+            if (selection == null) {
+                return null;
+            }
+            thumbnailSelector.put(seriesScope, selection);
+        }
+
+        String cacheKey = RenderedImageCache.key(seriesScope, selection.getSopInstanceUID(),
+                selection.getFrameIndex(), "thumbnail;" + thumbnailParams.toCacheKey());
+        byte[] cached = renderedImageCache.get(cacheKey, selection.getFile());
+        if (cached != null) {
+            return cached;
+        }
+
+        byte[] rendered = renderDicomToJpeg(selection.getFile(), selection.getFrameIndex(), thumbnailParams);
+        renderedImageCache.put(cacheKey, selection.getFile(), rendered);
+        return rendered;
+    }
+
+    /**
+     * Read the headers (no pixel data) of the image instances in a scan
+     */
+    private List<ThumbnailSelector.Candidate> readThumbnailCandidates(XnatImagescandata scan) {
+        List<ThumbnailSelector.Candidate> candidates = new ArrayList<>();
+        for (File dicomFile : listDicomFiles(scan)) {
+            try (DicomInputStream dis = new DicomInputStream(dicomFile)) {
+                Attributes attrs = dis.readDataset(-1, Tag.PixelData);
+                if (!attrs.contains(Tag.Rows)) {
+                    continue;
+                }
+                Integer instanceNumber = attrs.contains(Tag.InstanceNumber)
+                        ? attrs.getInt(Tag.InstanceNumber, 0)
+                        : null;
+                candidates.add(new ThumbnailSelector.Candidate(dicomFile, attrs.getString(Tag.SOPInstanceUID),
+                        instanceNumber, attrs.getInt(Tag.NumberOfFrames, 1)));
+            } catch (Exception e) {
+                logger.debug("Error reading DICOM candidate {}", dicomFile.getAbsolutePath(), e);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Number of DICOM instances in a scan, from the file counts XNAT records on its resources.
+     * Catalog entries are only listed for resources without a recorded count; no file is opened.
+     */
+    private int countDicomInstances(XnatImagescandata scan) {
+        int count = 0;
+        List resources = scan.getFile();
+        if (resources == null) {
+            return count;
+        }
+        for (Object resourceObj : resources) {
+            if (!(resourceObj instanceof XnatAbstractresource)) {
+                continue;
+            }
+            XnatAbstractresource resource = (XnatAbstractresource) resourceObj;
+            if (!isDicomResource(resource)) {
+                continue;
+            }
+            Integer fileCount = resource.getFileCount();
+            count += fileCount != null && fileCount > 0 ? fileCount : resolveDicomFiles(resource, scan).size();
+        }
+        return count;
+    }
+
+    /**
+     * The files of all DICOM resources of a scan with their catalog digests, without reading them
+     */
+    private List<InstanceFile> listDicomInstances(XnatImagescandata scan) {
+        List<InstanceFile> instances = new ArrayList<>();
+        List resources = scan.getFile();
+        if (resources == null) {
+            return instances;
+        }
+        for (Object resourceObj : resources) {
+            if (resourceObj instanceof XnatAbstractresource && isDicomResource((XnatAbstractresource) resourceObj)) {
+                for (Map.Entry<File, String> entry
+                        : resolveDicomEntries((XnatAbstractresource) resourceObj, scan).entrySet()) {
+                    instances.add(InstanceFile.of(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Resolve the files of all DICOM resources of a scan
+     */
+    private List<File> listDicomFiles(XnatImagescandata scan) {
+        List<File> files = new ArrayList<>();
+        List resources = scan.getFile();
+        if (resources == null) {
+            return files;
+        }
+        for (Object resourceObj : resources) {
+            if (resourceObj instanceof XnatAbstractresource && isDicomResource((XnatAbstractresource) resourceObj)) {
+                files.addAll(resolveDicomFiles((XnatAbstractresource) resourceObj, scan));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Find the scan of a session by SeriesInstanceUID
+     */
+    private XnatImagescandata findScanByUID(XnatImagesessiondata session, String seriesInstanceUID) {
+        for (Object scanObj : session.getScans_scan()) {
+            XnatImagescandata scan = (XnatImagescandata) scanObj;
+            if (seriesInstanceUID.equals(scan.getUid())) {
+                return scan;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the scan of a series in a project's study; series recently not found are answered
+     * without loading the session
+     */
+    private XnatImagescandata findScan(UserI user, String projectId, String studyInstanceUID,
+                                       String seriesInstanceUID) {
+        if (missingUids.isMissing(userKey(user), projectId, studyInstanceUID, seriesInstanceUID)) {
+            logger.debug("Series {} recently not found in study {}", seriesInstanceUID, studyInstanceUID);
+            return null;
+        }
+        XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
+        if (session == null) {
+            return null;
+        }
+        XnatImagescandata scan = findScanByUID(session, seriesInstanceUID);
+        if (scan == null) {
+            missingUids.recordMissing(userKey(user), projectId, studyInstanceUID, seriesInstanceUID);
+        }
+        return scan;
+    }
+
+    /**
+     * Find an instance in a scan; instances recently not found are answered without the index
+     */
+    private InstanceFile findInstance(UserI user, String projectId, String studyInstanceUID,
+                                      XnatImagescandata scan, String sopInstanceUID) {
+        if (missingUids.isMissing(userKey(user), projectId, studyInstanceUID, scan.getUid(), sopInstanceUID)) {
+            return null;
+        }
+        InstanceFile instance = findDicomInstance(scan, sopInstanceUID);
+        if (instance == null) {
+            missingUids.recordMissing(userKey(user), projectId, studyInstanceUID, scan.getUid(), sopInstanceUID);
+        }
+        return instance;
+    }
+
+    /**
+     * Render one frame (0-based) of a DICOM file to JPEG format.
+     * When a viewport is requested the source is subsampled while decoding, so small renders
+     * only decode the pixels they need.
+     */
+    private byte[] renderDicomToJpeg(File dicomFile, int frameIndex, RenderParams renderParams) {
+        try {
+            // Use ImageIO with DICOM plugin to read the image
+            ImageInputStream iis = ImageIO.createImageInputStream(dicomFile);
+            if (iis == null) {
+                logger.error("Could not create ImageInputStream for DICOM file");
+                return null;
+            }
+
+            BufferedImage bufferedImage;
+            ImageReader reader = null;
+            boolean reusable = false;
+            try {
+                reader = imageCodecPool.borrowReader();
+                reader.setInput(iis, false);
+
+                bufferedImage = readRenderedFrame(reader, frameIndex, renderParams);
+                reusable = true;
+            } finally {
+                imageCodecPool.releaseReader(reader, reusable);
+                iis.close();
+            }
+
+            if (bufferedImage == null) {
+                logger.error("Could not read image from DICOM file");
+                return null;
+            }
+
+            byte[] jpeg = encodeJpeg(bufferedImage, renderParams.getQuality());
+
+            logger.debug("Successfully rendered DICOM to JPEG, size: {} bytes", jpeg.length);
+
+            return jpeg;
+
+        } catch (Exception e) {
+            logger.error("Error rendering DICOM to JPEG", e);
+            return null;
+        }
     }
 
     /**
-     * Find specific DICOM file by SOPInstanceUID
+     * Decode one frame (0-based) from a reader positioned on an instance, sized for the viewport
      */
-    private File findDicomFileInScan(XnatImagescandata scan, String sopInstanceUID) {
-        try {
-            List resources = scan.getFile();
+    private BufferedImage readRenderedFrame(ImageReader reader, int frameIndex, RenderParams renderParams)
+            throws IOException {
+        DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
+        applyRenderParams(reader, frameIndex, param, renderParams);
 
-            if (resources != null) {
-                for (Object resourceObj : resources) {
-                    if (resourceObj instanceof XnatAbstractresource) {
-                        XnatAbstractresource resource = (XnatAbstractresource) resourceObj;
+        BufferedImage image = reader.read(frameIndex, param);
+        return image != null ? fitToViewport(image, renderParams) : null;
+    }
 
-                        if (!isDicomResource(resource)) {
-                            continue;
-                        }
+    /**
+     * Open a reader that renders frames of an instance to JPEG for the parallel decoder
+     */
+    private ParallelFrameDecoder.FrameReader openRenderedFrameReader(File dicomFile, RenderParams renderParams)
+            throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(dicomFile);
+        if (iis == null) {
+            throw new IOException("Could not create ImageInputStream for " + dicomFile);
+        }
 
-                        for (File dicomFile : resolveDicomFiles(resource, scan)) {
-                            try (DicomInputStream dis = new DicomInputStream(dicomFile)) {
-                                Attributes attrs = dis.readDataset(-1, -1);
-                                String fileSOPUID = attrs.getString(Tag.SOPInstanceUID);
+        ImageReader reader;
+        try {
+            reader = imageCodecPool.borrowReader();
+        } catch (IOException e) {
+            iis.close();
+            throw e;
+        }
+        reader.setInput(iis, false);
 
-                                if (sopInstanceUID.equals(fileSOPUID)) {
-                                    return dicomFile;
-                                }
-                            } catch (Exception e) {
-                                logger.debug("Error reading DICOM candidate {}", dicomFile.getAbsolutePath(), e);
-                            }
-                        }
-                    }
+        return new ParallelFrameDecoder.FrameReader() {
+            private boolean reusable = true;
+
+            @Override
+            public byte[] readFrame(int frameIndex) throws IOException {
+                try {
+                    BufferedImage image = readRenderedFrame(reader, frameIndex, renderParams);
+                    return image != null ? encodeJpeg(image, renderParams.getQuality()) : null;
+                } catch (IOException | RuntimeException e) {
+                    reusable = false;
+                    throw e;
                 }
             }
 
-        } catch (Exception e) {
-            logger.error("Error finding DICOM file in scan", e);
-        }
-
-        return null;
+            @Override
+            public void close() throws IOException {
+                imageCodecPool.releaseReader(reader, reusable);
+                iis.close();
+            }
+        };
     }
 
     /**
-     * Get file system path for a resource
-     *
-     * NOTE: This uses XNAT default path conventions. You may need to adjust
-     * the base archive path based on your XNAT installation.
+     * Apply source region, subsampling and windowing to the read parameters
      */
-    private String getResourcePath(XnatAbstractresource resource, XnatImagescandata scan) {
-        try {
-            XnatImagesessiondata session = (XnatImagesessiondata) scan.getImageSessionData();
-            if (session != null) {
-                String archivePath = null;
-                try {
-                    archivePath = session.getArchivePath();
-                } catch (Exception e) {
-                    logger.debug("Unable to resolve archive path from session", e);
-                }
+    private void applyRenderParams(ImageReader reader, int frameIndex, DicomImageReadParam param,
+                                   RenderParams renderParams) throws IOException {
+        if (renderParams.hasWindow()) {
+            param.setWindowCenter(renderParams.getWindowCenter());
+            param.setWindowWidth(renderParams.getWindowWidth());
+        }
 
-                if (archivePath == null || archivePath.isEmpty()) {
-                    final String baseArchive = System.getProperty("xnat.archive", "/data/xnat/archive");
-                    final String projectId = session.getProject();
-                    final String sessionLabel = session.getLabel();
-                    archivePath = buildFallbackArchivePath(baseArchive, projectId, sessionLabel);
-                }
+        if (!renderParams.hasViewport()) {
+            return;
+        }
 
-                if (archivePath != null && !archivePath.isEmpty()) {
-                    return joinPaths(archivePath, "SCANS", scan.getId(), resource.getLabel());
-                }
+        // Image dimensions come from the header; no pixel data is decoded here
+        int width = reader.getWidth(frameIndex);
+        int height = reader.getHeight(frameIndex);
+
+        int[] region = renderParams.getSourceRegion();
+        if (region != null) {
+            Rectangle sourceRegion = new Rectangle(region[0], region[1], region[2], region[3])
+                    .intersection(new Rectangle(0, 0, width, height));
+            if (!sourceRegion.isEmpty()) {
+                param.setSourceRegion(sourceRegion);
+                width = sourceRegion.width;
+                height = sourceRegion.height;
             }
-        } catch (Exception e) {
-            logger.debug("Error getting resource path", e);
         }
 
-        return null;
+        int subsampling = computeSubsampling(width, height,
+                renderParams.getViewportWidth(), renderParams.getViewportHeight());
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
     }
 
-    private String buildFallbackArchivePath(String baseArchive, String projectId, String sessionLabel) {
-        if (baseArchive == null || baseArchive.isEmpty() || projectId == null || sessionLabel == null) {
-            return null;
+    /**
+     * Largest integral subsampling that still leaves at least viewport-sized output
+     */
+    static int computeSubsampling(int width, int height, int viewportWidth, int viewportHeight) {
+        if (viewportWidth <= 0 || viewportHeight <= 0) {
+            return 1;
         }
-        String normalizedBase = baseArchive.endsWith(File.separator)
-                ? baseArchive.substring(0, baseArchive.length() - 1)
-                : baseArchive;
-        // Fallback to legacy arc001 assumption if archive path cannot be determined
-        return normalizedBase + File.separator + projectId + File.separator + "arc001" + File.separator + sessionLabel;
+        return Math.max(1, Math.min(width / viewportWidth, height / viewportHeight));
     }
 
-    private String joinPaths(String first, String... others) {
-        File path = new File(first);
-        for (String part : others) {
-            if (part != null && !part.isEmpty()) {
-                path = new File(path, part);
-            }
+    /**
+     * Scale the decoded image down to fit the viewport, preserving aspect ratio
+     */
+    private BufferedImage fitToViewport(BufferedImage image, RenderParams renderParams) {
+        if (!renderParams.hasViewport()) {
+            return image;
         }
-        return path.getPath();
+        double scale = Math.min((double) renderParams.getViewportWidth() / image.getWidth(),
+                (double) renderParams.getViewportHeight() / image.getHeight());
+        if (scale >= 1.0) {
+            return image;
+        }
+
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        int type = image.getColorModel().getNumComponents() == 1
+                ? BufferedImage.TYPE_BYTE_GRAY
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
     }
 
     /**
-     * Render a DICOM file to JPEG format
+     * Encode an image as JPEG, using the requested quality (1-100) when given
      */
-    private byte[] renderDicomToJpeg(File dicomFile) {
+    private byte[] encodeJpeg(BufferedImage image, int quality) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageWriter writer = imageCodecPool.borrowWriter("JPEG");
+        boolean reusable = false;
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+            writer.setOutput(ios);
+            ImageWriteParam writeParam = writer.getDefaultWriteParam();
+            if (quality > 0) {
+                writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                writeParam.setCompressionQuality(quality / 100f);
+            }
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+            reusable = true;
+        } finally {
+            imageCodecPool.releaseWriter("JPEG", writer, reusable);
+        }
+        return baos.toByteArray();
+    }
+
+    @Override
+    public InstanceFrames locateFrames(UserI user, String projectId, String studyInstanceUID,
+                                       String seriesInstanceUID, String sopInstanceUID, String frameNumbers) {
         try {
-            // Use ImageIO with DICOM plugin to read the image
-            ImageInputStream iis = ImageIO.createImageInputStream(dicomFile);
-            if (iis == null) {
-                logger.error("Could not create ImageInputStream for DICOM file");
+            if (!canReadProject(user, projectId)) {
                 return null;
             }
 
-            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("DICOM");
-            if (!readers.hasNext()) {
-                logger.error("No DICOM ImageReader found");
-                iis.close();
+            // Find the session and scan
+            XnatImagescandata targetScan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
+            if (targetScan == null) {
+                return null;
+            }
+
+            // Parse frame numbers
+            List<Integer> frameList = parseFrameNumbers(frameNumbers);
+            if (frameList.isEmpty()) {
                 return null;
             }
 
-            ImageReader reader = readers.next();
-            reader.setInput(iis, false);
+            // Serve entirely from the frame cache when every requested frame is present
+            String cacheScope = projectId + "/" + studyInstanceUID + "/" + seriesInstanceUID;
+            String instanceKey = cacheScope + "/" + sopInstanceUID;
+            List<byte[]> cachedFrames = getCachedFrames(cacheScope, sopInstanceUID, frameList);
+            if (cachedFrames != null) {
+                logger.debug("Served {} frame(s) of instance {} from frame cache", cachedFrames.size(), sopInstanceUID);
+                framePrefetcher.recordAccess(instanceKey, frameList.get(frameList.size() - 1) - 1);
+                return InstanceFrames.of(cachedFrames);
+            }
 
-            DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
+            // Find the specific DICOM file
+            InstanceFile instance = findInstance(user, projectId, studyInstanceUID, targetScan, sopInstanceUID);
+            if (instance == null) {
+                return null;
+            }
+            File dicomFile = instance.getFile();
 
-            // Read the first frame (middle frame would be better but requires more logic)
-            BufferedImage bufferedImage = reader.read(0, param);
+            // Read DICOM header, up to the pixel data, to validate the requested frames
+            Attributes attrs;
+            boolean compressed;
+            try (DicomInputStream dis = new DicomInputStream(dicomFile)) {
+                attrs = dis.readDataset(-1, Tag.PixelData);
+                // Encapsulated pixel data has undefined length
+                compressed = dis.tag() != Tag.PixelData || dis.length() == -1;
+            }
+            int numberOfFrames = attrs.getInt(Tag.NumberOfFrames, 1);
 
-            reader.dispose();
-            iis.close();
+            logger.info("Retrieving frames {} from instance {} (total frames: {})",
+                    frameList, sopInstanceUID, numberOfFrames);
 
-            if (bufferedImage == null) {
-                logger.error("Could not read image from DICOM file");
+            List<Integer> frameIndexes = new ArrayList<>();
+            for (Integer frameNumber : frameList) {
+                if (frameNumber < 1 || frameNumber > numberOfFrames) {
+                    logger.warn("Frame number {} out of range (1-{})", frameNumber, numberOfFrames);
+                    continue;
+                }
+                frameIndexes.add(frameNumber - 1); // Convert to 0-based
+            }
+            if (frameIndexes.isEmpty()) {
                 return null;
             }
 
-            // Convert to JPEG
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(bufferedImage, "JPEG", baos);
+            framePrefetcher.register(instanceKey, numberOfFrames, compressed
+                    ? () -> openFrameReader(dicomFile)
+                    : () -> openNativeFrameReader(dicomFile));
 
-            logger.debug("Successfully rendered DICOM to JPEG, size: {} bytes", baos.size());
+            return new InstanceFrames() {
+                @Override
+                public int getFrameCount() {
+                    return frameIndexes.size();
+                }
 
-            return baos.toByteArray();
+                @Override
+                public void writeTo(Sink sink) throws IOException {
+                    writeFrames(dicomFile, compressed, cacheScope, sopInstanceUID, instanceKey, frameIndexes, sink);
+                }
+            };
 
         } catch (Exception e) {
-            logger.error("Error rendering DICOM to JPEG", e);
+            logger.error("Error retrieving frames from instance: " + sopInstanceUID, e);
             return null;
         }
     }
 
-    @Override
-    public List<byte[]> retrieveFrames(UserI user, String projectId, String studyInstanceUID,
-                                      String seriesInstanceUID, String sopInstanceUID, String frameNumbers) {
-        List<byte[]> frames = new ArrayList<>();
+    /**
+     * Write the frames (0-based) of an instance to the sink in request order, each as soon as it and
+     * every frame before it are ready. Frames come from the frame cache where present; missing ones are
+     * decoded and cached. Identical requests arriving meanwhile share the decode but write their own
+     * responses, so a slow client does not hold up the others.
+     */
+    private void writeFrames(File dicomFile, boolean compressed, String cacheScope, String sopInstanceUID,
+                             String instanceKey, List<Integer> frameIndexes, InstanceFrames.Sink sink)
+            throws IOException {
+        ParallelFrameDecoder.FrameReaderFactory decoders = compressed
+                ? () -> openFrameReader(dicomFile)
+                : () -> openNativeFrameReader(dicomFile);
+        // Compressed frames are decoded in parallel, one reader per worker
+        frameDecoder.decode(instanceKey + "|" + frameIndexes,
+                () -> openCachingFrameReader(decoders, cacheScope, sopInstanceUID),
+                frameIndexes, compressed ? frameIndexes.size() : 1,
+                (position, frame) -> {
+                    // Frames that failed to decode are skipped
+                    if (frame != null) {
+                        sink.accept(frame);
+                    }
+                });
+        framePrefetcher.recordAccess(instanceKey, frameIndexes.get(frameIndexes.size() - 1));
+    }
 
-        try {
-            XnatProjectdata project = XnatProjectdata.getXnatProjectdatasById(projectId, user, false);
-            if (project == null) {
-                return frames;
+    /**
+     * Frame reader that serves cached frames and caches the frames it decodes, opening the decoding
+     * reader only once a frame is missing
+     */
+    private ParallelFrameDecoder.FrameReader openCachingFrameReader(ParallelFrameDecoder.FrameReaderFactory decoders,
+                                                                    String cacheScope, String sopInstanceUID) {
+        return new ParallelFrameDecoder.FrameReader() {
+            private ParallelFrameDecoder.FrameReader decoder;
+
+            @Override
+            public byte[] readFrame(int frameIndex) throws IOException {
+                byte[] frame = lookupFrame(cacheScope, sopInstanceUID, frameIndex);
+                if (frame != null) {
+                    return frame;
+                }
+                if (decoder == null) {
+                    decoder = decoders.open();
+                }
+                frame = decoder.readFrame(frameIndex);
+                if (frame != null) {
+                    frameCache.put(frameKey(cacheScope, sopInstanceUID, frameIndex), frame);
+                }
+                return frame;
             }
 
-            // Find the session and scan
-            XnatImagesessiondata session = findSessionByUID(user, projectId, studyInstanceUID);
-            if (session == null) {
-                return frames;
+            @Override
+            public void close() throws IOException {
+                if (decoder != null) {
+                    decoder.close();
+                }
             }
+        };
+    }
 
-            XnatImagescandata targetScan = null;
-            List scans = session.getScans_scan();
+    @Override
+    public List<byte[]> retrieveRenderedFrames(UserI user, String projectId, String studyInstanceUID,
+                                              String seriesInstanceUID, String sopInstanceUID,
+                                              String frameNumbers, RenderParams renderParams) {
+        List<byte[]> frames = new ArrayList<>();
 
-            for (Object scanObj : scans) {
-                XnatImagescandata scan = (XnatImagescandata) scanObj;
-                if (seriesInstanceUID.equals(scan.getUid())) {
-                    targetScan = scan;
-                    break;
-                }
+        try {
+            if (!canReadProject(user, projectId)) {
+                return frames;
             }
 
+            XnatImagescandata targetScan = findScan(user, projectId, studyInstanceUID, seriesInstanceUID);
             if (targetScan == null) {
                 return frames;
             }
 
-            // Find the specific DICOM file
-            File dicomFile = findDicomFileInScan(targetScan, sopInstanceUID);
-
-            if (dicomFile == null) {
+            List<Integer> frameList = parseFrameNumbers(frameNumbers);
+            if (frameList.isEmpty()) {
                 return frames;
             }
 
-            // Parse frame numbers
-            List<Integer> frameList = parseFrameNumbers(frameNumbers);
-            if (frameList.isEmpty()) {
+            InstanceFile instance = findInstance(user, projectId, studyInstanceUID, targetScan, sopInstanceUID);
+            if (instance == null) {
                 return frames;
             }
+            File dicomFile = instance.getFile();
 
-            // Read DICOM file and extract frames
+            // Header only; pixel data is read by the rendering workers
+            Attributes attrs;
             try (DicomInputStream dis = new DicomInputStream(dicomFile)) {
-                Attributes attrs = dis.readDataset(-1, -1);
+                attrs = dis.readDataset(-1, Tag.PixelData);
+            }
+            int numberOfFrames = attrs.getInt(Tag.NumberOfFrames, 1);
 
-                // Check if this is a multi-frame image
-                int numberOfFrames = attrs.getInt(Tag.NumberOfFrames, 1);
+            String cacheScope = projectId + "/" + studyInstanceUID + "/" + seriesInstanceUID;
+            String renderKey = "image/jpeg;" + renderParams.toCacheKey();
 
-                logger.info("Retrieving frames {} from instance {} (total frames: {})",
-                        frameNumbers, sopInstanceUID, numberOfFrames);
+            List<String> cacheKeys = new ArrayList<>();
+            List<Integer> frameIndexes = new ArrayList<>();
+            for (Integer frameNumber : frameList) {
+                if (frameNumber < 1 || frameNumber > numberOfFrames) {
+                    logger.warn("Frame number {} out of range (1-{})", frameNumber, numberOfFrames);
+                    continue;
+                }
+                frameIndexes.add(frameNumber - 1);
+                cacheKeys.add(RenderedImageCache.key(cacheScope, sopInstanceUID, frameNumber - 1, renderKey));
+            }
 
-                // Validate requested frames
-                for (Integer frameNumber : frameList) {
-                    if (frameNumber < 1 || frameNumber > numberOfFrames) {
-                        logger.warn("Frame number {} out of range (1-{})", frameNumber, numberOfFrames);
-                        continue;
-                    }
+            byte[][] frameData = new byte[frameIndexes.size()][];
+            List<Integer> missingPositions = new ArrayList<>();
+            List<Integer> missingIndexes = new ArrayList<>();
+            for (int position = 0; position < frameIndexes.size(); position++) {
+                frameData[position] = renderedImageCache.get(cacheKeys.get(position), dicomFile);
+                if (frameData[position] == null) {
+                    missingPositions.add(position);
+                    missingIndexes.add(frameIndexes.get(position));
+                }
+            }
 
-                    // Extract pixel data for the frame
-                    byte[] frameData = extractFramePixelData(dicomFile, frameNumber - 1); // Convert to 0-based
-                    if (frameData != null) {
-                        frames.add(frameData);
-                    }
+            if (!missingIndexes.isEmpty()) {
+                logger.info("Rendering {} of {} frame(s) from instance {}", missingIndexes.size(),
+                        frameIndexes.size(), sopInstanceUID);
+                frameDecoder.decode(() -> openRenderedFrameReader(dicomFile, renderParams), missingIndexes,
+                        (position, rendered) -> frameData[missingPositions.get(position)] = rendered);
+                for (Integer position : missingPositions) {
+                    renderedImageCache.put(cacheKeys.get(position), dicomFile, frameData[position]);
                 }
             }
 
-            logger.info("Retrieved {} frame(s) from instance: {}", frames.size(), sopInstanceUID);
+            for (byte[] rendered : frameData) {
+                if (rendered != null) {
+                    frames.add(rendered);
+                }
+            }
 
         } catch (Exception e) {
-            logger.error("Error retrieving frames from instance: " + sopInstanceUID, e);
+            logger.error("Error rendering frames from instance: " + sopInstanceUID, e);
         }
 
         return frames;
     }
 
+    /**
+     * Look up all requested frames (1-based) in the frame cache.
+     * Returns null unless every frame is cached.
+     */
+    private List<byte[]> getCachedFrames(String cacheScope, String sopInstanceUID, List<Integer> frameList) {
+        if (!frameCache.isEnabled() && !framePrefetcher.isEnabled()) {
+            return null;
+        }
+        List<byte[]> cached = new ArrayList<>(frameList.size());
+        for (Integer frameNumber : frameList) {
+            byte[] frame = lookupFrame(cacheScope, sopInstanceUID, frameNumber - 1);
+            if (frame == null) {
+                return null;
+            }
+            cached.add(frame);
+        }
+        return cached;
+    }
+
+    /**
+     * Look up a frame (0-based) in the frame cache, then in the cine prefetch buffer
+     */
+    private byte[] lookupFrame(String cacheScope, String sopInstanceUID, int frameIndex) {
+        FrameCache.Key key = frameKey(cacheScope, sopInstanceUID, frameIndex);
+        byte[] frame = frameCache.get(key);
+        if (frame == null) {
+            frame = framePrefetcher.take(cacheScope + "/" + sopInstanceUID, frameIndex);
+            if (frame != null) {
+                frameCache.put(key, frame);
+            }
+        }
+        return frame;
+    }
+
+    private FrameCache.Key frameKey(String cacheScope, String sopInstanceUID, int frameIndex) {
+        // Frames are always returned as native little endian pixel data
+        return new FrameCache.Key(cacheScope, sopInstanceUID, frameIndex, UID.ExplicitVRLittleEndian);
+    }
+
     /**
      * Parse comma-separated frame numbers (1-based)
      */
@@ -1032,70 +2427,182 @@ public class XnatDicomServiceImpl implements XnatDicomService {
                 return null;
             }
 
-            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("DICOM");
-            if (!readers.hasNext()) {
-                logger.error("No DICOM ImageReader found");
-                iis.close();
-                return null;
-            }
-
-            ImageReader reader = readers.next();
-            reader.setInput(iis, false);
+            BufferedImage image;
+            ImageReader reader = null;
+            boolean reusable = false;
+            try {
+                reader = imageCodecPool.borrowReader();
+                reader.setInput(iis, false);
+
+                int numImages = reader.getNumImages(true);
+                if (frameIndex < 0 || frameIndex >= numImages) {
+                    logger.error("Frame index {} out of range (0-{})", frameIndex, numImages - 1);
+                    reusable = true;
+                    return null;
+                }
 
-            int numImages = reader.getNumImages(true);
-            if (frameIndex < 0 || frameIndex >= numImages) {
-                logger.error("Frame index {} out of range (0-{})", frameIndex, numImages - 1);
-                reader.dispose();
+                // Read and decompress the frame
+                DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
+                image = reader.read(frameIndex, param);
+                reusable = true;
+            } finally {
+                imageCodecPool.releaseReader(reader, reusable);
                 iis.close();
-                return null;
             }
 
-            // Read and decompress the frame
-            DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
-            BufferedImage image = reader.read(frameIndex, param);
-
-            reader.dispose();
-            iis.close();
-
             if (image == null) {
                 logger.error("Could not read frame {} from DICOM file", frameIndex);
                 return null;
             }
 
             // Convert to raw uncompressed pixel data
-            // Extract pixels in their native format (grayscale or RGB)
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            // Get raw pixel data from BufferedImage
-            java.awt.image.DataBuffer dataBuffer = image.getRaster().getDataBuffer();
-
-            if (dataBuffer instanceof java.awt.image.DataBufferByte) {
-                byte[] pixels = ((java.awt.image.DataBufferByte) dataBuffer).getData();
-                baos.write(pixels);
-            } else if (dataBuffer instanceof java.awt.image.DataBufferUShort) {
-                short[] pixels = ((java.awt.image.DataBufferUShort) dataBuffer).getData();
-                for (short pixel : pixels) {
-                    baos.write(pixel & 0xFF);
-                    baos.write((pixel >> 8) & 0xFF);
-                }
-            } else if (dataBuffer instanceof java.awt.image.DataBufferShort) {
-                short[] pixels = ((java.awt.image.DataBufferShort) dataBuffer).getData();
-                for (short pixel : pixels) {
-                    baos.write(pixel & 0xFF);
-                    baos.write((pixel >> 8) & 0xFF);
-                }
-            } else {
-                logger.error("Unsupported pixel data buffer type: {}", dataBuffer.getClass().getName());
+            byte[] pixels = toRawPixelData(image);
+            if (pixels == null) {
                 return null;
             }
 
             logger.debug("Extracted and decompressed frame {} via ImageIO ({} bytes)",
-                        frameIndex, baos.size());
-            return baos.toByteArray();
+                        frameIndex, pixels.length);
+            return pixels;
 
         } catch (Exception e) {
             logger.error("Error extracting frame via ImageIO", e);
             return null;
         }
     }
+
+    /**
+     * Open a frame reader on a compressed instance for the parallel decoder.
+     * The reader and its input stream belong to a single decode worker.
+     */
+    private ParallelFrameDecoder.FrameReader openFrameReader(File dicomFile) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(dicomFile);
+        if (iis == null) {
+            throw new IOException("Could not create ImageInputStream for " + dicomFile);
+        }
+
+        ImageReader reader;
+        try {
+            reader = imageCodecPool.borrowReader();
+        } catch (IOException e) {
+            iis.close();
+            throw e;
+        }
+        reader.setInput(iis, false);
+
+        return new ParallelFrameDecoder.FrameReader() {
+            private boolean reusable = true;
+
+            @Override
+            public byte[] readFrame(int frameIndex) throws IOException {
+                try {
+                    DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
+                    BufferedImage image = reader.read(frameIndex, param);
+                    return image != null ? toRawPixelData(image) : null;
+                } catch (IOException | RuntimeException e) {
+                    reusable = false;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                imageCodecPool.releaseReader(reader, reusable);
+                iis.close();
+            }
+        };
+    }
+
+    /**
+     * Frame reader over uncompressed pixel data. The header is read once, up to the pixel data, and
+     * each frame is then read at its offset, so a read-ahead batch reads only the frames it needs
+     * instead of the whole file per frame.
+     */
+    private ParallelFrameDecoder.FrameReader openNativeFrameReader(File dicomFile) throws IOException {
+        Attributes attrs;
+        long pixelDataOffset;
+        long pixelDataLength;
+        try (DicomInputStream dis = new DicomInputStream(dicomFile)) {
+            attrs = dis.readDataset(-1, Tag.PixelData);
+            if (UID.DeflatedExplicitVRLittleEndian.equals(dis.getTransferSyntax())) {
+                // Deflated data has no fixed frame offsets in the file
+                return new ParallelFrameDecoder.FrameReader() {
+                    @Override
+                    public byte[] readFrame(int frameIndex) {
+                        return extractFramePixelData(dicomFile, frameIndex);
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+            if (dis.tag() != Tag.PixelData || dis.length() == -1) {
+                throw new IOException("No native pixel data in " + dicomFile.getName());
+            }
+            pixelDataOffset = dis.getPosition();
+            pixelDataLength = dis.length() & 0xFFFFFFFFL;
+        }
+
+        int numberOfFrames = attrs.getInt(Tag.NumberOfFrames, 1);
+        long frameSize = (long) attrs.getInt(Tag.Rows, 0) * attrs.getInt(Tag.Columns, 0)
+                * attrs.getInt(Tag.SamplesPerPixel, 1) * (attrs.getInt(Tag.BitsAllocated, 8) / 8);
+        if (frameSize <= 0 || frameSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid frame size " + frameSize + " in " + dicomFile.getName());
+        }
+
+        FileChannel channel = FileChannel.open(dicomFile.toPath(), StandardOpenOption.READ);
+        return new ParallelFrameDecoder.FrameReader() {
+            @Override
+            public byte[] readFrame(int frameIndex) throws IOException {
+                if (frameIndex < 0 || frameIndex >= numberOfFrames
+                        || (frameIndex + 1) * frameSize > pixelDataLength) {
+                    logger.error("Frame index {} out of range (0-{})", frameIndex, numberOfFrames - 1);
+                    return null;
+                }
+                ByteBuffer frame = ByteBuffer.allocate((int) frameSize);
+                long position = pixelDataOffset + frameIndex * frameSize;
+                while (frame.hasRemaining()) {
+                    if (channel.read(frame, position + frame.position()) < 0) {
+                        throw new EOFException("Pixel data of " + dicomFile.getName() + " ends early");
+                    }
+                }
+                return frame.array();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Extract pixels of a decoded image in their native format (grayscale or RGB),
+     * 16-bit samples as little endian
+     */
+    private byte[] toRawPixelData(BufferedImage image) {
+        java.awt.image.DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+
+        if (dataBuffer instanceof java.awt.image.DataBufferByte) {
+            return ((java.awt.image.DataBufferByte) dataBuffer).getData();
+        }
+
+        short[] pixels;
+        if (dataBuffer instanceof java.awt.image.DataBufferUShort) {
+            pixels = ((java.awt.image.DataBufferUShort) dataBuffer).getData();
+        } else if (dataBuffer instanceof java.awt.image.DataBufferShort) {
+            pixels = ((java.awt.image.DataBufferShort) dataBuffer).getData();
+        } else {
+            logger.error("Unsupported pixel data buffer type: {}", dataBuffer.getClass().getName());
+            return null;
+        }
+
+        byte[] bytes = new byte[pixels.length * 2];
+        for (int i = 0; i < pixels.length; i++) {
+            bytes[2 * i] = (byte) (pixels[i] & 0xFF);
+            bytes[2 * i + 1] = (byte) ((pixels[i] >> 8) & 0xFF);
+        }
+        return bytes;
+    }
 }
@@ -0,0 +1,161 @@
+package org.nrg.xnat.dicomweb.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A single byte range of a {@code Range: bytes=...} request header (RFC 7233).
+ *
+ * Only one range is served; a request for several ranges is answered with the complete content,
+ * which RFC 7233 allows. The selected bytes are read with positional reads, so resuming a large
+ * download never reads the skipped part of the file.
+ */
+public class ByteRange {
+
+    private final long start;
+    private final long end;
+    private final long length;
+
+    private ByteRange(long start, long end, long length) {
+        this.start = start;
+        this.end = end;
+        this.length = length;
+    }
+
+    /**
+     * Parse a Range header against content of the given length
+     *
+     * @return the range, an unsatisfiable range, or null when the header is absent, malformed or
+     * asks for several ranges and the complete content should be sent
+     */
+    public static ByteRange parse(String header, long length) {
+        if (header == null || !header.trim().toLowerCase().startsWith("bytes=")) {
+            return null;
+        }
+        String spec = header.trim().substring("bytes=".length()).trim();
+        if (spec.isEmpty() || spec.contains(",")) {
+            return null;
+        }
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Suffix range: the final N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || length == 0) {
+                    return new ByteRange(0, -1, length);
+                }
+                return new ByteRange(Math.max(0, length - suffix), length - 1, length);
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= length) {
+                return new ByteRange(start, -1, length);
+            }
+            return new ByteRange(start, Math.min(end, length - 1), length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether any byte of the content is selected; otherwise the answer is 416
+     */
+    public boolean isSatisfiable() {
+        return end >= start;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Last selected byte, inclusive
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Number of selected bytes
+     */
+    public long getCount() {
+        return isSatisfiable() ? end - start + 1 : 0;
+    }
+
+    /**
+     * Content-Range header value, {@code bytes start-end/length} or {@code bytes *}{@code /length}
+     */
+    public String toContentRange() {
+        return isSatisfiable() ? "bytes " + start + "-" + end + "/" + length : "bytes */" + length;
+    }
+
+    /**
+     * Stream of the selected bytes of a file, read at their position
+     */
+    public InputStream open(File file) throws IOException {
+        return new RangeInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ), start, getCount());
+    }
+
+    private static final class RangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        private RangeInputStream(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(len, remaining)), position);
+            if (read <= 0) {
+                return -1;
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -1,20 +1,37 @@
 package org.nrg.xnat.dicomweb.utils;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.json.JSONWriter;
 
 import javax.json.Json;
 import javax.json.stream.JsonGenerator;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Utility class for DICOMweb operations
  */
 public class DicomWebUtils {
 
+    /**
+     * QIDO-RS query parameters that are not attribute matching keys
+     */
+    private static final Set<String> RESERVED_QUERY_PARAMETERS = new HashSet<>(Arrays.asList(
+            "limit", "offset", "includefield", "fuzzymatching"));
+
     /**
      * Convert DICOM Attributes to JSON string
      */
@@ -27,6 +44,83 @@ public class DicomWebUtils {
         return sw.toString();
     }
 
+    /**
+     * Convert QIDO-RS query parameters into matching attributes.
+     * Keys may be attribute keywords (PatientID) or tags (00100020); comma-separated values
+     * become multiple values. Reserved and unknown parameters are ignored.
+     */
+    public static Attributes parseQueryParameters(Map<String, String> parameters) {
+        Attributes query = new Attributes();
+        if (parameters == null) {
+            return query;
+        }
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String key = parameter.getKey();
+            if (key == null || RESERVED_QUERY_PARAMETERS.contains(key.toLowerCase())) {
+                continue;
+            }
+            int tag = resolveTag(key.trim());
+            if (tag == -1) {
+                continue;
+            }
+            String value = parameter.getValue() != null ? parameter.getValue().trim() : "";
+            VR vr = ElementDictionary.vrOf(tag, null);
+            if (value.isEmpty()) {
+                query.setNull(tag, vr);
+            } else {
+                query.setString(tag, vr, value.split(","));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Read a non-negative integer QIDO-RS parameter such as limit or offset, or 0 if it is absent
+     *
+     * @throws IllegalArgumentException if the value is negative or not a number
+     */
+    public static int parseCountParameter(Map<String, String> parameters, String name) {
+        String value = getQueryParameter(parameters, name);
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        return count;
+    }
+
+    /**
+     * Value of a QIDO-RS parameter, whose name is matched ignoring case, or null if it is absent
+     */
+    public static String getQueryParameter(Map<String, String> parameters, String name) {
+        if (parameters == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (name.equalsIgnoreCase(parameter.getKey())) {
+                return parameter.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolve an attribute keyword or 8-digit hex tag, or -1 if it is neither
+     */
+    public static int resolveTag(String key) {
+        if (key.matches("[0-9A-Fa-f]{8}")) {
+            return (int) Long.parseLong(key, 16);
+        }
+        return ElementDictionary.tagForKeyword(key, null);
+    }
+
     /**
      * Read DICOM attributes from input stream
      */
@@ -49,4 +143,102 @@ public class DicomWebUtils {
     public static String getMultipartContentType(String boundary) {
         return "multipart/related; type=\"application/dicom\"; boundary=" + boundary;
     }
+
+    /**
+     * Get content type for multipart related DICOM in a given transfer syntax
+     */
+    public static String getMultipartContentType(String boundary, String transferSyntaxUID) {
+        return "multipart/related; type=\"application/dicom\"; transfer-syntax=" + transferSyntaxUID
+                + "; boundary=" + boundary;
+    }
+
+    /**
+     * The transfer syntax requested by the first application/dicom (or multipart/related
+     * application/dicom) media range of an Accept header carrying one
+     *
+     * @return the transfer syntax UID, or null if none is requested or "*" accepts the stored one
+     */
+    public static String getRequestedTransferSyntax(String accept) {
+        if (accept == null) {
+            return null;
+        }
+        for (String mediaRange : accept.split(",")) {
+            String[] params = mediaRange.split(";");
+            String type = params[0].trim().toLowerCase();
+            if (!type.equals("application/dicom") && !type.equals("multipart/related") && !type.equals("*/*")) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                int eq = params[i].indexOf('=');
+                if (eq > 0 && params[i].substring(0, eq).trim().equalsIgnoreCase("transfer-syntax")) {
+                    String value = params[i].substring(eq + 1).trim().replace("\"", "");
+                    return value.isEmpty() || value.equals("*") ? null : value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read an integer plugin setting from system properties, falling back to the default
+     */
+    public static int getIntProperty(String name, int defaultValue) {
+        return (int) getLongProperty(name, defaultValue);
+    }
+
+    /**
+     * Read a long plugin setting from system properties, falling back to the default
+     */
+    public static long getLongProperty(String name, long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Directory for one of the plugin's disk caches: the given system property if set, otherwise
+     * {@code <name>} under {@code dicomweb} in the XNAT cache path ({@code xnat.cache}, default
+     * {@code /data/xnat/cache})
+     */
+    public static File getCacheDirectory(String property, String name) {
+        String configured = System.getProperty(property);
+        if (configured != null && !configured.trim().isEmpty()) {
+            return new File(configured.trim());
+        }
+        return new File(new File(System.getProperty("xnat.cache", "/data/xnat/cache"), "dicomweb"), name);
+    }
+
+    /**
+     * Create the directory if needed and make it accessible to the owner only, since cached
+     * outputs carry patient data. Permissions are left alone on file systems without POSIX support.
+     */
+    public static void createPrivateDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        if (isPosix()) {
+            Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+    /**
+     * Create an empty temporary file in the directory, readable and writable by the owner only
+     */
+    public static File createPrivateTempFile(File directory, String prefix, String suffix) throws IOException {
+        Path path = isPosix()
+                ? Files.createTempFile(directory.toPath(), prefix, suffix,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.createTempFile(directory.toPath(), prefix, suffix);
+        return path.toFile();
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
 }
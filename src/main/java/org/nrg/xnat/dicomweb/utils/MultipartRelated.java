@@ -0,0 +1,199 @@
+package org.nrg.xnat.dicomweb.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A multipart/related body with one part per file, streamed from disk.
+ *
+ * Part sizes are taken from file metadata when the body is created, so the exact Content-Length is
+ * known before the first byte is sent. Files are opened one at a time as the body is read. A file
+ * that shrinks before it is sent fails the stream, so the transfer ends short of the declared length
+ * and the client sees the truncation; bytes beyond the recorded size are never sent.
+ *
+ * Parts whose content is only produced when reached, such as transcoded instances, are sent through
+ * {@link #stream} instead, without a Content-Length.
+ */
+public class MultipartRelated {
+
+    /**
+     * Opens the content of a part when the body reaches it
+     */
+    public interface PartSource {
+        InputStream open() throws IOException;
+    }
+
+    private final String boundary;
+    private final String partContentType;
+    private final List<File> files;
+    private final long[] lengths;
+    private final long contentLength;
+
+    public MultipartRelated(String boundary, String partContentType, List<File> files) {
+        this.boundary = boundary;
+        this.partContentType = partContentType;
+        this.files = new ArrayList<>(files);
+        this.lengths = new long[files.size()];
+
+        long total = closeDelimiter(boundary).length;
+        int headerLength = partHeader(boundary, partContentType).length;
+        for (int i = 0; i < this.files.size(); i++) {
+            lengths[i] = this.files.get(i).length();
+            total += headerLength + lengths[i] + 2;
+        }
+        this.contentLength = total;
+    }
+
+    /**
+     * Exact number of bytes {@link #open()} produces
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * The body, reading each file only when its part is reached
+     */
+    public InputStream open() {
+        List<InputStream> parts = new ArrayList<>(files.size() * 3 + 1);
+        byte[] header = partHeader(boundary, partContentType);
+        byte[] lineBreak = "\r\n".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < files.size(); i++) {
+            parts.add(new ByteArrayInputStream(header));
+            parts.add(new FilePart(files.get(i), lengths[i]));
+            parts.add(new ByteArrayInputStream(lineBreak));
+        }
+        parts.add(new ByteArrayInputStream(closeDelimiter(boundary)));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * A body whose parts are opened one at a time as they are reached; a part that cannot be opened
+     * fails the stream
+     */
+    public static InputStream stream(String boundary, String partContentType, List<? extends PartSource> sources) {
+        List<InputStream> parts = new ArrayList<>(sources.size() * 3 + 1);
+        byte[] header = partHeader(boundary, partContentType);
+        byte[] lineBreak = "\r\n".getBytes(StandardCharsets.US_ASCII);
+        for (PartSource source : sources) {
+            parts.add(new ByteArrayInputStream(header));
+            parts.add(new LazyPart(source));
+            parts.add(new ByteArrayInputStream(lineBreak));
+        }
+        parts.add(new ByteArrayInputStream(closeDelimiter(boundary)));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    private static byte[] partHeader(String boundary, String partContentType) {
+        return ("--" + boundary + "\r\nContent-Type: " + partContentType + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] closeDelimiter(String boundary) {
+        return ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The content of a part source, opened on first read
+     */
+    private static final class LazyPart extends InputStream {
+
+        private final PartSource source;
+        private InputStream in;
+        private boolean finished;
+
+        private LazyPart(PartSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (finished) {
+                return -1;
+            }
+            if (in == null) {
+                in = source.open();
+            }
+            int read = in.read(buffer, offset, len);
+            if (read < 0) {
+                close();
+                finished = true;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Exactly {@code length} bytes of a file, opened on first read
+     */
+    private static final class FilePart extends InputStream {
+
+        private final File file;
+        private long remaining;
+        private InputStream in;
+
+        private FilePart(File file, long length) {
+            this.file = file;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                close();
+                return -1;
+            }
+            if (in == null) {
+                in = new FileInputStream(file);
+            }
+            int read = in.read(buffer, offset, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException("File shrank while streaming: " + file.getAbsolutePath());
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}
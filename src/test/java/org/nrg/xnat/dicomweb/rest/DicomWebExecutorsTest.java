@@ -0,0 +1,191 @@
+package org.nrg.xnat.dicomweb.rest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DicomWebExecutors}
+ */
+public class DicomWebExecutorsTest {
+
+    private DicomWebExecutors executors;
+
+    @After
+    public void tearDown() {
+        if (executors != null) {
+            executors.destroy();
+        }
+    }
+
+    @Test
+    public void bulk_RunsOffTheCallingThread() throws Exception {
+        executors = new DicomWebExecutors(1, 1, 4, 0, 0, 5);
+        AtomicReference<Thread> worker = new AtomicReference<>();
+
+        DeferredResult<ResponseEntity<String>> result = executors.bulk("alice", "test", () -> {
+            worker.set(Thread.currentThread());
+            return ResponseEntity.ok("done");
+        });
+
+        ResponseEntity<String> response = await(result);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertNotEquals("Work should not hold the request thread", Thread.currentThread(), worker.get());
+        assertTrue(worker.get().getName().startsWith("dicomweb-async-bulk"));
+    }
+
+    @Test
+    public void metadata_FailureIsInternalError() throws Exception {
+        executors = new DicomWebExecutors(1, 1, 4, 0, 0, 5);
+
+        DeferredResult<ResponseEntity<String>> result = executors.metadata("test", () -> {
+            throw new IllegalStateException("broken");
+        });
+
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, await(result).getStatusCode());
+    }
+
+    @Test
+    public void bulk_FullQueueIsUnavailable() throws Exception {
+        executors = new DicomWebExecutors(1, 1, 1, 0, 0, 5);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        DeferredResult<ResponseEntity<String>> running = executors.bulk("alice", "running", () -> {
+            started.countDown();
+            release.await();
+            return ResponseEntity.ok("first");
+        });
+        started.await(5, TimeUnit.SECONDS);
+        DeferredResult<ResponseEntity<String>> queued = executors.bulk("bob", "queued",
+                () -> ResponseEntity.ok("second"));
+        DeferredResult<ResponseEntity<String>> rejected = executors.bulk("carol", "rejected",
+                () -> ResponseEntity.ok("third"));
+
+        assertTrue(rejected.hasResult());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, responseOf(rejected).getStatusCode());
+        assertEquals("5", responseOf(rejected).getHeaders().getFirst("Retry-After"));
+        DeferredResult<ResponseEntity<String>> search = executors.metadata("search", () -> ResponseEntity.ok("found"));
+        assertEquals("Searches have their own pool", HttpStatus.OK, await(search).getStatusCode());
+        assertFalse(queued.hasResult());
+
+        release.countDown();
+        assertEquals(HttpStatus.OK, await(running).getStatusCode());
+        assertEquals(HttpStatus.OK, await(queued).getStatusCode());
+    }
+
+    @Test
+    public void bulk_LimitsRequestsPerUser() throws Exception {
+        executors = new DicomWebExecutors(4, 1, 16, 2, 0, 5);
+        CountDownLatch release = new CountDownLatch(1);
+
+        DeferredResult<ResponseEntity<String>> first = executors.bulk("alice", "study", () -> {
+            release.await();
+            return ResponseEntity.ok("first");
+        });
+        DeferredResult<ResponseEntity<String>> second = executors.bulk("alice", "study", () -> {
+            release.await();
+            return ResponseEntity.ok("second");
+        });
+        DeferredResult<ResponseEntity<String>> third = executors.bulk("alice", "study",
+                () -> ResponseEntity.ok("third"));
+        DeferredResult<ResponseEntity<String>> other = executors.bulk("bob", "study",
+                () -> ResponseEntity.ok("other"));
+
+        assertTrue("Excess bulk requests should be answered at once", third.hasResult());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, responseOf(third).getStatusCode());
+        assertEquals("5", responseOf(third).getHeaders().getFirst("Retry-After"));
+        assertEquals("Other users keep their allowance", HttpStatus.OK, await(other).getStatusCode());
+
+        release.countDown();
+        assertEquals(HttpStatus.OK, await(first).getStatusCode());
+        assertEquals(HttpStatus.OK, await(second).getStatusCode());
+    }
+
+    @Test
+    public void bulkDownload_FailureIsPassedToContainer() throws Exception {
+        executors = new DicomWebExecutors(1, 1, 4, 0, 1, 5);
+        IOException failure = new IOException("file shrank");
+
+        DeferredResult<ResponseEntity<String>> result = executors.bulkDownload("alice", "download", () -> {
+            // Longer than the timeout: a download is not cut off once it has started
+            Thread.sleep(50);
+            throw failure;
+        });
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!result.hasResult() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertSame("A partly written body should be aborted, not answered", failure, result.getResult());
+    }
+
+    @Test
+    public void bulkDownload_LongQueueWaitIsUnavailable() throws Exception {
+        executors = new DicomWebExecutors(1, 1, 4, 0, 50, 5);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+
+        DeferredResult<ResponseEntity<String>> running = executors.bulkDownload("alice", "running", () -> {
+            release.await();
+            return null;
+        });
+        DeferredResult<ResponseEntity<String>> waiting = executors.bulkDownload("bob", "waiting", () -> {
+            ran.incrementAndGet();
+            return null;
+        });
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, await(waiting).getStatusCode());
+        assertEquals("Work that waited too long should not start", 0, ran.get());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!running.hasResult() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertNull("A written download has no response left to send", running.getResult());
+    }
+
+    @Test
+    public void direct_RunsOnCallingThread() {
+        executors = DicomWebExecutors.direct();
+        AtomicReference<Thread> worker = new AtomicReference<>();
+
+        DeferredResult<ResponseEntity<String>> result = executors.metadata("test", () -> {
+            worker.set(Thread.currentThread());
+            return ResponseEntity.ok("done");
+        });
+
+        assertTrue(result.hasResult());
+        assertEquals(Thread.currentThread(), worker.get());
+    }
+
+    private static <T> ResponseEntity<T> await(DeferredResult<ResponseEntity<T>> result) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!result.hasResult() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Work should complete", result.hasResult());
+        return responseOf(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ResponseEntity<T> responseOf(DeferredResult<ResponseEntity<T>> result) {
+        return (ResponseEntity<T>) result.getResult();
+    }
+}
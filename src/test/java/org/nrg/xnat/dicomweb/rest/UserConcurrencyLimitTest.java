@@ -0,0 +1,53 @@
+package org.nrg.xnat.dicomweb.rest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link UserConcurrencyLimit}
+ */
+public class UserConcurrencyLimitTest {
+
+    @Test
+    public void tryAcquire_LimitsEachUserSeparately() {
+        UserConcurrencyLimit limit = new UserConcurrencyLimit(2);
+
+        assertTrue(limit.tryAcquire("alice"));
+        assertTrue(limit.tryAcquire("alice"));
+        assertFalse("Third request should be refused", limit.tryAcquire("alice"));
+        assertTrue("Other users have their own allowance", limit.tryAcquire("bob"));
+        assertEquals(2, limit.active("alice"));
+    }
+
+    @Test
+    public void release_AdmitsNextRequest() {
+        UserConcurrencyLimit limit = new UserConcurrencyLimit(1);
+        limit.tryAcquire("alice");
+
+        limit.release("alice");
+
+        assertEquals(0, limit.active("alice"));
+        assertTrue(limit.tryAcquire("alice"));
+    }
+
+    @Test
+    public void tryAcquire_AnonymousRequestsShareAllowance() {
+        UserConcurrencyLimit limit = new UserConcurrencyLimit(1);
+
+        assertTrue(limit.tryAcquire(null));
+        assertFalse(limit.tryAcquire(null));
+    }
+
+    @Test
+    public void tryAcquire_ZeroLimitAdmitsEverything() {
+        UserConcurrencyLimit limit = new UserConcurrencyLimit(0);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limit.tryAcquire("alice"));
+        }
+        assertEquals(0, limit.active("alice"));
+    }
+}
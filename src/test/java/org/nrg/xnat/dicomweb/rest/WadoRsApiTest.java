@@ -10,15 +10,34 @@ import org.mockito.MockitoAnnotations;
 import org.nrg.xdat.security.services.RoleHolder;
 import org.nrg.xdat.security.services.UserManagementServiceI;
 import org.nrg.xft.security.UserI;
+import org.nrg.xnat.dicomweb.service.InstanceFile;
+import org.nrg.xnat.dicomweb.service.InstanceFrames;
+import org.nrg.xnat.dicomweb.service.ResourceValidator;
 import org.nrg.xnat.dicomweb.service.XnatDicomService;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.servlet.ServletOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -43,7 +62,8 @@ public class WadoRsApiTest {
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
-        wadoRsApi = new WadoRsApi(mockDicomService, mockUserManagementService, mockRoleHolder) {
+        wadoRsApi = new WadoRsApi(mockDicomService, DicomWebExecutors.direct(), mockUserManagementService,
+                mockRoleHolder) {
             @Override
             protected UserI getSessionUser() {
                 return mockUser;
@@ -64,7 +84,7 @@ public class WadoRsApiTest {
             .thenReturn(mockInstances);
 
         // Act
-        ResponseEntity<String> response = wadoRsApi.retrieveStudyMetadata(projectId, studyUID);
+        ResponseEntity<String> response = resultOf(wadoRsApi.retrieveStudyMetadata(projectId, studyUID, null));
 
         // Assert
         assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
@@ -89,7 +109,7 @@ public class WadoRsApiTest {
             .thenReturn(new ArrayList<>());
 
         // Act
-        ResponseEntity<String> response = wadoRsApi.retrieveStudyMetadata(projectId, studyUID);
+        ResponseEntity<String> response = resultOf(wadoRsApi.retrieveStudyMetadata(projectId, studyUID, null));
 
         // Assert
         assertEquals("Should return 404 Not Found for empty result", HttpStatus.NOT_FOUND, response.getStatusCode());
@@ -107,7 +127,7 @@ public class WadoRsApiTest {
             .thenReturn(mockInstances);
 
         // Act
-        ResponseEntity<String> response = wadoRsApi.retrieveStudyMetadata(projectId, studyUID);
+        ResponseEntity<String> response = resultOf(wadoRsApi.retrieveStudyMetadata(projectId, studyUID, null));
 
         // Assert
         String responseBody = response.getBody();
@@ -118,6 +138,115 @@ public class WadoRsApiTest {
         assertTrue("Should contain SOP Class UID tag", responseBody.contains("\"00080016\""));
     }
 
+    @Test
+    public void testRetrieveStudyMetadata_MatchingETagIsNotModified() {
+        String projectId = "TestProject";
+        String studyUID = "1.2.3.4.5";
+        ResourceValidator validator = ResourceValidator.of("study|S1|1000", 1000L);
+        when(mockDicomService.getStudyValidator(any(UserI.class), eq(projectId), eq(studyUID)))
+            .thenReturn(validator);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, validator.getETag());
+        ResponseEntity<String> response = resultOf(wadoRsApi.retrieveStudyMetadata(projectId, studyUID, request));
+
+        assertEquals("Should return 304 Not Modified", HttpStatus.NOT_MODIFIED, response.getStatusCode());
+        assertEquals("304 should repeat the ETag", validator.getETag(), response.getHeaders().getETag());
+        assertNull("304 should have no body", response.getBody());
+        verify(mockDicomService, never()).retrieveAllStudyInstanceMetadata(any(UserI.class), anyString(), anyString());
+    }
+
+    @Test
+    public void testRetrieveStudyMetadata_ChangedETagReturnsBody() {
+        String projectId = "TestProject";
+        String studyUID = "1.2.3.4.5";
+        ResourceValidator validator = ResourceValidator.of("study|S1|2000", 2000L);
+        when(mockDicomService.getStudyValidator(any(UserI.class), eq(projectId), eq(studyUID)))
+            .thenReturn(validator);
+        when(mockDicomService.retrieveAllStudyInstanceMetadata(any(UserI.class), eq(projectId), eq(studyUID)))
+            .thenReturn(createMockInstances(1));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, ResourceValidator.of("study|S1|1000", 1000L).getETag());
+        ResponseEntity<String> response = resultOf(wadoRsApi.retrieveStudyMetadata(projectId, studyUID, request));
+
+        assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
+        assertEquals("Response should carry the current ETag", validator.getETag(), response.getHeaders().getETag());
+        assertNotNull("Response body should not be null", response.getBody());
+    }
+
+    @Test
+    public void testRetrieveStudyMetadata_RevalidationSkipsBulkLimit() throws Exception {
+        String projectId = "TestProject";
+        String studyUID = "1.2.3.4.5";
+        ResourceValidator validator = ResourceValidator.of("study|S1|1000", 1000L);
+        when(mockUser.getLogin()).thenReturn("alice");
+        when(mockDicomService.getStudyValidator(any(UserI.class), eq(projectId), eq(studyUID)))
+            .thenReturn(validator);
+        DicomWebExecutors executors = new DicomWebExecutors(1, 1, 4, 1, 0, 5);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            WadoRsApi limited = apiWith(executors);
+            executors.bulk("alice", "download", () -> {
+                release.await();
+                return ResponseEntity.ok("done");
+            });
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, validator.getETag());
+            ResponseEntity<String> response = resultOf(limited.retrieveStudyMetadata(projectId, studyUID, request));
+
+            assertEquals("A 304 should not need a bulk slot", HttpStatus.NOT_MODIFIED, response.getStatusCode());
+            verify(mockDicomService, never()).retrieveAllStudyInstanceMetadata(any(UserI.class), anyString(), anyString());
+        } finally {
+            release.countDown();
+            executors.destroy();
+        }
+    }
+
+    @Test
+    public void testRetrieveStudyMetadata_GuestsAreLimitedPerAddress() throws Exception {
+        String projectId = "TestProject";
+        String studyUID = "1.2.3.4.5";
+        when(mockUser.isGuest()).thenReturn(true);
+        when(mockUser.getLogin()).thenReturn("guest");
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        when(mockDicomService.retrieveAllStudyInstanceMetadata(any(UserI.class), eq(projectId), eq(studyUID)))
+            .thenAnswer(invocation -> {
+                if (calls.incrementAndGet() == 1) {
+                    release.await();
+                }
+                return createMockInstances(1);
+            });
+        DicomWebExecutors executors = new DicomWebExecutors(2, 1, 4, 1, 0, 5);
+        try {
+            WadoRsApi limited = apiWith(executors);
+            MockHttpServletRequest first = new MockHttpServletRequest();
+            first.setRemoteAddr("10.0.0.1");
+            MockHttpServletRequest second = new MockHttpServletRequest();
+            second.setRemoteAddr("10.0.0.2");
+
+            DeferredResult<ResponseEntity<String>> held = limited.retrieveStudyMetadata(projectId, studyUID, first);
+            while (calls.get() == 0) {
+                Thread.sleep(5);
+            }
+            DeferredResult<ResponseEntity<String>> sameAddress =
+                    limited.retrieveStudyMetadata(projectId, studyUID, first);
+            DeferredResult<ResponseEntity<String>> otherAddress =
+                    limited.retrieveStudyMetadata(projectId, studyUID, second);
+
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, resultOf(sameAddress).getStatusCode());
+            assertEquals("Guests at other addresses keep their own allowance",
+                    HttpStatus.OK, await(otherAddress).getStatusCode());
+            release.countDown();
+            assertEquals(HttpStatus.OK, await(held).getStatusCode());
+        } finally {
+            release.countDown();
+            executors.destroy();
+        }
+    }
+
     @Test
     public void testRetrieveAllStudyInstanceMetadata_NoNullPointerException() {
         // Regression test: verify that retrieveAllStudyInstanceMetadata doesn't throw NPE
@@ -131,7 +260,7 @@ public class WadoRsApiTest {
             .thenReturn(mockInstances);
 
         // Act - should not throw NullPointerException
-        ResponseEntity<String> response = wadoRsApi.retrieveStudyMetadata(projectId, studyUID);
+        ResponseEntity<String> response = resultOf(wadoRsApi.retrieveStudyMetadata(projectId, studyUID, null));
 
         // Assert
         assertEquals("Should successfully return all instances without NPE", HttpStatus.OK, response.getStatusCode());
@@ -183,13 +312,13 @@ public class WadoRsApiTest {
         List<byte[]> mockFrames = new ArrayList<>();
         mockFrames.add(new byte[]{1, 2, 3, 4, 5});
 
-        when(mockDicomService.retrieveFrames(any(UserI.class), eq(projectId), eq(studyUID),
+        when(mockDicomService.locateFrames(any(UserI.class), eq(projectId), eq(studyUID),
                 eq(seriesUID), eq(instanceUID), eq(frameList)))
-            .thenReturn(mockFrames);
+            .thenReturn(InstanceFrames.of(mockFrames));
 
         // Act
         ResponseEntity<?> response = wadoRsApi.retrieveFrames(projectId, studyUID, seriesUID,
-                instanceUID, frameList, null);
+                instanceUID, frameList, null, new MockHttpServletResponse());
 
         // Assert
         assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
@@ -212,23 +341,67 @@ public class WadoRsApiTest {
         mockFrames.add(new byte[]{4, 5, 6});
         mockFrames.add(new byte[]{7, 8, 9});
 
-        when(mockDicomService.retrieveFrames(any(UserI.class), eq(projectId), eq(studyUID),
+        when(mockDicomService.locateFrames(any(UserI.class), eq(projectId), eq(studyUID),
                 eq(seriesUID), eq(instanceUID), eq(frameList)))
-            .thenReturn(mockFrames);
+            .thenReturn(InstanceFrames.of(mockFrames));
 
         // Act
-        ResponseEntity<?> response = wadoRsApi.retrieveFrames(projectId, studyUID, seriesUID,
-                instanceUID, frameList, null);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ResponseEntity<?> result = wadoRsApi.retrieveFrames(projectId, studyUID, seriesUID,
+                instanceUID, frameList, null, response);
 
         // Assert
-        assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
-        assertNotNull("Content-Type should be set", response.getHeaders().getContentType());
-        String contentType = response.getHeaders().getContentType().toString();
+        assertNull("The body should already be written", result);
+        assertEquals("Should return 200 OK", 200, response.getStatus());
+        assertNotNull("Content-Type should be set", response.getContentType());
+        String contentType = response.getContentType();
         assertTrue("Should return multipart/related for multiple frames",
                 contentType.startsWith("multipart/related"));
         assertTrue("Should include boundary parameter", contentType.contains("boundary="));
     }
 
+    @Test
+    public void testRetrieveFrames_MultipleFrames_StreamsPartsInOrder() throws Exception {
+        String frameList = "3,1";
+        List<byte[]> read = new ArrayList<>();
+        when(mockDicomService.locateFrames(any(UserI.class), eq("TestProject"), eq("1.2.3.4.5"),
+                eq("1.2.3.4.5.100"), eq("1.2.3.4.5.6.1"), eq(frameList)))
+            .thenReturn(new InstanceFrames() {
+                @Override
+                public int getFrameCount() {
+                    return 2;
+                }
+
+                @Override
+                public void writeTo(Sink sink) throws IOException {
+                    read.add(new byte[]{3, 3});
+                    sink.accept(read.get(0));
+                    read.add(new byte[]{1, 1});
+                    sink.accept(read.get(1));
+                }
+            });
+
+        Thread requestThread = Thread.currentThread();
+        MockHttpServletResponse response = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                assertSame("Parts should be written on the request thread", requestThread, Thread.currentThread());
+                assertTrue("Frames should be read only once the body is written", read.isEmpty());
+                return super.getOutputStream();
+            }
+        };
+        assertNull(wadoRsApi.retrieveFrames("TestProject", "1.2.3.4.5", "1.2.3.4.5.100", "1.2.3.4.5.6.1",
+                frameList, null, response));
+
+        String contentType = response.getContentType();
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        String expected = "--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\n\u0003\u0003\r\n"
+                + "--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\n\u0001\u0001\r\n"
+                + "--" + boundary + "--\r\n";
+        assertEquals("Parts should follow the request order", expected,
+                new String(response.getContentAsByteArray(), StandardCharsets.ISO_8859_1));
+    }
+
     @Test
     public void testRetrieveFrames_NotFound() {
         // Arrange
@@ -238,13 +411,13 @@ public class WadoRsApiTest {
         String instanceUID = "1.2.3.4.5.6.999";
         String frameList = "1";
 
-        when(mockDicomService.retrieveFrames(any(UserI.class), eq(projectId), eq(studyUID),
+        when(mockDicomService.locateFrames(any(UserI.class), eq(projectId), eq(studyUID),
                 eq(seriesUID), eq(instanceUID), eq(frameList)))
-            .thenReturn(new ArrayList<>());
+            .thenReturn(null);
 
         // Act
         ResponseEntity<?> response = wadoRsApi.retrieveFrames(projectId, studyUID, seriesUID,
-                instanceUID, frameList, null);
+                instanceUID, frameList, null, new MockHttpServletResponse());
 
         // Assert
         assertEquals("Should return 404 Not Found when no frames retrieved",
@@ -260,14 +433,14 @@ public class WadoRsApiTest {
         String instanceUID = "1.2.3.4.5.6.1";
         String frameList = "999";
 
-        // Service returns empty list when frames are out of range
-        when(mockDicomService.retrieveFrames(any(UserI.class), eq(projectId), eq(studyUID),
+        // Service finds no frames when they are out of range
+        when(mockDicomService.locateFrames(any(UserI.class), eq(projectId), eq(studyUID),
                 eq(seriesUID), eq(instanceUID), eq(frameList)))
-            .thenReturn(new ArrayList<>());
+            .thenReturn(null);
 
         // Act
         ResponseEntity<?> response = wadoRsApi.retrieveFrames(projectId, studyUID, seriesUID,
-                instanceUID, frameList, null);
+                instanceUID, frameList, null, new MockHttpServletResponse());
 
         // Assert
         assertEquals("Should return 404 when frame numbers are invalid",
@@ -288,17 +461,391 @@ public class WadoRsApiTest {
         mockFrames.add(new byte[]{1});
         mockFrames.add(new byte[]{5});
 
-        when(mockDicomService.retrieveFrames(any(UserI.class), eq(projectId), eq(studyUID),
+        when(mockDicomService.locateFrames(any(UserI.class), eq(projectId), eq(studyUID),
                 eq(seriesUID), eq(instanceUID), eq(frameList)))
-            .thenReturn(mockFrames);
+            .thenReturn(InstanceFrames.of(mockFrames));
 
         // Act
-        ResponseEntity<?> response = wadoRsApi.retrieveFrames(projectId, studyUID, seriesUID,
-                instanceUID, frameList, null);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        wadoRsApi.retrieveFrames(projectId, studyUID, seriesUID, instanceUID, frameList, null, response);
 
         // Assert
-        assertEquals("Should return 200 OK for non-sequential frames",
-                HttpStatus.OK, response.getStatusCode());
+        assertEquals("Should return 200 OK for non-sequential frames", 200, response.getStatus());
         assertEquals("Should return 3 frames", 3, mockFrames.size());
     }
+
+    @Test
+    public void testRetrieveSeriesThumbnail_ReturnsJpeg() {
+        // Arrange
+        String projectId = "TestProject";
+        String studyUID = "1.2.3.4.5";
+        String seriesUID = "1.2.3.4.5.100";
+        byte[] jpeg = new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+
+        when(mockDicomService.retrieveSeriesThumbnail(any(UserI.class), eq(projectId), eq(studyUID), eq(seriesUID)))
+            .thenReturn(jpeg);
+
+        // Act
+        ResponseEntity<byte[]> response = wadoRsApi.retrieveSeriesThumbnail(projectId, studyUID, seriesUID);
+
+        // Assert
+        assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
+        assertEquals("Should return JPEG", "image/jpeg", response.getHeaders().getContentType().toString());
+        assertArrayEquals("Should return thumbnail bytes", jpeg, response.getBody());
+    }
+
+    @Test
+    public void testRetrieveStudyThumbnail_NotFound() {
+        // Arrange
+        when(mockDicomService.retrieveStudyThumbnail(any(UserI.class), eq("TestProject"), eq("1.2.3.4.5")))
+            .thenReturn(null);
+
+        // Act
+        ResponseEntity<byte[]> response = wadoRsApi.retrieveStudyThumbnail("TestProject", "1.2.3.4.5");
+
+        // Assert
+        assertEquals("Should return 404 when no thumbnail can be rendered",
+                HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    public void testRetrieveRenderedFrames_MultipleFrames_ReturnsMultipartJpeg() {
+        // Arrange
+        String projectId = "TestProject";
+        String studyUID = "1.2.3.4.5";
+        String seriesUID = "1.2.3.4.5.100";
+        String instanceUID = "1.2.3.4.5.6.1";
+
+        List<byte[]> mockFrames = new ArrayList<>();
+        mockFrames.add(new byte[]{(byte) 0xFF, (byte) 0xD8, 1});
+        mockFrames.add(new byte[]{(byte) 0xFF, (byte) 0xD8, 2});
+
+        when(mockDicomService.retrieveRenderedFrames(any(UserI.class), eq(projectId), eq(studyUID),
+                eq(seriesUID), eq(instanceUID), eq("1,2"), any()))
+            .thenReturn(mockFrames);
+
+        // Act
+        ResponseEntity<byte[]> response = wadoRsApi.retrieveRenderedFrames(projectId, studyUID, seriesUID,
+                instanceUID, "1,2", "64,64", null, null);
+
+        // Assert
+        assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
+        String contentType = response.getHeaders().getContentType().toString();
+        assertTrue("Should be multipart/related", contentType.startsWith("multipart/related"));
+        assertTrue("Parts should be JPEG", contentType.contains("image/jpeg"));
+    }
+
+    @Test
+    public void testRetrieveRenderedFrames_InvalidViewport() {
+        // Act
+        ResponseEntity<byte[]> response = wadoRsApi.retrieveRenderedFrames("TestProject", "1.2.3.4.5",
+                "1.2.3.4.5.100", "1.2.3.4.5.6.1", "1", "0,abc", null, null);
+
+        // Assert
+        assertEquals("Should return 400 for malformed viewport",
+                HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void testRetrieveInstance_RangeReturnsPartialContent() throws Exception {
+        File file = createInstanceFile(1000);
+        try {
+            InstanceFile instance = InstanceFile.of("1.2.3.4.5.6.1", file, "abc123");
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(instance);
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+            ResponseEntity<?> response = wadoRsApi.retrieveInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("Should return 206 Partial Content", HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+            assertEquals("bytes 100-199/1000", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+            assertEquals(100L, response.getHeaders().getContentLength());
+            assertEquals("Should carry the instance ETag", instance.getValidator().getETag(),
+                    response.getHeaders().getETag());
+            try (InputStream body = ((InputStreamResource) response.getBody()).getInputStream()) {
+                assertEquals("Range should start at byte 100", 100, body.read());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRetrieveInstance_StaleIfRangeReturnsWholeInstance() throws Exception {
+        File file = createInstanceFile(1000);
+        try {
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(InstanceFile.of("1.2.3.4.5.6.1", file, "abc123"));
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+            request.addHeader(HttpHeaders.IF_RANGE, "\"stale\"");
+            ResponseEntity<?> response = wadoRsApi.retrieveInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
+            assertEquals(1000L, response.getHeaders().getContentLength());
+            assertEquals("bytes", response.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRetrieveInstance_UnsatisfiableRange() throws Exception {
+        File file = createInstanceFile(1000);
+        try {
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(InstanceFile.of("1.2.3.4.5.6.1", file, null));
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.RANGE, "bytes=5000-");
+            ResponseEntity<?> response = wadoRsApi.retrieveInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("Should return 416", HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatusCode());
+            assertEquals("bytes */1000", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHeadInstance_ReturnsLengthWithoutBody() throws Exception {
+        File file = createInstanceFile(512);
+        try {
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(InstanceFile.of("1.2.3.4.5.6.1", file, "abc123"));
+
+            ResponseEntity<Void> response = wadoRsApi.headInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", new MockHttpServletRequest());
+
+            assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
+            assertEquals("Should report the file size", 512L, response.getHeaders().getContentLength());
+            assertNotNull("Should carry an ETag", response.getHeaders().getETag());
+            assertNull("HEAD should have no body", response.getBody());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHeadInstance_NotFound() {
+        ResponseEntity<Void> response = wadoRsApi.headInstance("TestProject", "1.2.3.4.5",
+                "1.2.3.4.5.100", "1.2.3.4.5.6.1", new MockHttpServletRequest());
+
+        assertEquals("Should return 404 Not Found", HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    public void testRetrieveSeries_DeclaresExactContentLength() throws Exception {
+        File first = createInstanceFile(300);
+        File second = createInstanceFile(700);
+        try {
+            List<InstanceFile> instances = new ArrayList<>();
+            instances.add(InstanceFile.of(first, null));
+            instances.add(InstanceFile.of(second, null));
+            when(mockDicomService.locateSeriesInstances(any(UserI.class), anyString(), anyString(), anyString()))
+                .thenReturn(instances);
+
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            ResponseEntity<InputStreamResource> result = resultOf(wadoRsApi.retrieveSeries("TestProject",
+                    "1.2.3.4.5", "1.2.3.4.5.100", new MockHttpServletRequest(), response));
+
+            assertNull("The body should already be written", result);
+            assertEquals("Should return 200 OK", 200, response.getStatus());
+            long streamed = response.getContentAsByteArray().length;
+            assertEquals("Content-Length should match the streamed body",
+                    response.getHeader(HttpHeaders.CONTENT_LENGTH), String.valueOf(streamed));
+            assertTrue("Body should include both files", streamed > 1000);
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void testRetrieveSeries_BodyIsWrittenOnBulkPool() throws Exception {
+        File file = createInstanceFile(500);
+        DicomWebExecutors executors = new DicomWebExecutors(1, 1, 4, 2, 0, 5);
+        try {
+            List<InstanceFile> instances = new ArrayList<>();
+            instances.add(InstanceFile.of(file, null));
+            when(mockDicomService.locateSeriesInstances(any(UserI.class), anyString(), anyString(), anyString()))
+                .thenReturn(instances);
+            List<String> writers = new CopyOnWriteArrayList<>();
+            MockHttpServletResponse response = new MockHttpServletResponse() {
+                @Override
+                public ServletOutputStream getOutputStream() {
+                    writers.add(Thread.currentThread().getName());
+                    return super.getOutputStream();
+                }
+            };
+
+            DeferredResult<ResponseEntity<InputStreamResource>> result = apiWith(executors).retrieveSeries(
+                    "TestProject", "1.2.3.4.5", "1.2.3.4.5.100", new MockHttpServletRequest(), response);
+
+            assertNull("The body should already be written", await(result));
+            assertFalse("The body should be written", writers.isEmpty());
+            for (String writer : writers) {
+                assertTrue("The body should be written on the bulk pool, not by " + writer,
+                        writer.startsWith("dicomweb-async-bulk"));
+            }
+            assertTrue("Body should include the file", response.getContentAsByteArray().length > 500);
+        } finally {
+            executors.destroy();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRetrieveInstance_AcceptedTransferSyntaxIsTranscoded() throws Exception {
+        File stored = createInstanceFile(1000);
+        File transcoded = createInstanceFile(1500);
+        try {
+            InstanceFile instance = InstanceFile.of("1.2.3.4.5.6.1", stored, "abc123");
+            InstanceFile converted = InstanceFile.transcoded(transcoded, instance, "1.2.840.10008.1.2.1");
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(instance);
+            when(mockDicomService.transcodeInstance(instance, "1.2.840.10008.1.2.1")).thenReturn(converted);
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.ACCEPT, "application/dicom; transfer-syntax=1.2.840.10008.1.2.1");
+            ResponseEntity<?> response = wadoRsApi.retrieveInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
+            assertEquals("Should send the transcoded file", 1500L, response.getHeaders().getContentLength());
+            assertEquals("1.2.840.10008.1.2.1",
+                    response.getHeaders().getContentType().getParameter("transfer-syntax"));
+            assertNotEquals("Transcoded content should have its own ETag",
+                    instance.getValidator().getETag(), response.getHeaders().getETag());
+        } finally {
+            stored.delete();
+            transcoded.delete();
+        }
+    }
+
+    @Test
+    public void testRetrieveInstance_RevalidationSkipsTranscoding() throws Exception {
+        File stored = createInstanceFile(1000);
+        try {
+            InstanceFile instance = InstanceFile.of("1.2.3.4.5.6.1", stored, "abc123");
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(instance);
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.ACCEPT, "application/dicom; transfer-syntax=1.2.840.10008.1.2.1");
+            request.addHeader(HttpHeaders.IF_NONE_MATCH,
+                    instance.getValidator().withVariant("1.2.840.10008.1.2.1").getETag());
+            ResponseEntity<?> response = wadoRsApi.retrieveInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("Should return 304 Not Modified", HttpStatus.NOT_MODIFIED, response.getStatusCode());
+            verify(mockDicomService, never()).transcodeInstance(any(InstanceFile.class), anyString());
+        } finally {
+            stored.delete();
+        }
+    }
+
+    @Test
+    public void testHeadInstance_TransferSyntaxDoesNotTranscode() throws Exception {
+        File stored = createInstanceFile(1000);
+        try {
+            InstanceFile instance = InstanceFile.of("1.2.3.4.5.6.1", stored, "abc123");
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(instance);
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.ACCEPT, "application/dicom; transfer-syntax=1.2.840.10008.1.2.1");
+            ResponseEntity<Void> response = wadoRsApi.headInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
+            assertEquals("Length is unknown until transcoded", -1L, response.getHeaders().getContentLength());
+            assertEquals(instance.getValidator().withVariant("1.2.840.10008.1.2.1").getETag(),
+                    response.getHeaders().getETag());
+            verify(mockDicomService, never()).transcodeInstance(any(InstanceFile.class), anyString());
+        } finally {
+            stored.delete();
+        }
+    }
+
+    @Test
+    public void testRetrieveInstance_UnsupportedTransferSyntax() throws Exception {
+        File stored = createInstanceFile(100);
+        try {
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(InstanceFile.of("1.2.3.4.5.6.1", stored, null));
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.ACCEPT, "application/dicom; transfer-syntax=1.2.3.999");
+            ResponseEntity<?> response = wadoRsApi.retrieveInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("Should return 406 Not Acceptable", HttpStatus.NOT_ACCEPTABLE, response.getStatusCode());
+        } finally {
+            stored.delete();
+        }
+    }
+
+    @Test
+    public void testRetrieveInstance_TranscodeReadFailureIsServerError() throws Exception {
+        File stored = createInstanceFile(100);
+        try {
+            InstanceFile instance = InstanceFile.of("1.2.3.4.5.6.1", stored, "abc123");
+            when(mockDicomService.locateInstance(any(UserI.class), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(instance);
+            when(mockDicomService.transcodeInstance(instance, "1.2.840.10008.1.2.1"))
+                .thenThrow(new IOException("disk read failed"));
+
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.addHeader(HttpHeaders.ACCEPT, "application/dicom; transfer-syntax=1.2.840.10008.1.2.1");
+            ResponseEntity<?> response = wadoRsApi.retrieveInstance("TestProject", "1.2.3.4.5",
+                    "1.2.3.4.5.100", "1.2.3.4.5.6.1", request);
+
+            assertEquals("I/O failures are not a content negotiation failure",
+                    HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
+        } finally {
+            stored.delete();
+        }
+    }
+
+    private WadoRsApi apiWith(DicomWebExecutors executors) {
+        return new WadoRsApi(mockDicomService, executors, mockUserManagementService, mockRoleHolder) {
+            @Override
+            protected UserI getSessionUser() {
+                return mockUser;
+            }
+        };
+    }
+
+    private static <T> ResponseEntity<T> await(DeferredResult<ResponseEntity<T>> deferred) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!deferred.hasResult() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return resultOf(deferred);
+    }
+
+    /**
+     * The response of a handler run on the direct executors
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> ResponseEntity<T> resultOf(DeferredResult<ResponseEntity<T>> deferred) {
+        assertTrue("Response should be set before the handler returns", deferred.hasResult());
+        return (ResponseEntity<T>) deferred.getResult();
+    }
+
+    private File createInstanceFile(int size) throws Exception {
+        File file = File.createTempFile("instance", ".dcm");
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) i;
+        }
+        Files.write(file.toPath(), content);
+        return file;
+    }
 }
@@ -0,0 +1,47 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ConditionalHeaders}
+ */
+public class ConditionalHeadersTest {
+
+    @Test
+    public void of_SnapshotsConditionalHeaders() {
+        ResourceValidator validator = ResourceValidator.of("v1", 10_500L);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, validator.getETag());
+
+        ConditionalHeaders conditions = ConditionalHeaders.of(request);
+        request.removeHeader(HttpHeaders.IF_NONE_MATCH);
+
+        assertFalse(conditions.isEmpty());
+        assertTrue("Headers should be kept after the request is recycled", conditions.isNotModified(validator));
+        assertFalse(conditions.isNotModified(ResourceValidator.of("v2", 10_500L)));
+    }
+
+    @Test
+    public void of_ReadsIfModifiedSince() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, 60_000L);
+
+        assertTrue(ConditionalHeaders.of(request).isNotModified(ResourceValidator.of("v1", 10_500L)));
+    }
+
+    @Test
+    public void of_RequestWithoutConditionsNeverMatches() {
+        ConditionalHeaders conditions = ConditionalHeaders.of(new MockHttpServletRequest());
+
+        assertSame(ConditionalHeaders.NONE, conditions);
+        assertTrue(conditions.isEmpty());
+        assertFalse(conditions.isNotModified(ResourceValidator.of("v1", 10_500L)));
+        assertFalse("A missing validator never matches", ConditionalHeaders.of(null).isNotModified(null));
+    }
+}
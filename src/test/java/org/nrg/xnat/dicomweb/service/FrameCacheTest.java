@@ -0,0 +1,95 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link FrameCache}
+ */
+public class FrameCacheTest {
+
+    private static final String SCOPE = "ProjectA/1.2.3/1.2.3.4";
+    private static final String TS = "1.2.840.10008.1.2.1";
+
+    @Test
+    public void get_ReturnsCopyOfMultiPageFrame() {
+        FrameCache cache = new FrameCache(16L * FrameCache.PAGE_SIZE);
+        byte[] frame = frame(FrameCache.PAGE_SIZE * 2 + 100, 7);
+
+        cache.put(key("1.2.3.4.5", 0), frame);
+        byte[] cached = cache.get(key("1.2.3.4.5", 0));
+
+        assertArrayEquals("Cached frame should match the original bytes", frame, cached);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void get_MissForOtherFrameScopeOrSyntax() {
+        FrameCache cache = new FrameCache(16L * FrameCache.PAGE_SIZE);
+        cache.put(key("1.2.3.4.5", 0), frame(10, 1));
+
+        assertNull("Different frame should miss", cache.get(key("1.2.3.4.5", 1)));
+        assertNull("Different scope should miss",
+                cache.get(new FrameCache.Key("ProjectB/1.2.3/1.2.3.4", "1.2.3.4.5", 0, TS)));
+        assertNull("Different transfer syntax should miss",
+                cache.get(new FrameCache.Key(SCOPE, "1.2.3.4.5", 0, "1.2.840.10008.1.2.4.50")));
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void put_EvictsLeastRecentlyUsedWhenFull() {
+        // Eight pages in total, each frame takes two
+        FrameCache cache = new FrameCache(8L * FrameCache.PAGE_SIZE);
+        for (int i = 0; i < 4; i++) {
+            cache.put(key("sop", i), frame(FrameCache.PAGE_SIZE + 1, i));
+        }
+        assertNotNull("Touch frame 0 so frame 1 becomes eldest", cache.get(key("sop", 0)));
+
+        cache.put(key("sop", 4), frame(FrameCache.PAGE_SIZE + 1, 4));
+
+        assertNull("Least recently used frame should be evicted", cache.get(key("sop", 1)));
+        assertNotNull(cache.get(key("sop", 0)));
+        assertNotNull(cache.get(key("sop", 4)));
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void put_ReusesPagesOfReplacedEntries() {
+        FrameCache cache = new FrameCache(8L * FrameCache.PAGE_SIZE);
+        for (int i = 0; i < 100; i++) {
+            cache.put(key("sop", i % 3), frame(FrameCache.PAGE_SIZE, i));
+        }
+
+        assertEquals(3, cache.size());
+        assertEquals("Latest value should win", (byte) 99, cache.get(key("sop", 0))[0]);
+    }
+
+    @Test
+    public void put_SkipsOversizedFramesAndDisabledCache() {
+        FrameCache cache = new FrameCache(8L * FrameCache.PAGE_SIZE);
+        cache.put(key("sop", 0), frame(FrameCache.PAGE_SIZE * 3, 1));
+        assertNull("Frames over a quarter of the cache are not stored", cache.get(key("sop", 0)));
+
+        FrameCache disabled = new FrameCache(0);
+        assertFalse(disabled.isEnabled());
+        disabled.put(key("sop", 0), frame(10, 1));
+        assertNull(disabled.get(key("sop", 0)));
+    }
+
+    private FrameCache.Key key(String sopInstanceUID, int frameIndex) {
+        return new FrameCache.Key(SCOPE, sopInstanceUID, frameIndex, TS);
+    }
+
+    private byte[] frame(int length, int seed) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = (byte) (seed + i);
+        }
+        return frame;
+    }
+}
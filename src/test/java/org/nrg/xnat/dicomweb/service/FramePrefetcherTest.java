@@ -0,0 +1,114 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FramePrefetcher}
+ */
+public class FramePrefetcherTest {
+
+    private static final String INSTANCE = "ProjectA/1.2.3/1.2.3.4/1.2.3.4.5";
+
+    private FramePrefetcher prefetcher;
+    private Set<Integer> framesRead;
+
+    @Before
+    public void setUp() {
+        prefetcher = new FramePrefetcher(3, 4, 1);
+        framesRead = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    }
+
+    @After
+    public void tearDown() {
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void recordAccess_ReadsAheadForward() throws Exception {
+        prefetcher.register(INSTANCE, 10, this::openReader);
+
+        prefetcher.recordAccess(INSTANCE, 2);
+
+        assertNotNull("Next frame should be prefetched", awaitFrame(3));
+        assertNotNull(awaitFrame(4));
+        assertNotNull(awaitFrame(5));
+        assertFalse("Frames beyond the prefetch depth should not be read", framesRead.contains(6));
+        assertNull("Taken frames are removed from the buffer", prefetcher.take(INSTANCE, 3));
+    }
+
+    @Test
+    public void recordAccess_FollowsReverseDirection() throws Exception {
+        prefetcher.register(INSTANCE, 10, this::openReader);
+
+        prefetcher.recordAccess(INSTANCE, 8);
+        awaitFrame(9);
+        prefetcher.recordAccess(INSTANCE, 7);
+
+        assertNotNull("Previous frame should be prefetched when scrolling back", awaitFrame(6));
+        assertNotNull(awaitFrame(4));
+        assertTrue(framesRead.contains(5));
+    }
+
+    @Test
+    public void recordAccess_StopsAtLastFrame() throws Exception {
+        prefetcher.register(INSTANCE, 4, this::openReader);
+
+        prefetcher.recordAccess(INSTANCE, 2);
+
+        assertNotNull(awaitFrame(3));
+        Thread.sleep(50);
+        assertEquals("Only frames inside the instance should be read", 1, framesRead.size());
+    }
+
+    @Test
+    public void disabledPrefetcherIgnoresInstances() {
+        FramePrefetcher disabled = new FramePrefetcher(0, 4, 1);
+        try {
+            assertFalse(disabled.isEnabled());
+            disabled.register(INSTANCE, 10, this::openReader);
+            disabled.recordAccess(INSTANCE, 0);
+            assertNull(disabled.take(INSTANCE, 1));
+            assertTrue(framesRead.isEmpty());
+        } finally {
+            disabled.shutdown();
+        }
+    }
+
+    private ParallelFrameDecoder.FrameReader openReader() {
+        return new ParallelFrameDecoder.FrameReader() {
+            @Override
+            public byte[] readFrame(int frameIndex) {
+                framesRead.add(frameIndex);
+                return new byte[]{(byte) frameIndex};
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private byte[] awaitFrame(int frameIndex) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            byte[] frame = prefetcher.take(INSTANCE, frameIndex);
+            if (frame != null) {
+                return frame;
+            }
+            Thread.sleep(5);
+        }
+        return null;
+    }
+}
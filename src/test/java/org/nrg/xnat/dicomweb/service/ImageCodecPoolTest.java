@@ -0,0 +1,113 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ImageCodecPool.Pool}
+ */
+public class ImageCodecPoolTest {
+
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final List<StringBuilder> reset = new CopyOnWriteArrayList<>();
+    private final List<StringBuilder> disposed = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void borrow_ReusesReleasedObjects() throws Exception {
+        ImageCodecPool.Pool<StringBuilder> pool = newPool(2);
+
+        StringBuilder first = pool.borrow();
+        pool.release(first, true);
+        StringBuilder second = pool.borrow();
+
+        assertSame("Released object should be reused", first, second);
+        assertTrue(pool.summary(), pool.summary().contains(" 1 created,"));
+        assertEquals("Object should be reset before reuse", 1, reset.size());
+    }
+
+    @Test
+    public void release_DisposesObjectsThatFailed() throws Exception {
+        ImageCodecPool.Pool<StringBuilder> pool = newPool(2);
+
+        StringBuilder broken = pool.borrow();
+        pool.release(broken, false);
+
+        assertTrue(disposed.contains(broken));
+        assertNotSame("Failed object should not be reused", broken, pool.borrow());
+    }
+
+    @Test
+    public void borrow_WaitsWhenPoolIsExhausted() throws Exception {
+        ImageCodecPool.Pool<StringBuilder> pool = newPool(1);
+        StringBuilder held = pool.borrow();
+
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<StringBuilder> borrowed = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            started.countDown();
+            try {
+                borrowed.set(pool.borrow());
+            } catch (Exception e) {
+                // left null
+            }
+        });
+        waiter.start();
+        started.await(1, TimeUnit.SECONDS);
+        Thread.sleep(50);
+
+        assertNull("Borrow should block while the only object is in use", borrowed.get());
+
+        pool.release(held, true);
+        waiter.join(2000);
+
+        assertSame(held, borrowed.get());
+        String summary = pool.summary();
+        assertTrue("Wait should be recorded: " + summary, summary.contains(" 1 waits ("));
+        assertFalse("Wait time should be recorded: " + summary, summary.contains("(0 ms total"));
+        assertTrue("Pool should never exceed its size: " + summary, summary.contains(" 1 created,"));
+    }
+
+    @Test
+    public void clear_DisposesIdleObjects() throws Exception {
+        ImageCodecPool.Pool<StringBuilder> pool = newPool(2);
+        StringBuilder first = pool.borrow();
+        StringBuilder second = pool.borrow();
+        pool.release(first, true);
+        pool.release(second, true);
+
+        pool.clear();
+
+        assertTrue(pool.summary(), pool.summary().contains(" 0 idle,"));
+        assertEquals(2, disposed.size());
+    }
+
+    @Test
+    public void summary_ReportsUseAndWaits() throws Exception {
+        ImageCodecPool.Pool<StringBuilder> pool = newPool(2);
+        StringBuilder first = pool.borrow();
+        pool.release(first, true);
+        pool.release(pool.borrow(), true);
+
+        assertEquals("test pool: 2 borrows, 1 created, 1 idle, 0 waits (0 ms total, 0 ms max)", pool.summary());
+    }
+
+    private ImageCodecPool.Pool<StringBuilder> newPool(int size) {
+        return new ImageCodecPool.Pool<>("test", size, 0,
+                () -> new StringBuilder("codec-" + sequence.incrementAndGet()),
+                reset::add,
+                disposed::add);
+    }
+}
@@ -0,0 +1,72 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link IncludeFields}
+ */
+public class IncludeFieldsTest {
+
+    @Test
+    public void parse_KeywordsAndTags() {
+        IncludeFields fields = IncludeFields.parse("NumberOfStudyRelatedInstances, 00201206,NotAKeyword");
+
+        assertTrue(fields.includes(Tag.NumberOfStudyRelatedInstances));
+        assertTrue("Hex tags should resolve", fields.includes(Tag.NumberOfStudyRelatedSeries));
+        assertFalse(fields.includes(Tag.NumberOfSeriesRelatedInstances));
+        assertFalse(fields.isAll());
+    }
+
+    @Test
+    public void parse_AllIncludesEverything() {
+        IncludeFields fields = IncludeFields.parse("PatientAge,all");
+
+        assertTrue(fields.isAll());
+        assertTrue(fields.includes(Tag.NumberOfStudyRelatedInstances));
+    }
+
+    @Test
+    public void parse_EmptyIsDefault() {
+        assertSame(IncludeFields.DEFAULT, IncludeFields.parse(null));
+        assertSame(IncludeFields.DEFAULT, IncludeFields.parse(" "));
+        assertFalse("Derived fields are not built by default",
+                IncludeFields.DEFAULT.includes(Tag.NumberOfStudyRelatedInstances));
+    }
+
+    @Test
+    public void stopTag_ReadsOnlyAsFarAsNeeded() {
+        int[] defaults = {Tag.SOPInstanceUID, Tag.InstanceNumber};
+
+        assertEquals(Tag.InstanceNumber + 1, IncludeFields.DEFAULT.stopTag(defaults, null));
+        assertEquals(Tag.Rows + 1, IncludeFields.parse("Rows").stopTag(defaults, null));
+        assertEquals("Pixel data is never read", Tag.PixelData,
+                IncludeFields.parse("7FE00010").stopTag(defaults, null));
+        assertEquals(Tag.PixelData, IncludeFields.ALL.stopTag(defaults, null));
+    }
+
+    @Test
+    public void select_KeepsDefaultsMatchingKeysAndIncludedFields() {
+        Attributes header = new Attributes();
+        header.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3");
+        header.setString(Tag.PatientName, VR.PN, "SUBJ01");
+        header.setString(Tag.BodyPartExamined, VR.CS, "HEAD");
+        header.setString(Tag.ProtocolName, VR.LO, "T1");
+        Attributes query = new Attributes();
+        query.setString(Tag.BodyPartExamined, VR.CS, "HEAD");
+
+        Attributes selected = IncludeFields.parse("ProtocolName")
+                .select(header, new int[]{Tag.SOPInstanceUID}, query);
+
+        assertEquals(3, selected.size());
+        assertFalse("Unrequested attributes should be dropped", selected.contains(Tag.PatientName));
+        assertSame(header, IncludeFields.ALL.select(header, new int[]{Tag.SOPInstanceUID}, query));
+    }
+}
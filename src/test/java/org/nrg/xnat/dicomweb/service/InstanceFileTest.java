@@ -0,0 +1,53 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Tests for {@link InstanceFile}
+ */
+public class InstanceFileTest {
+
+    @Test
+    public void of_DigestDecidesETag() throws Exception {
+        File file = File.createTempFile("instance", ".dcm");
+        try {
+            Files.write(file.toPath(), new byte[128]);
+
+            InstanceFile first = InstanceFile.of("1.2.3", file, "0123abcd");
+            InstanceFile second = InstanceFile.of("9.9.9", file, "0123abcd");
+
+            assertEquals("Size should come from the file", 128L, first.getLength());
+            assertFalse("Instance ETags should be strong", first.getValidator().isWeak());
+            assertEquals("Same digest should give the same ETag",
+                    first.getValidator().getETag(), second.getValidator().getETag());
+            assertNotEquals("Other digest should change the ETag",
+                    first.getValidator().getETag(), InstanceFile.of("1.2.3", file, "ffff").getValidator().getETag());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void of_WithoutDigestUsesUidAndFile() throws Exception {
+        File file = File.createTempFile("instance", ".dcm");
+        try {
+            Files.write(file.toPath(), new byte[16]);
+
+            assertNotEquals("Different instances should have different ETags",
+                    InstanceFile.of("1.2.3", file, null).getValidator().getETag(),
+                    InstanceFile.of("1.2.4", file, null).getValidator().getETag());
+            assertEquals("Empty digest should be ignored",
+                    InstanceFile.of("1.2.3", file, null).getValidator().getETag(),
+                    InstanceFile.of("1.2.3", file, "").getValidator().getETag());
+        } finally {
+            file.delete();
+        }
+    }
+}
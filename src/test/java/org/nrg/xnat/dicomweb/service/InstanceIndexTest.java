@@ -0,0 +1,95 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link InstanceIndex}
+ */
+public class InstanceIndexTest {
+
+    @Test
+    public void find_BuildsSeriesOnce() throws Exception {
+        InstanceIndex index = new InstanceIndex(4);
+        AtomicInteger builds = new AtomicInteger();
+        InstanceIndex.Builder builder = () -> {
+            builds.incrementAndGet();
+            return series("1.1", "1.2");
+        };
+
+        assertNotNull(index.find("S1/1", "v1", "1.1", builder));
+        assertNotNull(index.find("S1/1", "v1", "1.2", builder));
+        assertNull("Unknown UIDs should not be found", index.find("S1/1", "v1", "9.9", builder));
+        assertEquals("The series should be read once", 1, builds.get());
+    }
+
+    @Test
+    public void find_RebuildsWhenFingerprintChanges() throws Exception {
+        InstanceIndex index = new InstanceIndex(4);
+        AtomicInteger builds = new AtomicInteger();
+
+        index.find("S1/1", "v1", "1.1", () -> {
+            builds.incrementAndGet();
+            return series("1.1");
+        });
+        InstanceIndex.Located added = index.find("S1/1", "v2", "1.2", () -> {
+            builds.incrementAndGet();
+            return series("1.1", "1.2");
+        });
+
+        assertNotNull("Changed series should be read again", added);
+        assertEquals(2, builds.get());
+        assertEquals("A series should keep one entry", 1, index.size());
+    }
+
+    @Test
+    public void find_DropsLeastRecentlyUsedSeries() throws Exception {
+        InstanceIndex index = new InstanceIndex(2);
+        AtomicInteger builds = new AtomicInteger();
+        InstanceIndex.Builder builder = () -> {
+            builds.incrementAndGet();
+            return series("1.1");
+        };
+
+        index.find("A", "v", "1.1", builder);
+        index.find("B", "v", "1.1", builder);
+        index.find("A", "v", "1.1", builder);
+        index.find("C", "v", "1.1", builder);
+        index.find("A", "v", "1.1", builder);
+
+        assertEquals("Recently used series should stay indexed", 3, builds.get());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void find_ZeroSizeKeepsNothing() throws Exception {
+        InstanceIndex index = new InstanceIndex(0);
+        AtomicInteger builds = new AtomicInteger();
+        InstanceIndex.Builder builder = () -> {
+            builds.incrementAndGet();
+            return series("1.1");
+        };
+
+        index.find("A", "v", "1.1", builder);
+        index.find("A", "v", "1.1", builder);
+
+        assertEquals(2, builds.get());
+        assertEquals(0, index.size());
+    }
+
+    private static Map<String, InstanceIndex.Located> series(String... uids) {
+        Map<String, InstanceIndex.Located> files = new HashMap<>();
+        for (String uid : uids) {
+            files.put(uid, new InstanceIndex.Located(new File(uid + ".dcm"), null));
+        }
+        return files;
+    }
+}
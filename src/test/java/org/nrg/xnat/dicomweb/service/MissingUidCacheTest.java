@@ -0,0 +1,95 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link MissingUidCache}
+ */
+public class MissingUidCacheTest {
+
+    @Test
+    public void isMissing_RemembersRecordedPath() {
+        MissingUidCache cache = new MissingUidCache(60000, 60000, 16, null);
+
+        cache.recordMissing("alice", "P1", "1.2.3", "1.2.3.4");
+
+        assertTrue(cache.isMissing("alice", "P1", "1.2.3", "1.2.3.4"));
+        assertFalse("The study itself was not recorded", cache.isMissing("alice", "P1", "1.2.3"));
+        assertFalse("Misses are per project", cache.isMissing("alice", "P2", "1.2.3", "1.2.3.4"));
+    }
+
+    @Test
+    public void isMissing_MissesArePerUser() {
+        MissingUidCache cache = new MissingUidCache(60000, 60000, 16, null);
+
+        cache.recordMissing("restricted", "P1", "1.2.3");
+
+        assertTrue(cache.isMissing("restricted", "P1", "1.2.3"));
+        assertFalse("A user who may see the study should look it up", cache.isMissing("alice", "P1", "1.2.3"));
+    }
+
+    @Test
+    public void isMissing_ChangedStampForgetsMiss() {
+        AtomicReference<String> stamp = new AtomicReference<>("1:1:a");
+        MissingUidCache cache = new MissingUidCache(60000, 0, 16, projectId -> stamp.get());
+
+        cache.recordMissing("alice", "P1", "1.2.3");
+        assertTrue("Unchanged project should keep the miss", cache.isMissing("alice", "P1", "1.2.3"));
+
+        stamp.set("2:3:b");
+        assertFalse("An archived session should be looked up again", cache.isMissing("alice", "P1", "1.2.3"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void isMissing_UnreadableStampForgetsMiss() {
+        MissingUidCache cache = new MissingUidCache(60000, 0, 16, projectId -> null);
+
+        cache.recordMissing("alice", "P1", "1.2.3");
+
+        assertFalse(cache.isMissing("alice", "P1", "1.2.3"));
+    }
+
+    @Test
+    public void isMissing_DisabledRecordsNothing() {
+        MissingUidCache cache = new MissingUidCache(0, 0, 16, null);
+
+        cache.recordMissing("alice", "P1", "1.2.3");
+
+        assertFalse(cache.isMissing("alice", "P1", "1.2.3"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void recordMissing_EvictsOldestBeyondBound() throws Exception {
+        MissingUidCache cache = new MissingUidCache(60000, 60000, 2, null);
+
+        cache.recordMissing("alice", "P1", "1");
+        Thread.sleep(5);
+        cache.recordMissing("alice", "P1", "2");
+        Thread.sleep(5);
+        cache.recordMissing("alice", "P1", "3");
+
+        assertEquals(2, cache.size());
+        assertFalse("Oldest miss should be evicted", cache.isMissing("alice", "P1", "1"));
+        assertTrue(cache.isMissing("alice", "P1", "3"));
+    }
+
+    @Test
+    public void invalidate_DropsProjectMisses() {
+        MissingUidCache cache = new MissingUidCache(60000, 60000, 16, null);
+        cache.recordMissing("alice", "P1", "1");
+        cache.recordMissing("alice", "P2", "1");
+
+        cache.invalidate("P1");
+
+        assertFalse(cache.isMissing("alice", "P1", "1"));
+        assertTrue(cache.isMissing("alice", "P2", "1"));
+    }
+}
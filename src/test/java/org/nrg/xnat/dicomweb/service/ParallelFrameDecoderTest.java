@@ -0,0 +1,303 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ParallelFrameDecoder}
+ */
+public class ParallelFrameDecoderTest {
+
+    private ParallelFrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new ParallelFrameDecoder(4);
+    }
+
+    @After
+    public void tearDown() {
+        decoder.shutdown();
+    }
+
+    @Test
+    public void decode_DeliversFramesInRequestOrder() throws Exception {
+        // Earlier frames take longer, so workers finish out of order
+        List<Integer> frameIndexes = Arrays.asList(7, 3, 5, 0, 9, 1);
+        List<Integer> delivered = new ArrayList<>();
+
+        decoder.decode(() -> new FakeFrameReader(null), frameIndexes,
+                (position, frame) -> delivered.add((int) frame[0]));
+
+        assertEquals("Frames should be delivered in request order", frameIndexes, delivered);
+    }
+
+    @Test
+    public void decode_OpensOneReaderPerWorker() throws Exception {
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        List<Integer> frameIndexes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            frameIndexes.add(i);
+        }
+
+        decoder.decode(() -> {
+            opened.incrementAndGet();
+            return new FakeFrameReader(closed);
+        }, frameIndexes, (position, frame) -> { });
+
+        assertTrue("Should open at most one reader per worker", opened.get() <= 4);
+
+        // Workers close their reader just after handing over their last frame
+        long deadline = System.currentTimeMillis() + 1000;
+        while (closed.get() < opened.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("Every reader should be closed", opened.get(), closed.get());
+    }
+
+    @Test
+    public void decode_FailedFrameIsReportedAsNull() throws Exception {
+        List<byte[]> delivered = new ArrayList<>();
+
+        decoder.decode(() -> new FakeFrameReader(null) {
+            @Override
+            public byte[] readFrame(int frameIndex) throws IOException {
+                if (frameIndex == 2) {
+                    throw new IOException("corrupt frame");
+                }
+                return super.readFrame(frameIndex);
+            }
+        }, Arrays.asList(1, 2, 3), (position, frame) -> delivered.add(frame));
+
+        assertEquals("Should deliver one result per requested frame", 3, delivered.size());
+        assertNull("Failed frame should be null", delivered.get(1));
+        assertEquals("Frames after a failure should still be delivered", 3, delivered.get(2)[0]);
+    }
+
+    @Test
+    public void decode_ReaderThatCannotOpenFailsItsFrames() throws Exception {
+        List<byte[]> delivered = new ArrayList<>();
+
+        decoder.decode(() -> {
+            throw new IOException("unreadable file");
+        }, Arrays.asList(0, 1), (position, frame) -> delivered.add(frame));
+
+        assertEquals("Should deliver one result per requested frame", 2, delivered.size());
+        assertNull(delivered.get(0));
+        assertNull(delivered.get(1));
+    }
+
+    @Test
+    public void decode_SinkFailureStopsWorkers() throws Exception {
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        AtomicInteger read = new AtomicInteger();
+        List<Integer> frameIndexes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            frameIndexes.add(10);
+        }
+
+        try {
+            decoder.decode(() -> {
+                opened.incrementAndGet();
+                return new FakeFrameReader(closed) {
+                    @Override
+                    public byte[] readFrame(int frameIndex) throws IOException {
+                        read.incrementAndGet();
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return super.readFrame(frameIndex);
+                    }
+                };
+            }, frameIndexes, (position, frame) -> {
+                throw new IOException("client disconnected");
+            });
+            fail("Expected the sink failure to be rethrown");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (closed.get() < opened.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("Every reader should be returned", opened.get(), closed.get());
+        assertTrue("Workers should stop decoding once the sink fails, but read " + read.get(),
+                read.get() < frameIndexes.size() / 2);
+    }
+
+    @Test
+    public void decode_SlowCallerDoesNotHoldUpSharedDecode() throws Exception {
+        AtomicInteger opened = new AtomicInteger();
+        List<Integer> frameIndexes = Arrays.asList(0, 1, 2, 3, 4, 5);
+        CountDownLatch leaderBlocked = new CountDownLatch(1);
+        CountDownLatch releaseLeader = new CountDownLatch(1);
+        CountDownLatch startReads = new CountDownLatch(1);
+        ParallelFrameDecoder.FrameReaderFactory readers = () -> {
+            opened.incrementAndGet();
+            return new FakeFrameReader(null) {
+                @Override
+                public byte[] readFrame(int frameIndex) throws IOException {
+                    try {
+                        // Hold the decode in flight until the follower has joined it
+                        startReads.await(2, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return super.readFrame(frameIndex);
+                }
+            };
+        };
+
+        List<Integer> leaderFrames = new CopyOnWriteArrayList<>();
+        AtomicReference<Exception> leaderFailure = new AtomicReference<>();
+        Thread leader = new Thread(() -> {
+            try {
+                decoder.decode("instance|frames", readers, frameIndexes, 2, (position, frame) -> {
+                    leaderBlocked.countDown();
+                    try {
+                        // A stalled client: the first write does not return until released
+                        releaseLeader.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    leaderFrames.add((int) frame[0]);
+                });
+            } catch (Exception e) {
+                leaderFailure.set(e);
+            }
+        });
+        leader.start();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (decoder.getCoalesced() == 0 && opened.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        List<Integer> followerFrames = new CopyOnWriteArrayList<>();
+        Thread follower = new Thread(() -> {
+            try {
+                decoder.decode("instance|frames", readers, frameIndexes, 2,
+                        (position, frame) -> followerFrames.add((int) frame[0]));
+            } catch (Exception e) {
+                // left incomplete
+            }
+        });
+        follower.start();
+        deadline = System.currentTimeMillis() + 2000;
+        while (decoder.getCoalesced() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        startReads.countDown();
+
+        assertTrue(leaderBlocked.await(2, TimeUnit.SECONDS));
+        follower.join(2000);
+        assertEquals("Follower should receive every frame while the leader's client is stalled",
+                frameIndexes, followerFrames);
+        assertEquals("The decode should be shared", 1, decoder.getCoalesced());
+        assertEquals("Only one decode should open readers", 2, opened.get());
+
+        releaseLeader.countDown();
+        leader.join(2000);
+        assertNull(leaderFailure.get());
+        assertEquals(frameIndexes, leaderFrames);
+    }
+
+    @Test
+    public void decode_SharedDecodeOutlivesOneFailingCaller() throws Exception {
+        List<Integer> frameIndexes = Arrays.asList(0, 1, 2, 3);
+        CountDownLatch startReads = new CountDownLatch(1);
+        ParallelFrameDecoder.FrameReaderFactory readers = () -> new FakeFrameReader(null) {
+            @Override
+            public byte[] readFrame(int frameIndex) throws IOException {
+                try {
+                    startReads.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.readFrame(frameIndex);
+            }
+        };
+
+        Thread disconnecting = new Thread(() -> {
+            try {
+                decoder.decode("instance|frames", readers, frameIndexes, 1, (position, frame) -> {
+                    throw new IOException("client disconnected");
+                });
+            } catch (IOException expected) {
+                // expected
+            }
+        });
+        disconnecting.start();
+        List<byte[]> delivered = new CopyOnWriteArrayList<>();
+        Thread staying = new Thread(() -> {
+            try {
+                decoder.decode("instance|frames", readers, frameIndexes, 1,
+                        (position, frame) -> delivered.add(frame));
+            } catch (IOException e) {
+                // left incomplete
+            }
+        });
+        long deadline = System.currentTimeMillis() + 2000;
+        staying.start();
+        while (decoder.getCoalesced() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        startReads.countDown();
+        disconnecting.join(2000);
+        staying.join(2000);
+
+        assertEquals(4, delivered.size());
+        for (int i = 0; i < delivered.size(); i++) {
+            assertEquals("Frames should not be abandoned while a caller still takes them", i, delivered.get(i)[0]);
+        }
+    }
+
+    /**
+     * Returns a one-byte frame holding the frame index; lower indexes decode more slowly
+     */
+    private static class FakeFrameReader implements ParallelFrameDecoder.FrameReader {
+
+        private final AtomicInteger closed;
+
+        FakeFrameReader(AtomicInteger closed) {
+            this.closed = closed;
+        }
+
+        @Override
+        public byte[] readFrame(int frameIndex) throws IOException {
+            try {
+                Thread.sleep(Math.max(0, 10 - frameIndex) * 5L);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new byte[]{(byte) frameIndex};
+        }
+
+        @Override
+        public void close() {
+            if (closed != null) {
+                closed.incrementAndGet();
+            }
+        }
+    }
+}
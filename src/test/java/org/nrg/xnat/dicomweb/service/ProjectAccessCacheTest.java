@@ -0,0 +1,106 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ProjectAccessCache}
+ */
+public class ProjectAccessCacheTest {
+
+    @Test
+    public void canRead_ReusesDecisionsPerUserAndProject() throws Exception {
+        ProjectAccessCache cache = new ProjectAccessCache(60000, 16);
+        AtomicInteger checks = new AtomicInteger();
+
+        assertTrue(cache.canRead("alice", "P1", () -> checks.incrementAndGet() > 0));
+        assertTrue(cache.canRead("alice", "P1", () -> checks.incrementAndGet() < 0));
+        assertFalse("Other users are checked separately", cache.canRead("bob", "P1", () -> {
+            checks.incrementAndGet();
+            return false;
+        }));
+        assertFalse("Refusals are kept too", cache.canRead("bob", "P1", () -> checks.incrementAndGet() > 0));
+
+        assertEquals(2, checks.get());
+    }
+
+    @Test
+    public void canRead_FailedCheckIsNotKept() throws Exception {
+        ProjectAccessCache cache = new ProjectAccessCache(60000, 16);
+
+        try {
+            cache.canRead("alice", "P1", () -> {
+                throw new IOException("database unavailable");
+            });
+            fail("Failure should reach the caller");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        assertTrue(cache.canRead("alice", "P1", () -> true));
+    }
+
+    @Test
+    public void canRead_UsesRecentProjectListing() throws Exception {
+        ProjectAccessCache cache = new ProjectAccessCache(60000, 16);
+        List<String> listed = cache.readableProjects("alice", () -> Arrays.asList("P1", "P2"));
+        AtomicInteger checks = new AtomicInteger();
+
+        assertEquals(Arrays.asList("P1", "P2"), listed);
+        assertTrue(cache.canRead("alice", "P2", () -> checks.incrementAndGet() < 0));
+        assertEquals("Listed projects need no check", 0, checks.get());
+        assertEquals(Arrays.asList("P1", "P2"), cache.readableProjects("alice", () -> {
+            throw new IllegalStateException("listing should be reused");
+        }));
+    }
+
+    @Test
+    public void invalidateUser_ForgetsDecisions() throws Exception {
+        ProjectAccessCache cache = new ProjectAccessCache(60000, 16);
+        cache.canRead("alice", "P1", () -> true);
+        cache.canRead("bob", "P1", () -> true);
+
+        cache.invalidateUser("alice");
+
+        assertFalse("A role change should apply at once", cache.canRead("alice", "P1", () -> false));
+        assertTrue(cache.canRead("bob", "P1", () -> false));
+    }
+
+    @Test
+    public void invalidateProject_ForgetsDecisionsAndListings() throws Exception {
+        ProjectAccessCache cache = new ProjectAccessCache(60000, 16);
+        cache.canRead("alice", "P1", () -> true);
+        cache.canRead("alice", "P2", () -> true);
+        cache.readableProjects("bob", () -> Arrays.asList("P1", "P2"));
+
+        cache.invalidateProject("P1");
+
+        assertFalse("A project access change should apply at once", cache.canRead("alice", "P1", () -> false));
+        assertTrue(cache.canRead("alice", "P2", () -> false));
+        assertEquals("Listings may include the project", Arrays.asList("P2"),
+                cache.readableProjects("bob", () -> Arrays.asList("P2")));
+    }
+
+    @Test
+    public void canRead_DisabledOrAnonymousAlwaysChecks() throws Exception {
+        AtomicInteger checks = new AtomicInteger();
+
+        new ProjectAccessCache(0, 16).canRead("alice", "P1", () -> checks.incrementAndGet() > 0);
+        new ProjectAccessCache(0, 16).canRead("alice", "P1", () -> checks.incrementAndGet() > 0);
+        ProjectAccessCache cache = new ProjectAccessCache(60000, 16);
+        cache.canRead(null, "P1", () -> checks.incrementAndGet() > 0);
+        cache.canRead(null, "P1", () -> checks.incrementAndGet() > 0);
+
+        assertEquals(4, checks.get());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,62 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.nrg.xft.event.XftItemEventI;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ProjectAccessEventHandler}
+ */
+public class ProjectAccessEventHandlerTest {
+
+    @Mock
+    private XnatDicomService dicomService;
+
+    private ProjectAccessEventHandler handler;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        handler = new ProjectAccessEventHandler(dicomService);
+    }
+
+    @Test
+    public void userEvent_DropsThatUsersDecisions() {
+        assertTrue(handler.handleEventImpl(event(ProjectAccessEventHandler.USER, "alice")));
+
+        verify(dicomService).invalidateProjectAccess("alice");
+        verify(dicomService, never()).invalidateProjectAccessTo(anyString());
+    }
+
+    @Test
+    public void groupEvent_DropsEveryonesDecisions() {
+        handler.handleEventImpl(event(ProjectAccessEventHandler.USER_GROUP, "P1_member"));
+
+        verify(dicomService).invalidateProjectAccess(null);
+    }
+
+    @Test
+    public void projectEvent_DropsDecisionsAboutTheProject() {
+        handler.handleEventImpl(event(ProjectAccessEventHandler.PROJECT, "P1"));
+
+        verify(dicomService).invalidateProjectAccessTo("P1");
+        verify(dicomService, never()).invalidateProjectAccess(anyString());
+    }
+
+    private static XftItemEventI event(String xsiType, String id) {
+        XftItemEventI event = mock(XftItemEventI.class);
+        when(event.getXsiType()).thenReturn(xsiType);
+        when(event.getId()).thenReturn(id);
+        when(event.getAction()).thenReturn(XftItemEventI.UPDATE);
+        return event;
+    }
+}
@@ -0,0 +1,73 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ProjectFanOut}
+ */
+public class ProjectFanOutTest {
+
+    private final ProjectFanOut fanOut = new ProjectFanOut(3);
+
+    @After
+    public void tearDown() {
+        fanOut.shutdown();
+    }
+
+    @Test
+    public void searchAll_ReturnsResultsInProjectOrder() {
+        List<String> results = fanOut.searchAll(Arrays.asList("P1", "P2", "P3", "P4"), projectId -> {
+            // Later projects finish first
+            Thread.sleep(projectId.equals("P1") ? 50 : 0);
+            return projectId.toLowerCase();
+        });
+
+        assertEquals(Arrays.asList("p1", "p2", "p3", "p4"), results);
+    }
+
+    @Test
+    public void searchAll_SkipsFailedProjects() {
+        List<String> results = fanOut.searchAll(Arrays.asList("P1", "BROKEN", "P3"), projectId -> {
+            if (projectId.equals("BROKEN")) {
+                throw new IllegalStateException("Archive unavailable");
+            }
+            return projectId;
+        });
+
+        assertEquals("A failing project should not fail the search", Arrays.asList("P1", "P3"), results);
+    }
+
+    @Test
+    public void searchAll_NoProjects() {
+        assertTrue(fanOut.searchAll(Collections.<String>emptyList(), projectId -> projectId).isEmpty());
+    }
+
+    @Test
+    public void mergeUnique_DropsSharedStudies() {
+        List<Attributes> sink = new ArrayList<>();
+        int duplicates = ProjectFanOut.mergeUnique(Arrays.asList(
+                Arrays.asList(study("1.1"), study("1.2")),
+                Arrays.asList(study("1.2"), study("1.3"))), Tag.StudyInstanceUID, sink);
+
+        assertEquals(1, duplicates);
+        assertEquals(3, sink.size());
+    }
+
+    private Attributes study(String uid) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, uid);
+        return attrs;
+    }
+}
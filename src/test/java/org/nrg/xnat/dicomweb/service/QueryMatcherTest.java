@@ -0,0 +1,123 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link QueryMatcher}
+ */
+public class QueryMatcherTest {
+
+    @Test
+    public void wildcardMatcher_MatchesStarAndQuestionMark() {
+        QueryMatcher.ValueMatcher matcher = QueryMatcher.wildcardMatcher("T1*AX?", false);
+
+        assertTrue(matches(matcher, "T1_MPRAGE_AX1"));
+        assertTrue(matches(matcher, "T1AX2"));
+        assertFalse(matches(matcher, "T1_MPRAGE_AX12"));
+        assertFalse("Wildcard matching is case-sensitive unless requested", matches(matcher, "t1ax2"));
+        assertTrue(matches(QueryMatcher.wildcardMatcher("t1*", true), "T1_MPRAGE"));
+    }
+
+    @Test
+    public void wildcardMatcher_MatchesRegionOfMultiValuedString() {
+        QueryMatcher.ValueMatcher matcher = QueryMatcher.wildcardMatcher("M?", false);
+        String value = "CT\\MR";
+
+        assertFalse(matcher.matches(value, 0, 2));
+        assertTrue(matcher.matches(value, 3, 5));
+    }
+
+    @Test
+    public void listMatcher_MatchesAnyUID() {
+        QueryMatcher.ValueMatcher matcher = QueryMatcher.listMatcher(Arrays.asList("1.2.3", "1.2.4"), false);
+
+        assertTrue(matches(matcher, "1.2.4"));
+        assertFalse(matches(matcher, "1.2.5"));
+        assertFalse("UID list matching is exact", matches(matcher, "1.2.34"));
+    }
+
+    @Test
+    public void rangeMatcher_HandlesOpenAndClosedRanges() {
+        QueryMatcher.ValueMatcher closed = QueryMatcher.rangeMatcher("20240101-20240131", true);
+        assertTrue(matches(closed, "20240101"));
+        assertTrue(matches(closed, "20240131"));
+        assertFalse(matches(closed, "20240201"));
+        assertTrue("Legacy dotted dates are accepted", matches(closed, "2024.01.15"));
+
+        assertTrue(matches(QueryMatcher.rangeMatcher("20240101-", true), "20991231"));
+        assertFalse(matches(QueryMatcher.rangeMatcher("-20240101", true), "20240102"));
+    }
+
+    @Test
+    public void rangeMatcher_ComparesTimesAtBoundPrecision() {
+        QueryMatcher.ValueMatcher morning = QueryMatcher.rangeMatcher("0800-1200", false);
+
+        assertTrue(matches(morning, "101530.123"));
+        assertTrue(matches(morning, "10:15:30"));
+        assertTrue("Less precise times are padded with zeros", matches(morning, "08"));
+        assertFalse(matches(morning, "120001"));
+    }
+
+    @Test
+    public void rangeMatcher_RejectsMalformedRanges() {
+        try {
+            QueryMatcher.rangeMatcher("2024-01-01", true);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void matches_SkipsAttributesMissingFromCandidate() {
+        Attributes query = new Attributes();
+        query.setString(Tag.Modality, VR.CS, "MR");
+        query.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3");
+        QueryMatcher matcher = QueryMatcher.compile(query);
+
+        Attributes knownFromXnat = new Attributes();
+        knownFromXnat.setString(Tag.Modality, VR.CS, "CT");
+        assertFalse("Known attributes should reject early", matcher.matches(knownFromXnat));
+
+        knownFromXnat.setString(Tag.Modality, VR.CS, "MR");
+        assertTrue("Unknown attributes should not reject", matcher.matches(knownFromXnat));
+    }
+
+    @Test
+    public void matches_SequenceItems() {
+        Attributes query = new Attributes();
+        Sequence querySequence = query.newSequence(Tag.RequestAttributesSequence, 1);
+        Attributes queryItem = new Attributes();
+        queryItem.setString(Tag.RequestedProcedureID, VR.SH, "RP2");
+        querySequence.add(queryItem);
+        QueryMatcher matcher = QueryMatcher.compile(query);
+
+        Attributes candidate = new Attributes();
+        Sequence items = candidate.newSequence(Tag.RequestAttributesSequence, 2);
+        Attributes first = new Attributes();
+        first.setString(Tag.RequestedProcedureID, VR.SH, "RP1");
+        Attributes second = new Attributes();
+        second.setString(Tag.RequestedProcedureID, VR.SH, "RP2");
+        items.add(first);
+        items.add(second);
+
+        assertTrue("Any matching item should match", matcher.matches(candidate));
+
+        second.setString(Tag.RequestedProcedureID, VR.SH, "RP3");
+        assertFalse(matcher.matches(candidate));
+    }
+
+    private boolean matches(QueryMatcher.ValueMatcher matcher, String value) {
+        return matcher.matches(value, 0, value.length());
+    }
+}
@@ -0,0 +1,137 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link QueryResultCache}
+ */
+public class QueryResultCacheTest {
+
+    @Test
+    public void get_ServesCopiesOfCachedResult() throws Exception {
+        QueryResultCache<List<String>> cache = new QueryResultCache<>(60000, 60000, 16, null, ArrayList::new);
+        AtomicInteger loads = new AtomicInteger();
+
+        List<String> first = cache.get("P1", "k", () -> {
+            loads.incrementAndGet();
+            return Collections.singletonList("1.2.3");
+        });
+        List<String> second = cache.get("P1", "k", () -> {
+            loads.incrementAndGet();
+            return Collections.singletonList("other");
+        });
+
+        assertEquals(1, loads.get());
+        assertEquals(first, second);
+        assertNotSame("Callers should not share the cached instance", first, second);
+    }
+
+    @Test
+    public void get_ConcurrentCallersShareOneLoad() throws Exception {
+        QueryResultCache<String> cache = new QueryResultCache<>(60000, 60000, 16, null, value -> value);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cache.get("P1", "k", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "studies";
+            })));
+            loading.await(5, TimeUnit.SECONDS);
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> cache.get("P1", "k", () -> {
+                    loads.incrementAndGet();
+                    return "duplicate";
+                })));
+            }
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("studies", result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals("Identical queries should be computed once", 1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void get_ReloadsWhenProjectChangeStampChanges() throws Exception {
+        AtomicReference<String> stamp = new AtomicReference<>("1");
+        QueryResultCache<String> cache = new QueryResultCache<>(60000, 0, 16, projectId -> stamp.get(),
+                value -> value);
+
+        assertEquals("a", cache.get("P1", "k", () -> "a"));
+        assertEquals("a", cache.get("P1", "k", () -> "b"));
+        stamp.set("2");
+        assertEquals("A session change should invalidate the result", "c", cache.get("P1", "k", () -> "c"));
+    }
+
+    @Test
+    public void get_FailuresAreNotCached() throws Exception {
+        QueryResultCache<String> cache = new QueryResultCache<>(60000, 60000, 16, null, value -> value);
+        try {
+            cache.get("P1", "k", () -> {
+                throw new IllegalStateException("database unavailable");
+            });
+            fail("Expected the load failure to propagate");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        assertEquals("ok", cache.get("P1", "k", () -> "ok"));
+    }
+
+    @Test
+    public void invalidate_DropsProjectEntries() throws Exception {
+        QueryResultCache<String> cache = new QueryResultCache<>(60000, 60000, 16, null, value -> value);
+        cache.get("P1", "a", () -> "1");
+        cache.get("P2", "b", () -> "2");
+
+        cache.invalidate("P1");
+
+        assertEquals(1, cache.size());
+        assertEquals("reloaded", cache.get("P1", "a", () -> "reloaded"));
+    }
+
+    @Test
+    public void get_DisabledAlwaysLoads() throws Exception {
+        QueryResultCache<String> cache = new QueryResultCache<>(0, 0, 16, null, value -> value);
+        cache.get("P1", "k", () -> "a");
+
+        assertEquals("b", cache.get("P1", "k", () -> "b"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void normalize_IgnoresValueOrder() {
+        Attributes first = new Attributes();
+        first.setString(Tag.StudyInstanceUID, VR.UI, "1.2.4", "1.2.3");
+        Attributes second = new Attributes();
+        second.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3", "1.2.4");
+
+        assertEquals(QueryResultCache.normalize(first), QueryResultCache.normalize(second));
+    }
+}
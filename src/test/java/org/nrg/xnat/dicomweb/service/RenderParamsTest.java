@@ -0,0 +1,86 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link RenderParams}
+ */
+public class RenderParamsTest {
+
+    @Test
+    public void parse_AllowsMissingParameters() {
+        RenderParams params = RenderParams.parse(null, null, "");
+
+        assertFalse(params.hasViewport());
+        assertFalse(params.hasWindow());
+        assertEquals("Quality should default to the encoder setting", -1, params.getQuality());
+        assertEquals("", params.toCacheKey());
+    }
+
+    @Test
+    public void parse_ReadsViewportAndSourceRegion() {
+        RenderParams params = RenderParams.parse("128,96", null, null);
+        assertTrue(params.hasViewport());
+        assertEquals(128, params.getViewportWidth());
+        assertEquals(96, params.getViewportHeight());
+        assertNull(params.getSourceRegion());
+
+        RenderParams region = RenderParams.parse("64,64,10,20,256,256", null, null);
+        assertArrayEquals(new int[]{10, 20, 256, 256}, region.getSourceRegion());
+    }
+
+    @Test
+    public void parse_ReadsQualityAndWindow() {
+        RenderParams params = RenderParams.parse(null, "75", "40,400,LINEAR");
+
+        assertEquals(75, params.getQuality());
+        assertTrue(params.hasWindow());
+        assertEquals(40f, params.getWindowCenter(), 0.001f);
+        assertEquals(400f, params.getWindowWidth(), 0.001f);
+    }
+
+    @Test
+    public void parse_RejectsMalformedParameters() {
+        assertRejected("128", null, null);
+        assertRejected("0,128", null, null);
+        assertRejected("a,b", null, null);
+        assertRejected(null, "101", null);
+        assertRejected(null, "0", null);
+        assertRejected(null, null, "40");
+        assertRejected(null, null, "40,0");
+    }
+
+    @Test
+    public void toCacheKey_DistinguishesParameters() {
+        String small = RenderParams.parse("64,64", null, null).toCacheKey();
+        String large = RenderParams.parse("128,128", null, null).toCacheKey();
+        String lowQuality = RenderParams.parse("64,64", "50", null).toCacheKey();
+
+        assertFalse(small.equals(large));
+        assertFalse(small.equals(lowQuality));
+        assertEquals(small, RenderParams.parse(" 64, 64 ", null, null).toCacheKey());
+    }
+
+    @Test
+    public void computeSubsampling_KeepsOutputAtLeastViewportSized() {
+        assertEquals(4, XnatDicomServiceImpl.computeSubsampling(512, 512, 128, 128));
+        assertEquals("Smaller axis ratio should win", 2, XnatDicomServiceImpl.computeSubsampling(512, 256, 128, 128));
+        assertEquals("Never upsample", 1, XnatDicomServiceImpl.computeSubsampling(100, 100, 128, 128));
+    }
+
+    private void assertRejected(String viewport, String quality, String window) {
+        try {
+            RenderParams.parse(viewport, quality, window);
+            fail("Expected IllegalArgumentException for " + viewport + " / " + quality + " / " + window);
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
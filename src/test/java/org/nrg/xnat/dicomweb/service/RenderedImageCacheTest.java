@@ -0,0 +1,150 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for {@link RenderedImageCache}
+ */
+public class RenderedImageCacheTest {
+
+    private File workDir;
+    private File cacheDir;
+    private File source;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("rendered-cache-test").toFile();
+        cacheDir = new File(workDir, "cache");
+        source = new File(workDir, "source.dcm");
+        writeSource(new byte[]{1, 2, 3});
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(workDir);
+    }
+
+    @Test
+    public void get_ReturnsStoredRendering() {
+        RenderedImageCache cache = new RenderedImageCache(1024, cacheDir, 4096);
+        byte[] jpeg = bytes(100);
+
+        cache.put("key", source, jpeg);
+
+        assertArrayEquals(jpeg, cache.get("key", source));
+        assertNull("Unknown key should miss", cache.get("other", source));
+    }
+
+    @Test
+    public void get_FallsBackToDiskTier() {
+        RenderedImageCache cache = new RenderedImageCache(1024, cacheDir, 4096);
+        cache.put("key", source, bytes(100));
+
+        // A new cache over the same directory has an empty memory tier
+        RenderedImageCache restarted = new RenderedImageCache(1024, cacheDir, 4096);
+
+        assertArrayEquals("Disk tier should survive a restart", bytes(100), restarted.get("key", source));
+    }
+
+    @Test
+    public void get_InvalidatesEntryWhenSourceChanges() throws IOException {
+        RenderedImageCache cache = new RenderedImageCache(1024, cacheDir, 4096);
+        cache.put("key", source, bytes(100));
+
+        writeSource(new byte[]{1, 2, 3, 4, 5});
+
+        assertNull("Stale rendering should not be served", cache.get("key", source));
+        assertEquals("Stale rendering should be removed from disk", 0, renderFiles().length);
+    }
+
+    @Test
+    public void put_KeepsDiskTierWithinCapacity() {
+        RenderedImageCache cache = new RenderedImageCache(0, cacheDir, 1000);
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, source, bytes(200));
+        }
+
+        long total = 0;
+        for (File file : renderFiles()) {
+            total += file.length();
+        }
+        assertTrue("Disk tier should stay within its capacity", total <= 1000);
+        assertArrayEquals("Most recent entry should be kept", bytes(200), cache.get("key19", source));
+        assertNull("Oldest entry should be evicted", cache.get("key0", source));
+    }
+
+    @Test
+    public void put_KeepsFilesPrivateToOwner() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        RenderedImageCache cache = new RenderedImageCache(0, cacheDir, 4096);
+
+        cache.put("key", source, bytes(100));
+
+        assertEquals("rwx------",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(cacheDir.toPath())));
+        assertEquals("Renderings carry patient data", "rw-------",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(renderFiles()[0].toPath())));
+    }
+
+    @Test
+    public void clear_DeletesBothTiers() {
+        RenderedImageCache cache = new RenderedImageCache(1024, cacheDir, 4096);
+        cache.put("key", source, bytes(100));
+
+        cache.clear();
+
+        assertEquals("Cached files should be removed", 0, renderFiles().length);
+        assertNull(cache.get("key", source));
+    }
+
+    @Test
+    public void key_IncludesFrameAndRenderParameters() {
+        String first = RenderedImageCache.key("P/1/2", "1.2.3", 0, "quality=90");
+        assertTrue(!first.equals(RenderedImageCache.key("P/1/2", "1.2.3", 1, "quality=90")));
+        assertTrue(!first.equals(RenderedImageCache.key("P/1/2", "1.2.3", 0, "quality=50")));
+    }
+
+    private File[] renderFiles() {
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(".render"));
+        return files != null ? files : new File[0];
+    }
+
+    private void writeSource(byte[] content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(content);
+        }
+    }
+
+    private byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
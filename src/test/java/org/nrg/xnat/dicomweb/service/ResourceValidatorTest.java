@@ -0,0 +1,79 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ResourceValidator}
+ */
+public class ResourceValidatorTest {
+
+    @Test
+    public void of_WeakETagFollowsVersion() {
+        ResourceValidator validator = ResourceValidator.of("S1|3|1024", 5000L);
+
+        assertTrue("ETag should be weak", validator.getETag().startsWith("W/\""));
+        assertEquals("Same version should give the same ETag",
+                validator.getETag(), ResourceValidator.of("S1|3|1024", 9000L).getETag());
+        assertNotEquals("Changed version should change the ETag",
+                validator.getETag(), ResourceValidator.of("S1|4|2048", 5000L).getETag());
+        assertEquals(5000L, validator.getLastModified());
+    }
+
+    @Test
+    public void isNotModified_MatchesETag() {
+        ResourceValidator validator = ResourceValidator.of("v1", -1L);
+        String etag = validator.getETag();
+
+        assertTrue("Matching ETag should be not modified", validator.isNotModified(etag, -1L));
+        assertTrue("Strong form should match weakly", validator.isNotModified(etag.substring(2), -1L));
+        assertTrue("Any listed ETag should match", validator.isNotModified("\"other\", " + etag, -1L));
+        assertTrue("Wildcard should match", validator.isNotModified("*", -1L));
+        assertFalse("Other ETag should be modified", validator.isNotModified("W/\"other\"", -1L));
+    }
+
+    @Test
+    public void isNotModified_ETagTakesPrecedence() {
+        ResourceValidator validator = ResourceValidator.of("v1", 10_000L);
+
+        assertFalse("A mismatching ETag should win over a later If-Modified-Since",
+                validator.isNotModified("W/\"other\"", 20_000L));
+    }
+
+    @Test
+    public void isNotModified_ComparesDatesInSeconds() {
+        ResourceValidator validator = ResourceValidator.of("v1", 10_500L);
+
+        assertTrue("Same second should be not modified", validator.isNotModified(null, 10_000L));
+        assertTrue("Later date should be not modified", validator.isNotModified(null, 60_000L));
+        assertFalse("Earlier date should be modified", validator.isNotModified(null, 9_000L));
+        assertFalse("No conditional headers should be modified", validator.isNotModified(null, -1L));
+        assertFalse("Unknown modification time should be modified",
+                ResourceValidator.of("v1", -1L).isNotModified(null, 60_000L));
+    }
+
+    @Test
+    public void isRangeCurrent_RequiresStrongMatch() {
+        ResourceValidator strong = ResourceValidator.strong("digest|abc", 10_000L);
+        ResourceValidator weak = ResourceValidator.of("digest|abc", 10_000L);
+
+        assertFalse("Strong validators should not be weak", strong.isWeak());
+        assertTrue("Requests without If-Range should be served partially",
+                strong.isRangeCurrent(new MockHttpServletRequest()));
+        assertTrue("Matching strong ETag should allow a range", strong.isRangeCurrent(ifRange(strong.getETag())));
+        assertFalse("Other ETag should not allow a range", strong.isRangeCurrent(ifRange("\"other\"")));
+        assertFalse("Weak ETags should never allow a range", weak.isRangeCurrent(ifRange(weak.getETag())));
+    }
+
+    private static MockHttpServletRequest ifRange(String value) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.IF_RANGE, value);
+        return request;
+    }
+}
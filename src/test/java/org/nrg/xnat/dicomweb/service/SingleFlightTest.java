@@ -0,0 +1,108 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link SingleFlight}
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void run_ConcurrentCallersShareOneComputation() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> flight.run("series", () -> {
+                runs.incrementAndGet();
+                running.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "metadata";
+            })));
+            running.await(5, TimeUnit.SECONDS);
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> flight.run("series", () -> {
+                    runs.incrementAndGet();
+                    return "duplicate";
+                })));
+            }
+            awaitCoalesced(flight, 3);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("metadata", result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals("Identical work should run once", 1, runs.get());
+            assertEquals("Nothing should stay in flight", 0, flight.inFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void run_CompletedWorkRunsAgain() throws Exception {
+        SingleFlight<Integer> flight = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+
+        flight.run("k", runs::incrementAndGet);
+        int second = flight.run("k", runs::incrementAndGet);
+
+        assertEquals("Results should not be cached after completion", 2, second);
+    }
+
+    @Test
+    public void run_FailureReachesEveryWaiter() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<>();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> flight.run("k", () -> {
+                running.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                throw new IOException("unreadable");
+            }));
+            running.await(5, TimeUnit.SECONDS);
+            Future<String> waiter = executor.submit(() -> flight.run("k", () -> "unexpected"));
+            awaitCoalesced(flight, 1);
+            release.countDown();
+
+            for (Future<String> result : new Future[]{leader, waiter}) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail("Failure should be rethrown");
+                } catch (ExecutionException e) {
+                    assertTrue("Original exception should be kept", e.getCause() instanceof IOException);
+                }
+            }
+            assertEquals("Failed work should not stay in flight", 0, flight.inFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitCoalesced(SingleFlight<?> flight, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flight.getCoalesced() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}
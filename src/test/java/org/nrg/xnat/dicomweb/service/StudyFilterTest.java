@@ -0,0 +1,104 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link StudyFilter}
+ */
+public class StudyFilterTest {
+
+    @Test
+    public void fromAttributes_NullQueryMatchesEverything() {
+        StudyFilter filter = StudyFilter.fromAttributes(null);
+
+        assertTrue(filter.isEmpty());
+        assertTrue(filter.matches(study("SUBJ01", "20240115", "CT")));
+    }
+
+    @Test
+    public void matches_StudyDateRange() {
+        Attributes query = new Attributes();
+        query.setString(Tag.StudyDate, VR.DA, "20240101-20240131");
+        StudyFilter filter = StudyFilter.fromAttributes(query);
+
+        assertTrue(filter.matches(study("SUBJ01", "20240115", "CT")));
+        assertFalse("Date after the range", filter.matches(study("SUBJ01", "20240201", "CT")));
+    }
+
+    @Test
+    public void matches_PatientNameWildcardIgnoresCase() {
+        Attributes query = new Attributes();
+        query.setString(Tag.PatientName, VR.PN, "subj*");
+        StudyFilter filter = StudyFilter.fromAttributes(query);
+
+        assertTrue(filter.matches(study("SUBJ01", "20240115", "CT")));
+        assertFalse(filter.matches(study("OTHER01", "20240115", "CT")));
+    }
+
+    @Test
+    public void matches_AnyRequestedModality() {
+        Attributes query = new Attributes();
+        query.setString(Tag.ModalitiesInStudy, VR.CS, "MR", "PT");
+        StudyFilter filter = StudyFilter.fromAttributes(query);
+
+        assertTrue(filter.matches(study("SUBJ01", "20240115", "CT\\PT")));
+        assertFalse(filter.matches(study("SUBJ01", "20240115", "CT")));
+    }
+
+    @Test
+    public void matches_StudyInstanceUIDList() {
+        Attributes query = new Attributes();
+        query.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3", "1.2.4");
+        StudyFilter filter = StudyFilter.fromAttributes(query);
+
+        Attributes matching = study("SUBJ01", "20240115", "CT");
+        matching.setString(Tag.StudyInstanceUID, VR.UI, "1.2.4");
+        Attributes other = study("SUBJ01", "20240115", "CT");
+        other.setString(Tag.StudyInstanceUID, VR.UI, "1.2.5");
+
+        assertTrue(filter.matches(matching));
+        assertFalse(filter.matches(other));
+    }
+
+    @Test
+    public void parseDateRange_AcceptsOpenRanges() {
+        assertArrayEquals(new String[]{"20240101", null}, StudyFilter.parseDateRange("20240101-"));
+        assertArrayEquals(new String[]{null, "20240131"}, StudyFilter.parseDateRange("-20240131"));
+        assertArrayEquals(new String[]{"20240101", "20240101"}, StudyFilter.parseDateRange("20240101"));
+        assertArrayEquals(new String[2], StudyFilter.parseDateRange(null));
+    }
+
+    @Test
+    public void parseDateRange_RejectsMalformedDates() {
+        try {
+            StudyFilter.parseDateRange("2024-01-01");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void toLikePattern_TranslatesWildcards() {
+        assertEquals("SUBJ%0_", StudyFilter.toLikePattern("SUBJ*0?"));
+    }
+
+    private Attributes study(String subject, String date, String modalities) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        attrs.setString(Tag.PatientID, VR.LO, subject);
+        attrs.setString(Tag.PatientName, VR.PN, subject);
+        attrs.setString(Tag.StudyDate, VR.DA, date);
+        attrs.setString(Tag.ModalitiesInStudy, VR.CS, modalities);
+        return attrs;
+    }
+}
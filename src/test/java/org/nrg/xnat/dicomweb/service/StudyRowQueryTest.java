@@ -0,0 +1,80 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StudyRowQuery}
+ */
+public class StudyRowQueryTest {
+
+    @Test
+    public void buildSql_UnfilteredSelectsWholeProject() {
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+        String sql = StudyRowQuery.buildSql("PROJ1", StudyFilter.fromAttributes(null), parameters);
+
+        assertEquals(StudyRowQuery.SELECT + StudyRowQuery.GROUP_BY, sql);
+        assertEquals("PROJ1", parameters.getValue("project"));
+    }
+
+    @Test
+    public void buildSql_PushesMatchingKeysAsParameters() {
+        Attributes query = new Attributes();
+        query.setString(Tag.PatientID, VR.LO, "SUBJ*");
+        query.setString(Tag.StudyDate, VR.DA, "20240101-");
+        query.setString(Tag.ModalitiesInStudy, VR.CS, "MR", "PT");
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+        String sql = StudyRowQuery.buildSql("PROJ1", StudyFilter.fromAttributes(query), parameters);
+
+        assertTrue(sql.contains("sa.subject_id LIKE :patientId"));
+        assertEquals("Wildcards should become LIKE patterns", "SUBJ%", parameters.getValue("patientId"));
+        assertTrue(sql.contains("e.date >= CAST(:dateFrom AS date)"));
+        assertEquals("2024-01-01", parameters.getValue("dateFrom"));
+        assertFalse("Open range should have no upper bound", parameters.hasValue("dateTo"));
+        assertEquals(Arrays.asList("MR", "PT"), parameters.getValue("modalities"));
+        assertFalse("Values must never be inlined into the SQL", sql.contains("SUBJ"));
+    }
+
+    @Test
+    public void sessionTypes_CoversSameSessionsAsProjection() {
+        assertTrue("Types should come from the project's image sessions",
+                StudyRowQuery.SESSION_TYPES.contains("JOIN xnat_imagesessiondata s ON s.id = e.id"));
+        assertTrue(StudyRowQuery.SESSION_TYPES.endsWith("WHERE e.project = :project"));
+        assertTrue(StudyRowQuery.SELECT.contains("WHERE e.project = :project"));
+    }
+
+    @Test
+    public void changeStamp_CoversScanModificationsAndDicomFiles() {
+        String sql = StudyRowQuery.CHANGE_STAMP;
+
+        assertTrue("Scan edits should change the stamp",
+                sql.contains("max(sm.last_modified) AS scans_modified"));
+        assertTrue(sql.contains("JOIN xnat_imagescandata_meta_data sm ON sm.meta_data_id = scan.imagescandata_info"));
+        assertTrue("Files added to a scan should change the stamp",
+                sql.contains("sum(files.dicom_files), 0) AS dicom_files"));
+        assertTrue("File counts should be summed per scan before the join",
+                sql.contains("GROUP BY r.xnat_imagescandata_xnat_imagescandata_id) files"));
+        assertTrue(sql.endsWith("WHERE e.project = :project"));
+    }
+
+    @Test
+    public void studyAttributes_NormalizesIsoDateAndTime() {
+        Attributes attrs = StudyRowQuery.studyAttributes("1.2.3", null, "2024-01-15", "10:15:30",
+                "MR1", "XNAT_E00001");
+
+        assertEquals("20240115", attrs.getString(Tag.StudyDate));
+        assertEquals("101530", attrs.getString(Tag.StudyTime));
+        assertEquals("Missing subject should be reported as UNKNOWN", "UNKNOWN", attrs.getString(Tag.PatientID));
+        assertEquals("XNAT_E00001", attrs.getString(Tag.StudyID));
+    }
+}
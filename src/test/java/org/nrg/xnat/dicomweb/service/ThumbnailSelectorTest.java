@@ -0,0 +1,90 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link ThumbnailSelector}
+ */
+public class ThumbnailSelectorTest {
+
+    @Test
+    public void selectMiddle_OrdersByInstanceNumber() {
+        List<ThumbnailSelector.Candidate> candidates = new ArrayList<>();
+        // Deliberately out of order on disk
+        candidates.add(candidate("c.dcm", "1.3", 3));
+        candidates.add(candidate("a.dcm", "1.1", 1));
+        candidates.add(candidate("e.dcm", "1.5", 5));
+        candidates.add(candidate("b.dcm", "1.2", 2));
+        candidates.add(candidate("d.dcm", "1.4", 4));
+
+        ThumbnailSelector.Selection selection = ThumbnailSelector.selectMiddle(candidates);
+
+        assertEquals("Middle slice by InstanceNumber", "1.3", selection.getSopInstanceUID());
+        assertEquals(0, selection.getFrameIndex());
+    }
+
+    @Test
+    public void selectMiddle_PlacesMissingInstanceNumbersLast() {
+        List<ThumbnailSelector.Candidate> candidates = Arrays.asList(
+                new ThumbnailSelector.Candidate(new File("z.dcm"), "1.9", null, 1),
+                candidate("a.dcm", "1.1", 1),
+                candidate("b.dcm", "1.2", 2));
+
+        assertEquals("1.2", ThumbnailSelector.selectMiddle(candidates).getSopInstanceUID());
+    }
+
+    @Test
+    public void selectMiddle_UsesMiddleFrameOfSingleMultiFrameInstance() {
+        ThumbnailSelector.Selection selection = ThumbnailSelector.selectMiddle(Collections.singletonList(
+                new ThumbnailSelector.Candidate(new File("cine.dcm"), "1.1", 1, 40)));
+
+        assertEquals(20, selection.getFrameIndex());
+        assertNull(ThumbnailSelector.selectMiddle(Collections.emptyList()));
+    }
+
+    @Test
+    public void get_DropsSelectionWhoseFileIsGone() throws IOException {
+        File file = File.createTempFile("thumbnail", ".dcm");
+        ThumbnailSelector selector = new ThumbnailSelector(4);
+        ThumbnailSelector.Selection selection = ThumbnailSelector.selectMiddle(Collections.singletonList(
+                new ThumbnailSelector.Candidate(file, "1.1", 1, 1)));
+
+        selector.put("P/1/2", selection);
+        assertSame(selection, selector.get("P/1/2"));
+
+        file.delete();
+        assertNull("Selections for deleted files should not be served", selector.get("P/1/2"));
+    }
+
+    @Test
+    public void studySeries_IsRememberedPerStudyWithinCapacity() {
+        ThumbnailSelector selector = new ThumbnailSelector(2);
+
+        selector.putStudySeries("P/1", "1.1.1");
+        selector.putStudySeries("P/2", "1.2.1");
+        assertEquals("1.1.1", selector.getStudySeries("P/1"));
+
+        // P/2 is now the least recently used study
+        selector.putStudySeries("P/3", "1.3.1");
+        assertNull(selector.getStudySeries("P/2"));
+        assertEquals("1.1.1", selector.getStudySeries("P/1"));
+
+        selector.removeStudySeries("P/1");
+        assertNull(selector.getStudySeries("P/1"));
+    }
+
+    private ThumbnailSelector.Candidate candidate(String name, String sopInstanceUID, int instanceNumber) {
+        return new ThumbnailSelector.Candidate(new File(name), sopInstanceUID, instanceNumber, 1);
+    }
+}
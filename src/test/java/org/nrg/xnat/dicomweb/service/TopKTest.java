@@ -0,0 +1,47 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link TopK}
+ */
+public class TopKTest {
+
+    @Test
+    public void offer_KeepsFirstKInOrder() {
+        TopK<Integer> topK = new TopK<>(3, Comparator.naturalOrder());
+        for (int value : new int[]{9, 4, 7, 1, 8, 2}) {
+            topK.offer(value);
+        }
+
+        assertEquals(Arrays.asList(1, 2, 4), topK.toList(0));
+        assertEquals("All offered elements should be counted", 6, topK.getOffered());
+    }
+
+    @Test
+    public void toList_SkipsOffset() {
+        TopK<Integer> topK = new TopK<>(4, Comparator.reverseOrder());
+        for (int value = 1; value <= 10; value++) {
+            topK.offer(value);
+        }
+
+        assertEquals(Arrays.asList(8, 7), topK.toList(2));
+        assertTrue("Offset past the kept elements should be empty", topK.toList(4).isEmpty());
+    }
+
+    @Test
+    public void offer_ZeroKeepsNothing() {
+        TopK<Integer> topK = new TopK<>(0, Comparator.naturalOrder());
+        topK.offer(1);
+
+        assertEquals(Collections.emptyList(), topK.toList(0));
+        assertEquals(1, topK.getOffered());
+    }
+}
@@ -0,0 +1,138 @@
+package org.nrg.xnat.dicomweb.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for {@link TranscodeCache}
+ */
+public class TranscodeCacheTest {
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("transcode-cache-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void get_ReturnsStoredOutput() throws Exception {
+        TranscodeCache cache = new TranscodeCache(cacheDir, 4096);
+
+        File stored = cache.put("1.2.3|1.2.840.10008.1.2.1", target -> write(target, 100));
+
+        assertEquals(stored, cache.get("1.2.3|1.2.840.10008.1.2.1"));
+        assertEquals(100, stored.length());
+        assertNull("Other syntaxes are stored separately", cache.get("1.2.3|1.2.840.10008.1.2"));
+    }
+
+    @Test
+    public void put_EvictsLeastRecentlyUsed() throws Exception {
+        TranscodeCache cache = new TranscodeCache(cacheDir, 250);
+
+        cache.put("a", target -> write(target, 100));
+        cache.put("b", target -> write(target, 100));
+        cache.get("a");
+        cache.put("c", target -> write(target, 100));
+
+        assertNotNull("Recently used output should stay", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(200, cache.size());
+    }
+
+    @Test
+    public void put_KeepsNewestOutputBeyondCapacity() throws Exception {
+        TranscodeCache cache = new TranscodeCache(cacheDir, 50);
+
+        File large = cache.put("large", target -> write(target, 100));
+
+        assertTrue("The output being served should not be evicted", large.isFile());
+        cache.put("next", target -> write(target, 10));
+        assertNull(cache.get("large"));
+    }
+
+    @Test
+    public void put_FailedWriteLeavesNothing() throws Exception {
+        TranscodeCache cache = new TranscodeCache(cacheDir, 4096);
+
+        try {
+            cache.put("broken", target -> {
+                write(target, 10);
+                throw new IOException("unsupported transfer syntax");
+            });
+            fail("Failure should reach the caller");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        assertNull(cache.get("broken"));
+        assertEquals("Partial output should be removed", 0, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void get_FindsOutputsOfPreviousRun() throws Exception {
+        new TranscodeCache(cacheDir, 4096).put("k", target -> write(target, 10));
+
+        assertNotNull(new TranscodeCache(cacheDir, 4096).get("k"));
+    }
+
+    @Test
+    public void put_KeepsFilesPrivateToOwner() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        File directory = new File(cacheDir, "transcoded");
+        TranscodeCache cache = new TranscodeCache(directory, 4096);
+
+        File stored = cache.put("k", target -> write(target, 10));
+
+        assertEquals("rwx------",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.toPath())));
+        assertEquals("Transcoded instances carry patient data", "rw-------",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(stored.toPath())));
+    }
+
+    @Test
+    public void clear_DeletesStoredOutputs() throws Exception {
+        TranscodeCache cache = new TranscodeCache(cacheDir, 4096);
+        cache.put("k", target -> write(target, 10));
+
+        cache.clear();
+
+        assertNull(cache.get("k"));
+        assertEquals(0, cache.size());
+        assertEquals("Stored outputs should be deleted", 0, cacheDir.listFiles().length);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File target, int length) throws IOException {
+        Files.write(target.toPath(), new byte[length]);
+    }
+}
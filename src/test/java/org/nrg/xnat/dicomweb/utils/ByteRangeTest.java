@@ -0,0 +1,91 @@
+package org.nrg.xnat.dicomweb.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ByteRange
+ */
+public class ByteRangeTest {
+
+    @Test
+    public void testParseBoundedRange() {
+        ByteRange range = ByteRange.parse("bytes=100-199", 1000);
+
+        assertNotNull("Range should be parsed", range);
+        assertTrue("Range should be satisfiable", range.isSatisfiable());
+        assertEquals(100, range.getStart());
+        assertEquals(199, range.getEnd());
+        assertEquals(100, range.getCount());
+        assertEquals("bytes 100-199/1000", range.toContentRange());
+    }
+
+    @Test
+    public void testParseOpenAndSuffixRanges() {
+        ByteRange open = ByteRange.parse("bytes=900-", 1000);
+        assertEquals("Open range should run to the end", "bytes 900-999/1000", open.toContentRange());
+
+        ByteRange suffix = ByteRange.parse("bytes=-300", 1000);
+        assertEquals("Suffix range should select the final bytes", "bytes 700-999/1000", suffix.toContentRange());
+
+        ByteRange longSuffix = ByteRange.parse("bytes=-5000", 1000);
+        assertEquals("Long suffix should select everything", 1000, longSuffix.getCount());
+
+        ByteRange clamped = ByteRange.parse("bytes=500-5000", 1000);
+        assertEquals("End past the content should be clamped", 999, clamped.getEnd());
+    }
+
+    @Test
+    public void testParseUnsatisfiableRange() {
+        ByteRange range = ByteRange.parse("bytes=1000-", 1000);
+
+        assertNotNull("Range past the end should be parsed", range);
+        assertFalse("Range past the end should be unsatisfiable", range.isSatisfiable());
+        assertEquals("bytes */1000", range.toContentRange());
+        assertFalse("Empty suffix should be unsatisfiable", ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+    }
+
+    @Test
+    public void testParseIgnoredHeaders() {
+        assertNull("Absent header should be ignored", ByteRange.parse(null, 1000));
+        assertNull("Other units should be ignored", ByteRange.parse("items=0-1", 1000));
+        assertNull("Multiple ranges should be ignored", ByteRange.parse("bytes=0-1,5-9", 1000));
+        assertNull("Reversed range should be ignored", ByteRange.parse("bytes=9-5", 1000));
+        assertNull("Non-numeric range should be ignored", ByteRange.parse("bytes=a-b", 1000));
+    }
+
+    @Test
+    public void testOpenReadsSelectedBytes() throws Exception {
+        File file = File.createTempFile("byterange", ".bin");
+        try {
+            byte[] content = new byte[256];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) i;
+            }
+            Files.write(file.toPath(), content);
+
+            ByteRange range = ByteRange.parse("bytes=10-19", content.length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = range.open(file)) {
+                byte[] buffer = new byte[4];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+
+            byte[] selected = out.toByteArray();
+            assertEquals("Should read exactly the range", 10, selected.length);
+            assertEquals("Should start at the range start", 10, selected[0]);
+            assertEquals("Should end at the range end", 19, selected[9]);
+        } finally {
+            file.delete();
+        }
+    }
+}
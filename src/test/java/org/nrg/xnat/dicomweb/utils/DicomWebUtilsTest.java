@@ -5,6 +5,10 @@ import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static org.junit.Assert.*;
 
 /**
@@ -106,4 +110,73 @@ public class DicomWebUtilsTest {
         // Ensure special characters are properly escaped in JSON
         assertTrue("JSON should be valid", json.length() > 0);
     }
+
+    @Test
+    public void testParseQueryParameters() {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("PatientID", "SUBJ01");
+        parameters.put("00080061", "CT,MR");
+        parameters.put("limit", "10");
+        parameters.put("NotAKeyword", "x");
+
+        Attributes query = DicomWebUtils.parseQueryParameters(parameters);
+
+        assertEquals("Keyword should resolve to its tag", "SUBJ01", query.getString(Tag.PatientID));
+        assertArrayEquals("Comma-separated values should become multiple values",
+                new String[]{"CT", "MR"}, query.getStrings(Tag.ModalitiesInStudy));
+        assertEquals("Reserved and unknown parameters should be ignored", 2, query.size());
+    }
+
+    @Test
+    public void testParseCountParameter() {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("Limit", "25");
+        parameters.put("offset", "-1");
+
+        assertEquals("Parameter names should be case-insensitive", 25,
+                DicomWebUtils.parseCountParameter(parameters, "limit"));
+        assertEquals("Absent parameter should default to 0", 0,
+                DicomWebUtils.parseCountParameter(parameters, "includefield"));
+        try {
+            DicomWebUtils.parseCountParameter(parameters, "offset");
+            fail("Negative offset should be rejected");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGetRequestedTransferSyntax() {
+        assertEquals("1.2.840.10008.1.2.1", DicomWebUtils.getRequestedTransferSyntax(
+                "application/dicom; transfer-syntax=1.2.840.10008.1.2.1"));
+        assertEquals("1.2.840.10008.1.2.4.50", DicomWebUtils.getRequestedTransferSyntax(
+                "multipart/related; type=\"application/dicom\"; transfer-syntax=\"1.2.840.10008.1.2.4.50\""));
+        assertEquals("First matching media range should win", "1.2.840.10008.1.2", DicomWebUtils.getRequestedTransferSyntax(
+                "application/json, application/dicom;transfer-syntax=1.2.840.10008.1.2, application/dicom;transfer-syntax=1.2.840.10008.1.2.1"));
+        assertNull("Wildcard accepts the stored syntax",
+                DicomWebUtils.getRequestedTransferSyntax("application/dicom; transfer-syntax=*"));
+        assertNull(DicomWebUtils.getRequestedTransferSyntax("application/dicom"));
+        assertNull(DicomWebUtils.getRequestedTransferSyntax(null));
+    }
+
+    @Test
+    public void testGetCacheDirectory() {
+        String previous = System.getProperty("xnat.cache");
+        System.setProperty("xnat.cache", "/srv/xnat/cache");
+        try {
+            assertEquals("Defaults to a plugin directory in the XNAT cache path",
+                    new File("/srv/xnat/cache/dicomweb/rendered"),
+                    DicomWebUtils.getCacheDirectory("dicomweb.test.cacheDir", "rendered"));
+            System.setProperty("dicomweb.test.cacheDir", "/scratch/rendered");
+            assertEquals(new File("/scratch/rendered"),
+                    DicomWebUtils.getCacheDirectory("dicomweb.test.cacheDir", "rendered"));
+        } finally {
+            System.clearProperty("dicomweb.test.cacheDir");
+            if (previous != null) {
+                System.setProperty("xnat.cache", previous);
+            } else {
+                System.clearProperty("xnat.cache");
+            }
+        }
+    }
 }
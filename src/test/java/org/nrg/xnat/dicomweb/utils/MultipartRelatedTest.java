@@ -0,0 +1,109 @@
+package org.nrg.xnat.dicomweb.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for MultipartRelated
+ */
+public class MultipartRelatedTest {
+
+    @Test
+    public void testContentLengthMatchesBody() throws Exception {
+        File first = createFile(100);
+        File second = createFile(2500);
+        try {
+            MultipartRelated body = new MultipartRelated("b1", "application/dicom", Arrays.asList(first, second));
+            byte[] bytes = readAll(body.open());
+
+            assertEquals("Declared length should match the streamed bytes", body.getContentLength(), bytes.length);
+            String text = new String(bytes, StandardCharsets.ISO_8859_1);
+            assertTrue("Body should start with the first part header",
+                    text.startsWith("--b1\r\nContent-Type: application/dicom\r\n\r\n"));
+            assertTrue("Body should end with the close delimiter", text.endsWith("\r\n--b1--\r\n"));
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void testEmptyBodyHasOnlyCloseDelimiter() throws Exception {
+        MultipartRelated body = new MultipartRelated("b2", "application/dicom", Collections.emptyList());
+
+        assertEquals("--b2--\r\n", new String(readAll(body.open()), StandardCharsets.US_ASCII));
+        assertEquals(8, body.getContentLength());
+    }
+
+    @Test
+    public void testGrownFileIsCutToRecordedSize() throws Exception {
+        File file = createFile(10);
+        try {
+            MultipartRelated body = new MultipartRelated("b3", "application/dicom", Collections.singletonList(file));
+            Files.write(file.toPath(), new byte[50]);
+
+            assertEquals("Only the recorded size should be sent", body.getContentLength(), readAll(body.open()).length);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStreamOpensPartsWhenReached() throws Exception {
+        int[] opened = new int[1];
+        MultipartRelated.PartSource source = () -> {
+            opened[0]++;
+            return new ByteArrayInputStream("DICM".getBytes(StandardCharsets.US_ASCII));
+        };
+        InputStream body = MultipartRelated.stream("b4", "application/dicom", Arrays.asList(source, source));
+
+        assertEquals("Nothing should be opened before the body is read", 0, opened[0]);
+        String text = new String(readAll(body), StandardCharsets.US_ASCII);
+
+        assertEquals(2, opened[0]);
+        assertEquals("--b4\r\nContent-Type: application/dicom\r\n\r\nDICM\r\n"
+                + "--b4\r\nContent-Type: application/dicom\r\n\r\nDICM\r\n--b4--\r\n", text);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testShrunkFileFailsStream() throws Exception {
+        File file = createFile(100);
+        try {
+            MultipartRelated body = new MultipartRelated("b4", "application/dicom", Collections.singletonList(file));
+            Files.write(file.toPath(), new byte[10]);
+
+            readAll(body.open());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File createFile(int size) throws Exception {
+        File file = File.createTempFile("multipart", ".dcm");
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+}